@@ -4,51 +4,215 @@ import static io.jenkins.plugins.azurecosmosdb.CredentialsHelper.findCredentials
 import static java.util.Objects.requireNonNull;
 
 import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosEndToEndOperationLatencyPolicyConfig;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
 import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.azure.util.AzureImdsCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
 import hudson.model.Item;
+import hudson.util.Secret;
+import io.jenkins.plugins.azurecosmosdb.CredentialsHelper.ConnectionSettings;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 
 /** Cache to prevent authenticating every time the step is invoked. */
 public class AzureCosmosDBCache {
 
-    private static final long MAX_SIZE =
+    static final long MAX_SIZE =
             SystemProperties.getLong(AzureCosmosDBCache.class.getName() + ".MAX_CACHE_SIZE", 50L);
 
-    // If you use folder based auth you may wish to shorten this so your old caches are cleaned up
-    // quicker
-    private static final int CACHE_DURATION_HOURS =
-            SystemProperties.getInteger(AzureCosmosDBCache.class.getName() + ".CACHE_DURATION_HOURS", 24);
+    // Controller wide ceiling on the connections cached clients may open, when not set enough for MAX_CACHE_SIZE
+    // single region clients with the configured connection pool size
+    private static final Long MAX_CONNECTIONS =
+            SystemProperties.getLong(AzureCosmosDBCache.class.getName() + ".MAX_CONNECTIONS", null);
 
-    private static final Duration EXPIRE_AFTER = Duration.ofHours(CACHE_DURATION_HOURS);
+    // Clients that haven't been used for this long are closed, releasing their connections. If you use folder based
+    // auth you may wish to shorten this so your old caches are cleaned up quicker
+    static final long CACHE_IDLE_MINUTES =
+            SystemProperties.getLong(AzureCosmosDBCache.class.getName() + ".CACHE_IDLE_MINUTES", 60L);
 
-    private static final LoadingCache<CacheKey, CosmosClient> CACHE = Caffeine.newBuilder()
-            .maximumSize(MAX_SIZE)
-            .evictionListener((k, v, c) -> {
-                CosmosClient client = (CosmosClient) v;
-                requireNonNull(client).close();
-            })
-            .expireAfterWrite(EXPIRE_AFTER)
-            .build(AzureCosmosDBCache::createClient);
+    // Optional maximum lifetime of a client regardless of use, 0 lets clients in use live indefinitely
+    static final int CACHE_DURATION_HOURS =
+            SystemProperties.getInteger(AzureCosmosDBCache.class.getName() + ".CACHE_DURATION_HOURS", 0);
+
+    // Clients replaced to add a region may still be in use, so they are closed after a grace period
+    private static final long RETIRED_CLIENT_CLOSE_DELAY_MINUTES = 5;
+
+    // expiry after write is always enabled so it can be switched on later, this stands in for no maximum lifetime
+    private static final Duration NO_MAXIMUM_LIFETIME = Duration.ofNanos(Long.MAX_VALUE);
+
+    private static final Cache<CacheKey, AccountClient> CACHE = newCache();
 
     private AzureCosmosDBCache() {}
 
+    private static Cache<CacheKey, AccountClient> newCache() {
+        Caffeine<CacheKey, AccountClient> builder = Caffeine.newBuilder()
+                .maximumWeight(defaultMaximumWeight(CredentialsHelper.MAX_CONNECTION_POOL_SIZE))
+                .weigher((CacheKey k, AccountClient v) -> v.getWeight())
+                .evictionListener((CacheKey k, AccountClient v, RemovalCause c) -> requireNonNull(v).close())
+                .expireAfterAccess(Duration.ofMinutes(CACHE_IDLE_MINUTES))
+                .expireAfterWrite(maximumLifetime(CACHE_DURATION_HOURS))
+                // without a scheduler expired clients are only closed during later cache activity
+                .scheduler(Scheduler.systemScheduler());
+        return builder.build();
+    }
+
+    private static long defaultMaximumWeight(long poolSize) {
+        return MAX_CONNECTIONS == null ? MAX_SIZE * poolSize : MAX_CONNECTIONS;
+    }
+
+    private static Duration maximumLifetime(int hours) {
+        return hours > 0 ? Duration.ofHours(hours) : NO_MAXIMUM_LIFETIME;
+    }
+
+    /**
+     * Resizes the cache and changes its expiry in place, {@code null} restores the system property default. Shrinking
+     * the cache evicts the least recently used clients straight away.
+     */
+    static void configure(Integer maxSize, Integer idleMinutes, Integer durationHours) {
+        long poolSize = CredentialsHelper.connectionSettings().getMaxConnectionPoolSize();
+        long maximumWeight = maxSize == null ? defaultMaximumWeight(poolSize) : maxSize * poolSize;
+        Duration idle = Duration.ofMinutes(idleMinutes == null ? CACHE_IDLE_MINUTES : idleMinutes);
+        Duration lifetime = maximumLifetime(durationHours == null ? CACHE_DURATION_HOURS : durationHours);
+
+        Policy<CacheKey, AccountClient> policy = CACHE.policy();
+        policy.eviction().ifPresent(eviction -> eviction.setMaximum(maximumWeight));
+        policy.expireAfterAccess().ifPresent(expiry -> expiry.setExpiresAfter(idle));
+        policy.expireAfterWrite().ifPresent(expiry -> expiry.setExpiresAfter(lifetime));
+    }
+
+    static long cacheMaximumWeight() {
+        return CACHE.policy().eviction().map(Policy.Eviction::getMaximum).orElse(0L);
+    }
+
     static long cacheSize() {
         return CACHE.estimatedSize();
     }
 
+    static long cacheWeight() {
+        return CACHE.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L);
+    }
+
     public static CosmosClient get(String credentialsId, Item item) {
+        return getConnection(credentialsId, item).getClient();
+    }
+
+    /**
+     * Looks up the client for the account the credentials point to. Credentials for the same account and
+     * authentication share a client, with their preferred region and latency policy applied to each request.
+     */
+    static CosmosConnection getConnection(String credentialsId, Item item) {
         AzureCosmosDBCredentials credentials = lookupCredentials(credentialsId, item, AzureCosmosDBCredentials.class);
 
         StandardCredentials authCreds =
                 lookupCredentials(credentials.getCredentialsId(), item, StandardCredentials.class);
 
-        return CACHE.get(new CacheKey(authCreds, credentials.getUrl(), credentials.getPreferredRegion()));
+        ConnectionRequest request = new ConnectionRequest(credentials);
+        AccountClient client =
+                get(new CacheKey(authCreds, request.url, CredentialsHelper.origin(authCreds, item)), request.regions());
+        return request.connect(client);
+    }
+
+    /**
+     * Looks up the client for an account without saved connection credentials, e.g. when validating a form. The origin
+     * is where the credentials were found, see {@link CredentialsHelper#origin(StandardCredentials, Item)}.
+     */
+    static CosmosConnection getConnection(
+            StandardCredentials authCreds, String url, String preferredRegion, @CheckForNull String origin) {
+        String region = Util.fixEmptyAndTrim(preferredRegion);
+        AccountClient client =
+                get(new CacheKey(authCreds, url, origin), region == null ? Collections.emptyList() : List.of(region));
+        return new CosmosConnection(
+                url,
+                client.getClient(),
+                client.getContainers(),
+                region,
+                Collections.emptyList(),
+                client.getRegions(),
+                null,
+                client.getKeys(),
+                null);
+    }
+
+    /**
+     * Looks up the client like {@link #getConnection(String, Item)} and keeps it open until the lease is closed, even
+     * if it is evicted or replaced in the meantime.
+     */
+    static Lease lease(String credentialsId, Item item) {
+        AzureCosmosDBCredentials credentials = lookupCredentials(credentialsId, item, AzureCosmosDBCredentials.class);
+        StandardCredentials authCreds =
+                lookupCredentials(credentials.getCredentialsId(), item, StandardCredentials.class);
+
+        ConnectionRequest request = new ConnectionRequest(credentials);
+        CacheKey key = new CacheKey(authCreds, request.url, CredentialsHelper.origin(authCreds, item));
+        while (true) {
+            AccountClient client = get(key, request.regions());
+            // a client closed since the lookup has already left the cache, the next lookup creates a new one
+            if (client.acquire()) {
+                return new Lease(client, request.connect(client));
+            }
+        }
+    }
+
+    /**
+     * Clients created with outdated connection settings are replaced as they are next used, so a settings change
+     * rebuilds clients gradually rather than all at once.
+     */
+    private static AccountClient get(CacheKey key, List<String> wanted) {
+        AccountClient client = CACHE.getIfPresent(key);
+        if (client != null && client.hasRegions(wanted) && client.isCurrent()) {
+            client.updateKeys(key.cosmosAuthCredentials);
+            return client;
+        }
+        return CACHE.asMap().compute(key, (k, existing) -> {
+            if (existing != null && existing.hasRegions(wanted) && existing.isCurrent()) {
+                existing.updateKeys(k.cosmosAuthCredentials);
+                return existing;
+            }
+            List<String> regions = new ArrayList<>();
+            if (existing != null) {
+                regions.addAll(existing.getRegions());
+            }
+            for (String region : wanted) {
+                if (!regions.contains(region)) {
+                    regions.add(region);
+                }
+            }
+            // a replacement keeps signing with the keys of the client it replaces, which may have failed over
+            CosmosAccountKeys keys = existing != null ? existing.getKeys() : null;
+            if (keys != null) {
+                keys.update((AzureCosmosDBKeyCredentials) k.cosmosAuthCredentials);
+            } else if (k.cosmosAuthCredentials instanceof AzureCosmosDBKeyCredentials) {
+                keys = new CosmosAccountKeys((AzureCosmosDBKeyCredentials) k.cosmosAuthCredentials);
+            }
+            ConnectionSettings settings = CredentialsHelper.connectionSettings();
+            AccountClient created =
+                    new AccountClient(createClient(k, regions, settings, keys), regions, settings, keys);
+            if (existing != null) {
+                retire(existing);
+            }
+            return created;
+        });
+    }
+
+    private static void retire(AccountClient client) {
+        Timer.get().schedule(client::close, RETIRED_CLIENT_CLOSE_DELAY_MINUTES, TimeUnit.MINUTES);
     }
 
     private static <T extends StandardCredentials> T lookupCredentials(String credentialsId, Item item, Class<T> type) {
@@ -70,18 +234,40 @@ public class AzureCosmosDBCache {
     /** Used to notify when credentials change, e.g. service principal secret updated. */
     public static void invalidateCache() {
         CACHE.invalidateAll();
+        CredentialsHelper.invalidateOrigins();
     }
 
     static class CacheKey {
 
         private final StandardCredentials cosmosAuthCredentials;
         private final String url;
-        private final String preferredRegion;
+        // tells key credentials with the same id apart, the store they come from or else a fingerprint of the keys
+        private final String origin;
 
-        CacheKey(StandardCredentials cosmosAuthCredentials, String url, String preferredRegion) {
+        CacheKey(StandardCredentials cosmosAuthCredentials, String url) {
+            this(cosmosAuthCredentials, url, null);
+        }
+
+        CacheKey(StandardCredentials cosmosAuthCredentials, String url, @CheckForNull String origin) {
             this.cosmosAuthCredentials = cosmosAuthCredentials;
             this.url = url;
-            this.preferredRegion = preferredRegion;
+            this.origin = origin != null ? origin : fingerprint(cosmosAuthCredentials);
+        }
+
+        @CheckForNull
+        private static String fingerprint(StandardCredentials credentials) {
+            if (!(credentials instanceof AzureCosmosDBKeyCredentials)) {
+                return null;
+            }
+            AzureCosmosDBKeyCredentials keyCredentials = (AzureCosmosDBKeyCredentials) credentials;
+            String keys = Secret.toString(keyCredentials.getKey()) + "\n"
+                    + Secret.toString(keyCredentials.getSecondaryKey());
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return Util.toHexString(digest.digest(keys.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
 
         @Override
@@ -95,8 +281,7 @@ public class AzureCosmosDBCache {
             CacheKey cacheKey = (CacheKey) o;
             boolean simpleTypesEqual =
                     Objects.equals(cosmosAuthCredentials.getId(), cacheKey.cosmosAuthCredentials.getId())
-                            && Objects.equals(url, cacheKey.url)
-                            && Objects.equals(preferredRegion, cacheKey.preferredRegion);
+                            && Objects.equals(url, cacheKey.url);
             if (!simpleTypesEqual) {
                 return false;
             }
@@ -129,12 +314,9 @@ public class AzureCosmosDBCache {
                                 cacheKeyAzureCredentials.getPlainClientSecret());
             }
 
+            // a rotated key of the same credentials is applied to the cached client in place, see CosmosAccountKeys
             if (cosmosAuthCredentials instanceof AzureCosmosDBKeyCredentials) {
-                AzureCosmosDBKeyCredentials keyCredentials = (AzureCosmosDBKeyCredentials) cosmosAuthCredentials;
-                AzureCosmosDBKeyCredentials cacheKeyCredentials =
-                        (AzureCosmosDBKeyCredentials) cacheKey.cosmosAuthCredentials;
-
-                return Objects.equals(keyCredentials.getKey(), cacheKeyCredentials.getKey());
+                return Objects.equals(origin, cacheKey.origin);
             }
 
             return false;
@@ -142,18 +324,209 @@ public class AzureCosmosDBCache {
 
         @Override
         public int hashCode() {
-            return Objects.hash(cosmosAuthCredentials, url, preferredRegion);
+            return Objects.hash(cosmosAuthCredentials, url);
         }
 
         @Override
         public String toString() {
-            return String.format(
-                    "CacheKey{cosmosAuthCredentials=%s, url='%s', preferredRegion='%s'}",
-                    cosmosAuthCredentials.getId(), url, preferredRegion);
+            return String.format("CacheKey{cosmosAuthCredentials=%s, url='%s'}", cosmosAuthCredentials.getId(), url);
+        }
+    }
+
+    /** Creating a client reads the account, so a rejected key is failed over here too. */
+    private static CosmosClient createClient(
+            CacheKey cacheKey, List<String> regions, ConnectionSettings settings, CosmosAccountKeys keys) {
+        StandardCredentials credentials = cacheKey.cosmosAuthCredentials;
+        String used = keys == null ? null : keys.getActive();
+        try {
+            return CredentialsHelper.createClient(credentials, regions, cacheKey.url, settings, keys);
+        } catch (RuntimeException e) {
+            if (keys == null || !CosmosAccountKeys.isUnauthorized(e) || !keys.failover(used)) {
+                throw e;
+            }
+            return CredentialsHelper.createClient(credentials, regions, cacheKey.url, settings, keys);
+        }
+    }
+
+    /** Keeps a client open while a block of steps uses it. */
+    static class Lease implements AutoCloseable {
+
+        private final AccountClient client;
+        private final CosmosConnection connection;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(AccountClient client, CosmosConnection connection) {
+            this.client = client;
+            this.connection = connection;
+        }
+
+        CosmosConnection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                client.release();
+            }
         }
     }
 
-    private static CosmosClient createClient(CacheKey cacheKey) {
-        return CredentialsHelper.createClient(cacheKey.cosmosAuthCredentials, cacheKey.preferredRegion, cacheKey.url);
+    /** The region preference, latency policy and request priority of a set of connection credentials. */
+    private static class ConnectionRequest {
+
+        private final String url;
+        private final String preferredRegion;
+        private final List<String> hedgeRegions;
+        private final CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy;
+        private final CosmosRequestPriority priority;
+
+        ConnectionRequest(AzureCosmosDBCredentials credentials) {
+            this.url = credentials.getUrl();
+            this.preferredRegion = Util.fixEmptyAndTrim(credentials.getPreferredRegion());
+            this.hedgeRegions = CosmosConnection.hedgeRegions(credentials.getHedgeRegions());
+            this.latencyPolicy = CosmosConnection.latencyPolicy(credentials);
+            this.priority = CosmosRequestPriority.parse(credentials.getPriority());
+        }
+
+        /** The regions the client needs, hedge regions after the preferred one so hedges go to them in order. */
+        List<String> regions() {
+            List<String> regions = new ArrayList<>();
+            if (preferredRegion != null) {
+                regions.add(preferredRegion);
+            }
+            for (String region : hedgeRegions) {
+                if (!regions.contains(region)) {
+                    regions.add(region);
+                }
+            }
+            return regions;
+        }
+
+        CosmosConnection connect(AccountClient client) {
+            return new CosmosConnection(
+                    url,
+                    client.getClient(),
+                    client.getContainers(),
+                    preferredRegion,
+                    hedgeRegions,
+                    client.getRegions(),
+                    latencyPolicy,
+                    client.getKeys(),
+                    priority);
+        }
+    }
+
+    /** A client for an account along with every region credentials for the account have asked for. */
+    static class AccountClient {
+
+        private final CosmosClient client;
+        // container handles hold on to the client, so they're kept with it rather than in a shared cache
+        private final ContainerMetadataCache containers;
+        private final List<String> regions;
+        private final ConnectionSettings settings;
+        private final CosmosAccountKeys keys;
+
+        // closing a leased client is deferred until the last lease is released
+        private int leases;
+        private boolean closePending;
+        private boolean closed;
+
+        AccountClient(CosmosClient client, List<String> regions) {
+            this(client, regions, CredentialsHelper.connectionSettings());
+        }
+
+        AccountClient(CosmosClient client, List<String> regions, ConnectionSettings settings) {
+            this(client, regions, settings, null);
+        }
+
+        AccountClient(
+                CosmosClient client,
+                List<String> regions,
+                ConnectionSettings settings,
+                @CheckForNull CosmosAccountKeys keys) {
+            this.client = client;
+            this.containers = new ContainerMetadataCache(client);
+            this.regions = Collections.unmodifiableList(new ArrayList<>(regions));
+            this.settings = settings;
+            this.keys = keys;
+        }
+
+        CosmosClient getClient() {
+            return client;
+        }
+
+        ContainerMetadataCache getContainers() {
+            return containers;
+        }
+
+        List<String> getRegions() {
+            return regions;
+        }
+
+        /** The keys a key based client signs requests with, {@code null} for other authentication. */
+        @CheckForNull
+        CosmosAccountKeys getKeys() {
+            return keys;
+        }
+
+        /** Applies keys rotated since the client was created, without rebuilding it. */
+        void updateKeys(StandardCredentials credentials) {
+            if (keys != null && credentials instanceof AzureCosmosDBKeyCredentials) {
+                keys.update((AzureCosmosDBKeyCredentials) credentials);
+            }
+        }
+
+        boolean hasRegions(List<String> wanted) {
+            return regions.containsAll(wanted);
+        }
+
+        /** Whether the client was created with the current connection settings. */
+        boolean isCurrent() {
+            return settings.equals(CredentialsHelper.connectionSettings());
+        }
+
+        synchronized boolean acquire() {
+            if (closed || closePending) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            if (leases == 0 && closePending) {
+                doClose();
+            }
+        }
+
+        synchronized void close() {
+            if (leases > 0) {
+                closePending = true;
+            } else if (!closed) {
+                doClose();
+            }
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void doClose() {
+            closed = true;
+            closePending = false;
+            if (client != null) {
+                client.close();
+            }
+        }
+
+        /**
+         * The connections the client may open, pools are per endpoint so a client routing to more regions can hold
+         * proportionally more sockets.
+         */
+        int getWeight() {
+            return settings.getMaxConnectionPoolSize() * Math.max(1, regions.size());
+        }
     }
 }
@@ -3,13 +3,14 @@ package io.jenkins.plugins.azurecosmosdb;
 import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
 import static java.util.Objects.requireNonNull;
 
-import com.azure.cosmos.CosmosClient;
-import com.azure.cosmos.CosmosContainer;
-import com.azure.cosmos.CosmosDatabase;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosItemResponse;
+import com.azure.cosmos.models.PartitionKey;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
@@ -20,29 +21,50 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.security.ACL;
 import hudson.util.ListBoxModel;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBGlobalConfiguration.CircuitBreakerAction;
+import io.jenkins.plugins.azurecosmosdb.ContainerMetadataCache.CachedContainer;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
-import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
 public class AzureCosmosDBCreateDocumentStep extends Step {
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * Documents larger than this many bytes once serialized are staged to a file in the build directory rather than
+     * kept in the step execution, which is saved with the pipeline's program state. Negative to never stage.
+     */
+    static final int STAGE_THRESHOLD_BYTES = SystemProperties.getInteger(
+            AzureCosmosDBCreateDocumentStep.class.getName() + ".STAGE_THRESHOLD_BYTES", 64 * 1024);
+
     private final String credentialsId;
     private final String database;
     private final String container;
 
     private final Object document;
 
+    private Object partitionKey;
+    private String partitionKeyPath;
+    private Integer timeout;
+    private String priority;
+    private boolean skipIfUnchanged;
+
     @DataBoundConstructor
     public AzureCosmosDBCreateDocumentStep(String credentialsId, String database, String container, Object document) {
         this.credentialsId = Util.fixEmpty(credentialsId);
@@ -67,8 +89,33 @@ public class AzureCosmosDBCreateDocumentStep extends Step {
         requireNonNull(run, "Run must not be null");
         Job<?, ?> item = run.getParent();
 
-        CosmosClient cosmosClient = AzureCosmosDBCache.get(credentialsId, item);
-        return new Execution(context, cosmosClient, database, container, document);
+        CosmosContext block = context.get(CosmosContext.class);
+        long timeoutSeconds = timeout == null ? 0 : timeout;
+        CosmosConnection connection =
+                CosmosContext.getConnection(block, credentialsId, item)
+                        .withTimeout(timeoutSeconds)
+                        .withPriority(priority, item);
+        StagedDocument staged = stage(run, document);
+        return new Execution(
+                context,
+                connection,
+                block == null || credentialsId != null ? credentialsId : block.getCredentialsId(),
+                CosmosContext.database(block, database),
+                CosmosContext.container(block, container),
+                staged == null ? document : null,
+                staged,
+                partitionKey,
+                partitionKeyPath,
+                skipIfUnchanged,
+                timeoutSeconds);
+    }
+
+    @CheckForNull
+    private static StagedDocument stage(Run<?, ?> run, @CheckForNull Object document) throws IOException {
+        if (document == null || STAGE_THRESHOLD_BYTES < 0) {
+            return null;
+        }
+        return StagedDocument.stage(run, document, STAGE_THRESHOLD_BYTES);
     }
 
     public Object getDocument() {
@@ -87,6 +134,63 @@ public class AzureCosmosDBCreateDocumentStep extends Step {
         return credentialsId;
     }
 
+    public Object getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * Partition key value of the document, if not set it is read from the document using {@link
+     * #getPartitionKeyPath()} or the container's partition key definition.
+     */
+    @DataBoundSetter
+    public void setPartitionKey(Object partitionKey) {
+        this.partitionKey = partitionKey instanceof String ? Util.fixEmpty((String) partitionKey) : partitionKey;
+    }
+
+    public String getPartitionKeyPath() {
+        return partitionKeyPath;
+    }
+
+    /** Path of the partition key in the document, e.g. {@code /tenant}, saves looking up the container definition. */
+    @DataBoundSetter
+    public void setPartitionKeyPath(String partitionKeyPath) {
+        this.partitionKeyPath = Util.fixEmpty(partitionKeyPath);
+    }
+
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    /** Seconds the step may take, queueing included, before it fails and its request is cancelled. */
+    @DataBoundSetter
+    public void setTimeout(Integer timeout) {
+        this.timeout = timeout == null || timeout <= 0 ? null : timeout;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    /** {@code low} or {@code high}, overrides the priority of the folder and credentials. */
+    @DataBoundSetter
+    public void setPriority(String priority) {
+        CosmosRequestPriority parsed = CosmosRequestPriority.parse(priority);
+        this.priority = parsed == null ? null : parsed.name();
+    }
+
+    public boolean isSkipIfUnchanged() {
+        return skipIfUnchanged;
+    }
+
+    /**
+     * Upserts the document only if its content changed since it was last written by the step, the document must have
+     * an id.
+     */
+    @DataBoundSetter
+    public void setSkipIfUnchanged(boolean skipIfUnchanged) {
+        this.skipIfUnchanged = skipIfUnchanged;
+    }
+
     @Extension
     public static class DescriptorImpl extends StepDescriptor {
 
@@ -108,6 +212,10 @@ public class AzureCosmosDBCreateDocumentStep extends Step {
             return "Create document in Azure Cosmos DB";
         }
 
+        public ListBoxModel doFillPriorityItems() {
+            return CosmosRequestPriority.items("Inherit");
+        }
+
         @POST
         public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String credentialsId) {
             StandardListBoxModel result = new StandardListBoxModel();
@@ -132,45 +240,268 @@ public class AzureCosmosDBCreateDocumentStep extends Step {
     }
 
     @SuppressFBWarnings(value = "SE_NO_SERIALVERSIONID", justification = "Not used in XStream")
-    private static class Execution extends SynchronousNonBlockingStepExecution<Void> {
+    private static class Execution extends CosmosStepExecution<Map<String, Object>> {
 
-        private final transient CosmosClient client;
+        private final transient CosmosConnection connection;
+        private final String credentialsId;
         private final String database;
         private final String container;
         private final Object document;
+        private final StagedDocument staged;
+        private final Object partitionKey;
+        private final String partitionKeyPath;
+        private final boolean skipIfUnchanged;
 
         protected Execution(
-                @NonNull StepContext context, CosmosClient client, String database, String container, Object document) {
-            super(context);
-            this.client = client;
+                @NonNull StepContext context,
+                CosmosConnection connection,
+                String credentialsId,
+                String database,
+                String container,
+                Object document,
+                @CheckForNull StagedDocument staged,
+                Object partitionKey,
+                String partitionKeyPath,
+                boolean skipIfUnchanged,
+                long timeoutSeconds) {
+            super(context, connection, timeoutSeconds);
+            this.connection = connection;
+            this.credentialsId = credentialsId;
             this.database = database;
             this.container = container;
             this.document = document;
+            this.staged = staged;
+            this.partitionKey = partitionKey;
+            this.partitionKeyPath = partitionKeyPath;
+            this.skipIfUnchanged = skipIfUnchanged;
         }
 
         @Override
-        protected Void run() throws Exception {
+        protected Map<String, Object> run() throws Exception {
             requireNonNull(database, "Database must be set");
             requireNonNull(container, "Container must be set");
-            requireNonNull(document, "Document must be set");
+            requireNonNull(staged == null ? document : staged, "Document must be set");
 
-            CosmosDatabase cosmosDatabase = client.getDatabase(database);
-            CosmosContainer cosmosContainer = cosmosDatabase.getContainer(container);
-            Object tmpDocument = document;
-            if (document instanceof String) {
-                ObjectNode node = (ObjectNode) OBJECT_MAPPER.readTree((String) document);
-                tmpDocument = OBJECT_MAPPER.treeToValue(node, Object.class);
+            Run<?, ?> run = getContext().get(Run.class);
+            TaskListener taskListener = getContext().get(TaskListener.class);
+
+            CachedContainer cosmosContainer = connection.getContainer(database, container);
+            ObjectNode node = readDocument();
+            PartitionKey key = cosmosContainer.partitionKey(node, partitionKey, partitionKeyPath);
+            if (skipIfUnchanged) {
+                return writeIfChanged(run, taskListener, cosmosContainer, node, key);
+            }
+            CosmosItemResponse<ObjectNode> response;
+            try {
+                response = cosmosContainer.getContainer().createItem(node, key, connection.itemRequestOptions());
+            } catch (CosmosException e) {
+                cosmosContainer.onFailure(e);
+                CosmosMetrics.recordFailure("create", database, container, e);
+                throw e;
+            }
+
+            CosmosOperationResult result = CosmosOperationResult.fromResponse(
+                    "create",
+                    database,
+                    container,
+                    node.path("id").asText(null),
+                    response,
+                    connection.isHedged(response.getDiagnostics()));
+            CosmosOperationRecorder.record(run, taskListener, result, response.getDiagnostics());
+            if (taskListener != null) {
+                taskListener
+                        .getLogger()
+                        .printf(
+                                "Created document in database: %s, container: %s (%.2f RU, %d ms%s)%n",
+                                database,
+                                container,
+                                result.getRequestCharge(),
+                                result.getLatencyMillis(),
+                                result.isHedged() ? ", hedged to " + String.join(", ", result.getRegions()) : "");
+            }
+
+            return result.toMap();
+        }
+
+        /**
+         * Upserts the document unless the hash of its content matches the one cached for it, or the one stored in the
+         * document. The stored hash is read with a point read, which costs less than a write.
+         */
+        private Map<String, Object> writeIfChanged(
+                Run<?, ?> run,
+                TaskListener taskListener,
+                CachedContainer cosmosContainer,
+                ObjectNode node,
+                PartitionKey key) {
+            String id = node.path("id").asText(null);
+            if (id == null) {
+                throw new IllegalArgumentException("Document must have an id to be skipped when unchanged");
+            }
+            String hash = ContentHashCache.hash(node);
+            node.put(ContentHashCache.PROPERTY, hash);
+            String cacheKey = ContentHashCache.key(connection.getAccount(), database, container, key, id);
+
+            if (hash.equals(ContentHashCache.get(cacheKey))) {
+                CosmosOperationResult result = new CosmosOperationResult(
+                        "create",
+                        database,
+                        container,
+                        id,
+                        null,
+                        HttpURLConnection.HTTP_NOT_MODIFIED,
+                        0,
+                        Duration.ZERO,
+                        Collections.emptyList());
+                return skipped(taskListener, result);
+            }
+
+            CosmosItemResponse<ObjectNode> stored = null;
+            try {
+                stored = cosmosContainer
+                        .getContainer()
+                        .readItem(id, key, connection.itemRequestOptions(), ObjectNode.class);
+            } catch (CosmosException e) {
+                if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                    CosmosMetrics.recordFailure("read", database, container, e);
+                    throw e;
+                }
+            }
+            if (stored != null && hash.equals(stored.getItem().path(ContentHashCache.PROPERTY).asText(null))) {
+                ContentHashCache.put(cacheKey, hash);
+                CosmosOperationResult result = new CosmosOperationResult(
+                        "create",
+                        database,
+                        container,
+                        id,
+                        stored.getETag(),
+                        HttpURLConnection.HTTP_NOT_MODIFIED,
+                        stored.getRequestCharge(),
+                        stored.getDuration(),
+                        CosmosOperationResult.contactedRegions(stored.getDiagnostics()));
+                CosmosOperationRecorder.record(run, taskListener, result, stored.getDiagnostics());
+                return skipped(taskListener, result);
+            }
+            if (stored != null) {
+                CosmosOperationRecorder.record(
+                        run,
+                        taskListener,
+                        CosmosOperationResult.fromResponse("read", database, container, id, stored),
+                        stored.getDiagnostics());
             }
-            cosmosContainer.createItem(tmpDocument);
 
+            CosmosItemResponse<ObjectNode> response;
+            try {
+                response = cosmosContainer.getContainer().upsertItem(node, key, connection.itemRequestOptions());
+            } catch (CosmosException e) {
+                cosmosContainer.onFailure(e);
+                CosmosMetrics.recordFailure("upsert", database, container, e);
+                throw e;
+            }
+            ContentHashCache.put(cacheKey, hash);
+
+            CosmosOperationResult result = CosmosOperationResult.fromResponse(
+                    "upsert", database, container, id, response, connection.isHedged(response.getDiagnostics()));
+            CosmosOperationRecorder.record(run, taskListener, result, response.getDiagnostics());
+            if (taskListener != null) {
+                taskListener
+                        .getLogger()
+                        .printf(
+                                "Wrote changed document %s in database: %s, container: %s (%.2f RU, %d ms)%n",
+                                id,
+                                database,
+                                container,
+                                result.getRequestCharge(),
+                                result.getLatencyMillis());
+            }
+            Map<String, Object> map = result.toMap();
+            map.put("written", 1);
+            map.put("skipped", 0);
+            return map;
+        }
+
+        private Map<String, Object> skipped(TaskListener taskListener, CosmosOperationResult result) {
+            if (taskListener != null) {
+                taskListener
+                        .getLogger()
+                        .printf(
+                                "Skipped unchanged document %s in database: %s, container: %s (%.2f RU)%n",
+                                result.getId(),
+                                database,
+                                container,
+                                result.getRequestCharge());
+            }
+            Map<String, Object> map = result.toMap();
+            map.put("written", 0);
+            map.put("skipped", 1);
+            return map;
+        }
+
+        /** Keeps the document on disk to be created once the account recovers, if spooling is configured. */
+        @Override
+        protected Map<String, Object> whenOpen(CosmosCircuitBreaker breaker) throws Exception {
+            if (CosmosCircuitBreaker.getAction() != CircuitBreakerAction.SPOOL) {
+                return super.whenOpen(breaker);
+            }
+            requireNonNull(database, "Database must be set");
+            requireNonNull(container, "Container must be set");
+            requireNonNull(staged == null ? document : staged, "Document must be set");
+
+            Run<?, ?> run = getContext().get(Run.class);
+            ObjectNode node = readDocument();
+            if (skipIfUnchanged && node.path("id").asText(null) == null) {
+                throw new IllegalArgumentException("Document must have an id to be skipped when unchanged");
+            }
+            CosmosSpool.spool(
+                    breaker.getAccount(),
+                    credentialsId,
+                    run == null ? null : run.getParent(),
+                    database,
+                    container,
+                    node,
+                    partitionKey,
+                    partitionKeyPath,
+                    skipIfUnchanged);
             TaskListener taskListener = getContext().get(TaskListener.class);
             if (taskListener != null) {
                 taskListener
                         .getLogger()
-                        .printf("Created document in database: %s, container: %s%n", database, container);
+                        .printf(
+                                "Cosmos DB account %s is failing, spooled document for database: %s, container: %s, "
+                                        + "it will be written once the account recovers%n",
+                                breaker.getAccount(),
+                                database,
+                                container);
             }
+            Map<String, Object> result = new CosmosOperationResult(
+                            "create",
+                            database,
+                            container,
+                            node.path("id").asText(null),
+                            null,
+                            HttpURLConnection.HTTP_ACCEPTED,
+                            0,
+                            Duration.ZERO,
+                            Collections.emptyList())
+                    .toMap();
+            result.put("spooled", true);
+            return result;
+        }
 
-            return null;
+        private ObjectNode readDocument() throws IOException {
+            if (staged != null) {
+                return staged.read();
+            }
+            if (document instanceof String) {
+                return (ObjectNode) OBJECT_MAPPER.readTree((String) document);
+            }
+            return OBJECT_MAPPER.valueToTree(document);
+        }
+
+        @Override
+        protected void cleanUp() {
+            if (staged != null) {
+                staged.release();
+            }
         }
     }
 }
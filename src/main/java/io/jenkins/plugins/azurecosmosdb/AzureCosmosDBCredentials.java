@@ -9,4 +9,29 @@ public interface AzureCosmosDBCredentials extends StandardCredentials {
     String getPreferredRegion();
 
     String getUrl();
+
+    /** Seconds an operation may take in total, across retries and hedges, before it is cancelled. */
+    default Integer getEndToEndTimeoutSeconds() {
+        return null;
+    }
+
+    /** Milliseconds to wait for the preferred region before hedging the request to the next region. */
+    default Integer getHedgeThresholdMillis() {
+        return null;
+    }
+
+    /** Milliseconds between hedging to each further region. */
+    default Integer getHedgeThresholdStepMillis() {
+        return null;
+    }
+
+    /** Comma separated regions requests may be hedged to, in order. */
+    default String getHedgeRegions() {
+        return null;
+    }
+
+    /** Priority of requests, {@code LOW} or {@code HIGH}, used unless a step or folder sets one. */
+    default String getPriority() {
+        return null;
+    }
 }
@@ -10,18 +10,36 @@ import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.microsoft.azure.util.AzureBaseCredentials;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Item;
 import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBCache.CacheKey;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
@@ -30,6 +48,11 @@ public class AzureCosmosDBCredentialsImpl extends BaseStandardCredentials implem
     private final String credentialsId;
     private final String preferredRegion;
     private final String url;
+    private Integer endToEndTimeoutSeconds;
+    private Integer hedgeThresholdMillis;
+    private Integer hedgeThresholdStepMillis;
+    private String hedgeRegions;
+    private CosmosRequestPriority priority;
 
     @DataBoundConstructor
     public AzureCosmosDBCredentialsImpl(
@@ -60,13 +83,84 @@ public class AzureCosmosDBCredentialsImpl extends BaseStandardCredentials implem
         return url;
     }
 
+    @Override
+    public Integer getEndToEndTimeoutSeconds() {
+        return endToEndTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setEndToEndTimeoutSeconds(Integer endToEndTimeoutSeconds) {
+        this.endToEndTimeoutSeconds = positive(endToEndTimeoutSeconds);
+    }
+
+    @Override
+    public Integer getHedgeThresholdMillis() {
+        return hedgeThresholdMillis;
+    }
+
+    @DataBoundSetter
+    public void setHedgeThresholdMillis(Integer hedgeThresholdMillis) {
+        this.hedgeThresholdMillis = positive(hedgeThresholdMillis);
+    }
+
+    @Override
+    public Integer getHedgeThresholdStepMillis() {
+        return hedgeThresholdStepMillis;
+    }
+
+    @DataBoundSetter
+    public void setHedgeThresholdStepMillis(Integer hedgeThresholdStepMillis) {
+        this.hedgeThresholdStepMillis = positive(hedgeThresholdStepMillis);
+    }
+
+    @Override
+    public String getHedgeRegions() {
+        return hedgeRegions;
+    }
+
+    @DataBoundSetter
+    public void setHedgeRegions(String hedgeRegions) {
+        this.hedgeRegions = Util.fixEmptyAndTrim(hedgeRegions);
+    }
+
+    @Override
+    public String getPriority() {
+        return priority == null ? null : priority.name();
+    }
+
+    @DataBoundSetter
+    public void setPriority(String priority) {
+        this.priority = CosmosRequestPriority.parse(priority);
+    }
+
+    private static Integer positive(Integer value) {
+        return value == null || value <= 0 ? null : value;
+    }
+
     @Extension
     public static class DescriptorImpl extends BaseStandardCredentialsDescriptor {
+
+        private static final long TEST_CONNECTION_TIMEOUT_SECONDS = SystemProperties.getLong(
+                AzureCosmosDBCredentialsImpl.class.getName() + ".TEST_CONNECTION_TIMEOUT_SECONDS", 15L);
+
+        // Repeated clicks on test connection within a short window reuse the previous successful result
+        private static final Cache<List<Object>, FormValidation> RESULTS = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(1))
+                .maximumSize(100)
+                .build();
+
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "Azure Cosmos DB test connection"));
+
         @Override
         public String getDisplayName() {
             return "Azure Cosmos DB";
         }
 
+        public ListBoxModel doFillPriorityItems() {
+            return CosmosRequestPriority.items("Not set");
+        }
+
         @POST
         public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String credentialsId) {
             StandardListBoxModel result = new StandardListBoxModel();
@@ -117,11 +211,52 @@ public class AzureCosmosDBCredentialsImpl extends BaseStandardCredentials implem
                 return FormValidation.error("Cannot find currently selected credentials");
             }
 
-            try (CosmosClient client = CredentialsHelper.createClient(credentials, preferredRegion, url)) {
-                return FormValidation.ok(
-                        "Found " + client.readAllDatabases().stream().count() + " database(s).");
-            } catch (RuntimeException e) {
-                return FormValidation.error(e, "Failed to validate credentials: " + e.getMessage());
+            // the cache key leaves out account keys as they are rotated in place, a new key deserves a new test
+            Secret accountKey = credentials instanceof AzureCosmosDBKeyCredentials
+                    ? ((AzureCosmosDBKeyCredentials) credentials).getKey()
+                    : null;
+            String origin = CredentialsHelper.origin(credentials, item);
+            List<Object> key = Arrays.asList(
+                    new CacheKey(credentials, url, origin), Util.fixEmptyAndTrim(preferredRegion), accountKey);
+            FormValidation result = RESULTS.getIfPresent(key);
+            if (result == null) {
+                result = testConnection(credentials, preferredRegion, url);
+                // a fixed account or firewall rule should show up on the next click
+                if (result.kind == FormValidation.Kind.OK) {
+                    RESULTS.put(key, result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Connects with a client of its own that is closed afterwards, so whatever is typed into the form doesn't
+         * change the cached clients builds use, and gives up after {@link #TEST_CONNECTION_TIMEOUT_SECONDS} rather
+         * than holding the request thread while the SDK retries an unreachable account.
+         */
+        private static FormValidation testConnection(
+                StandardCredentials credentials, String preferredRegion, String url) {
+            Future<FormValidation> future = EXECUTOR.submit(() -> {
+                try (CosmosClient client = CredentialsHelper.createClient(credentials, preferredRegion, url)) {
+                    // a single page of at most one database is enough to prove the account accepts the credentials
+                    client.readAllDatabases().iterableByPage(1).iterator().hasNext();
+                }
+                return FormValidation.ok("Connected successfully.");
+            });
+            try {
+                return future.get(TEST_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                return FormValidation.error(
+                        "Failed to validate credentials: no response after " + TEST_CONNECTION_TIMEOUT_SECONDS
+                                + " seconds");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                return FormValidation.error(cause, "Failed to validate credentials: " + cause.getMessage());
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                return FormValidation.error("Failed to validate credentials: interrupted");
             }
         }
     }
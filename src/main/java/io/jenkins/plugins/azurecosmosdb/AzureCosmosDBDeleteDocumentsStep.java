@@ -0,0 +1,420 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
+import static java.util.Objects.requireNonNull;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosBulkExecutionOptions;
+import com.azure.cosmos.models.CosmosBulkItemResponse;
+import com.azure.cosmos.models.CosmosBulkOperationResponse;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.azure.cosmos.models.FeedResponse;
+import com.azure.cosmos.models.PartitionKey;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import io.jenkins.plugins.azurecosmosdb.ContainerMetadataCache.CachedContainer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Deletes, or sets a time to live on, every document matching a query. Matches are read a page at a time and each
+ * page is written with bulk operations, so a large cleanup doesn't cost a round trip per document.
+ */
+public class AzureCosmosDBDeleteDocumentsStep extends Step {
+
+    static final int DEFAULT_PAGE_SIZE = 1000;
+
+    // The SDK accepts between 1 and 5 concurrent micro batches per partition
+    static final int MAX_CONCURRENCY = 5;
+
+    // Failures beyond this many are counted but not logged individually
+    private static final int MAX_LOGGED_FAILURES = 10;
+
+    private final String credentialsId;
+    private final String database;
+    private final String container;
+    private final String query;
+
+    private String partitionKeyPath;
+    private Double maxRequestCharge;
+    private Integer concurrency;
+    private Integer pageSize;
+    private Integer ttl;
+    private String continuationToken;
+    private boolean dryRun;
+    private Integer timeout;
+    private String priority;
+
+    @DataBoundConstructor
+    public AzureCosmosDBDeleteDocumentsStep(String credentialsId, String database, String container, String query) {
+        this.credentialsId = Util.fixEmpty(credentialsId);
+        this.database = Util.fixEmpty(database);
+        this.container = Util.fixEmpty(container);
+        this.query = Util.fixEmptyAndTrim(query);
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+
+        Run<?, ?> run = context.get(Run.class);
+        requireNonNull(run, "Run must not be null");
+        Job<?, ?> item = run.getParent();
+
+        CosmosContext block = context.get(CosmosContext.class);
+        CosmosConnection connection = CosmosContext.getConnection(block, credentialsId, item)
+                .withTimeout(timeout == null ? 0 : timeout)
+                .withPriority(priority, item);
+        return new Execution(context, connection, block, this);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String getPartitionKeyPath() {
+        return partitionKeyPath;
+    }
+
+    /** Path of the partition key in the query results, e.g. {@code /tenant}, defaults to the container definition. */
+    @DataBoundSetter
+    public void setPartitionKeyPath(String partitionKeyPath) {
+        this.partitionKeyPath = Util.fixEmpty(partitionKeyPath);
+    }
+
+    public Double getMaxRequestCharge() {
+        return maxRequestCharge;
+    }
+
+    /** Request units the step may use, it stops after the page that exceeds them and can be resumed later. */
+    @DataBoundSetter
+    public void setMaxRequestCharge(Double maxRequestCharge) {
+        this.maxRequestCharge = maxRequestCharge;
+    }
+
+    public Integer getConcurrency() {
+        return concurrency;
+    }
+
+    /** Micro batches sent to each partition at a time, between 1 and {@value #MAX_CONCURRENCY}. */
+    @DataBoundSetter
+    public void setConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /** Matching documents read per query page, each page is written as one bulk request. */
+    @DataBoundSetter
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public Integer getTtl() {
+        return ttl;
+    }
+
+    /** Sets this time to live in seconds on matching documents instead of deleting them, the server removes them. */
+    @DataBoundSetter
+    public void setTtl(Integer ttl) {
+        this.ttl = ttl;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /** Resumes a previous run that stopped at its request charge limit. */
+    @DataBoundSetter
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = Util.fixEmpty(continuationToken);
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /** Only counts the matching documents. */
+    @DataBoundSetter
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    /** Seconds the step may take, queueing included, before it fails and its request is cancelled. */
+    @DataBoundSetter
+    public void setTimeout(Integer timeout) {
+        this.timeout = timeout == null || timeout <= 0 ? null : timeout;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    /** {@code low} or {@code high}, overrides the priority of the folder and credentials. */
+    @DataBoundSetter
+    public void setPriority(String priority) {
+        CosmosRequestPriority parsed = CosmosRequestPriority.parse(priority);
+        this.priority = parsed == null ? null : parsed.name();
+    }
+
+    static int microBatchConcurrency(Integer concurrency) {
+        if (concurrency == null) {
+            return 1;
+        }
+        return Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+    }
+
+    static CosmosItemOperation toOperation(String id, PartitionKey partitionKey, Integer ttl) {
+        if (ttl == null) {
+            return CosmosBulkOperations.getDeleteItemOperation(id, partitionKey);
+        }
+        return CosmosBulkOperations.getPatchItemOperation(
+                id, partitionKey, CosmosPatchOperations.create().set("/ttl", ttl));
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureCosmosDBDeleteDocuments";
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Delete documents matching a query in Azure Cosmos DB";
+        }
+
+        public ListBoxModel doFillPriorityItems() {
+            return CosmosRequestPriority.items("Inherit");
+        }
+
+        @POST
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String credentialsId) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            if (item == null) {
+                if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            } else {
+                if (!item.hasPermission(Item.EXTENDED_READ) && !item.hasPermission(CredentialsProvider.USE_ITEM)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            }
+            return result.includeEmptyValue()
+                    .includeMatchingAs(
+                            ACL.SYSTEM,
+                            item,
+                            AzureCosmosDBCredentials.class,
+                            Collections.emptyList(),
+                            instanceOf(AzureCosmosDBCredentials.class))
+                    .includeCurrentValue(credentialsId);
+        }
+    }
+
+    @SuppressFBWarnings(value = "SE_NO_SERIALVERSIONID", justification = "Not used in XStream")
+    private static class Execution extends CosmosStepExecution<Map<String, Object>> {
+
+        private final transient CosmosConnection connection;
+        private final String database;
+        private final String container;
+        private final String query;
+        private final String partitionKeyPath;
+        private final Double maxRequestCharge;
+        private final int concurrency;
+        private final int pageSize;
+        private final Integer ttl;
+        private final String continuationToken;
+        private final boolean dryRun;
+
+        protected Execution(
+                @NonNull StepContext context,
+                CosmosConnection connection,
+                CosmosContext block,
+                AzureCosmosDBDeleteDocumentsStep step) {
+            super(context, connection, step.timeout == null ? 0 : step.timeout);
+            this.connection = connection;
+            this.database = CosmosContext.database(block, step.database);
+            this.container = CosmosContext.container(block, step.container);
+            this.query = step.query;
+            this.partitionKeyPath = step.partitionKeyPath;
+            this.maxRequestCharge = step.maxRequestCharge;
+            this.concurrency = microBatchConcurrency(step.concurrency);
+            this.pageSize = step.pageSize == null ? DEFAULT_PAGE_SIZE : step.pageSize;
+            this.ttl = step.ttl;
+            this.continuationToken = step.continuationToken;
+            this.dryRun = step.dryRun;
+        }
+
+        @Override
+        protected Map<String, Object> run() throws Exception {
+            requireNonNull(database, "Database must be set");
+            requireNonNull(container, "Container must be set");
+            requireNonNull(query, "Query must be set");
+
+            Run<?, ?> run = getContext().get(Run.class);
+            TaskListener taskListener = getContext().get(TaskListener.class);
+
+            CachedContainer cosmosContainer = connection.getContainer(database, container);
+            CosmosContainer client = cosmosContainer.getContainer();
+            CosmosBulkExecutionOptions bulkOptions = connection.bulkExecutionOptions();
+            bulkOptions.setMaxMicroBatchConcurrency(concurrency);
+
+            long started = System.nanoTime();
+            long matched = 0;
+            long written = 0;
+            long failed = 0;
+            double requestCharge = 0;
+            String nextToken = continuationToken;
+            boolean complete = true;
+
+            try {
+                for (FeedResponse<ObjectNode> page : client.queryItems(
+                                query, connection.queryRequestOptions(), ObjectNode.class)
+                        .iterableByPage(continuationToken, pageSize)) {
+                    requestCharge += page.getRequestCharge();
+                    nextToken = page.getContinuationToken();
+                    matched += page.getResults().size();
+
+                    if (!dryRun && !page.getResults().isEmpty()) {
+                        List<CosmosItemOperation> operations = new ArrayList<>();
+                        for (ObjectNode document : page.getResults()) {
+                            String id = document.path("id").asText();
+                            PartitionKey key = cosmosContainer.partitionKey(document, null, partitionKeyPath);
+                            operations.add(toOperation(id, key, ttl));
+                            // creating the document again mustn't be skipped as unchanged
+                            ContentHashCache.invalidate(
+                                    ContentHashCache.key(connection.getAccount(), database, container, key, id));
+                        }
+                        for (CosmosBulkOperationResponse<Object> response :
+                                client.executeBulkOperations(operations, bulkOptions)) {
+                            CosmosBulkItemResponse itemResponse = response.getResponse();
+                            if (itemResponse != null) {
+                                requestCharge += itemResponse.getRequestCharge();
+                            }
+                            // a document that is already gone is what we wanted
+                            if (itemResponse != null
+                                    && (itemResponse.isSuccessStatusCode() || itemResponse.getStatusCode() == 404)) {
+                                written++;
+                            } else {
+                                if (failed < MAX_LOGGED_FAILURES && taskListener != null) {
+                                    taskListener
+                                            .getLogger()
+                                            .printf(
+                                                    "Failed to %s document %s: %s%n",
+                                                    ttl == null ? "delete" : "update",
+                                                    response.getOperation().getId(),
+                                                    itemResponse == null
+                                                            ? response.getException()
+                                                            : "status " + itemResponse.getStatusCode());
+                                }
+                                failed++;
+                            }
+                        }
+                    }
+
+                    if (nextToken != null && maxRequestCharge != null && requestCharge >= maxRequestCharge) {
+                        complete = false;
+                        break;
+                    }
+                }
+            } catch (CosmosException e) {
+                CosmosMetrics.recordFailure("deleteByQuery", database, container, e);
+                throw e;
+            }
+
+            CosmosOperationResult result = new CosmosOperationResult(
+                    "deleteByQuery",
+                    database,
+                    container,
+                    null,
+                    null,
+                    200,
+                    requestCharge,
+                    Duration.ofNanos(System.nanoTime() - started),
+                    null);
+            CosmosOperationRecorder.record(run, taskListener, result, null);
+            String action = ttl == null ? "deleted" : "updated";
+            if (taskListener != null) {
+                taskListener
+                        .getLogger()
+                        .printf(
+                                "%s %d of %d matching documents in database: %s, container: %s (%.2f RU, %d ms)%s%n",
+                                dryRun ? "Would have " + action : "Successfully " + action,
+                                dryRun ? matched : written,
+                                matched,
+                                database,
+                                container,
+                                requestCharge,
+                                result.getLatencyMillis(),
+                                complete ? "" : ", stopped at the request charge limit");
+            }
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("matched", matched);
+            map.put(action, written);
+            map.put("failed", failed);
+            map.put("requestCharge", requestCharge);
+            map.put("latencyMillis", result.getLatencyMillis());
+            map.put("complete", complete);
+            map.put("continuationToken", complete ? null : nextToken);
+            map.put("dryRun", dryRun);
+            return map;
+        }
+    }
+}
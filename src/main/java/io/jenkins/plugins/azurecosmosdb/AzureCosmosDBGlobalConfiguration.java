@@ -0,0 +1,351 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
+
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import io.jenkins.plugins.azurecosmosdb.CredentialsHelper.ConnectionSettings;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.verb.POST;
+
+/** Controller wide settings for the Azure Cosmos DB plugin. */
+@Extension
+@Symbol("azureCosmosDB")
+public class AzureCosmosDBGlobalConfiguration extends GlobalConfiguration {
+
+    private static final int DEFAULT_QUOTA_PERIOD_MINUTES = 60;
+
+    public enum CircuitBreakerAction {
+        /** Operations on an account are never held back. */
+        DISABLED,
+        /** Steps fail straight away while the account's breaker is open. */
+        FAIL,
+        /** Documents are written to the controller's disk while the account's breaker is open and replayed later. */
+        SPOOL
+    }
+
+    private int quotaPeriodMinutes = DEFAULT_QUOTA_PERIOD_MINUTES;
+    private List<FolderSettings> folders = new ArrayList<>();
+
+    // client cache, connection and concurrency settings, null keeps the system property default
+    private Integer cacheSize;
+    private Integer cacheIdleMinutes;
+    private Integer cacheDurationHours;
+    private Integer maxConnectionPoolSize;
+    private Integer idleConnectionTimeoutSeconds;
+    private Integer maxConcurrency;
+    private Integer maxConcurrencyPerAccount;
+
+    // circuit breaker settings, null keeps the default
+    private CircuitBreakerAction circuitBreakerAction;
+    private Integer circuitBreakerFailureRate;
+    private Integer circuitBreakerOpenSeconds;
+    private Integer spoolMaxMegabytes;
+
+    // pipeline log storage, enabled once credentials and a container are set
+    private String logStorageCredentialsId;
+    private String logStorageDatabase;
+    private String logStorageContainer;
+
+    public AzureCosmosDBGlobalConfiguration() {
+        load();
+        applySettings();
+    }
+
+    public static AzureCosmosDBGlobalConfiguration get() {
+        return ExtensionList.lookupSingleton(AzureCosmosDBGlobalConfiguration.class);
+    }
+
+    @Override
+    public boolean configure(StaplerRequest2 req, JSONObject json) throws FormException {
+        // the form leaves out a repeatable property whose last row was deleted, which binding would then keep
+        setFolders(null);
+        boolean result = super.configure(req, json);
+        save();
+        return result;
+    }
+
+    /**
+     * Saves and applies the settings once they've all been set. Configuration as code sets them inside a bulk change
+     * that saves once committed, so it ends up here too.
+     */
+    @Override
+    public synchronized void save() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        super.save();
+        applySettings();
+    }
+
+    /** Length of the window that folder request unit quotas apply to. */
+    public int getQuotaPeriodMinutes() {
+        return quotaPeriodMinutes;
+    }
+
+    @DataBoundSetter
+    public void setQuotaPeriodMinutes(int quotaPeriodMinutes) {
+        this.quotaPeriodMinutes = quotaPeriodMinutes > 0 ? quotaPeriodMinutes : DEFAULT_QUOTA_PERIOD_MINUTES;
+    }
+
+    @NonNull
+    public List<FolderSettings> getFolders() {
+        return folders == null ? Collections.emptyList() : Collections.unmodifiableList(folders);
+    }
+
+    @DataBoundSetter
+    public void setFolders(List<FolderSettings> folders) {
+        this.folders = folders == null ? new ArrayList<>() : new ArrayList<>(folders);
+    }
+
+    /** Number of clients to cache, each for an account and authentication. */
+    @CheckForNull
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    @DataBoundSetter
+    public void setCacheSize(Integer cacheSize) {
+        this.cacheSize = positive(cacheSize);
+    }
+
+    /** Clients that haven't been used for this long are closed. */
+    @CheckForNull
+    public Integer getCacheIdleMinutes() {
+        return cacheIdleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setCacheIdleMinutes(Integer cacheIdleMinutes) {
+        this.cacheIdleMinutes = positive(cacheIdleMinutes);
+    }
+
+    /** Maximum lifetime of a client regardless of use, 0 lets clients in use live indefinitely. */
+    @CheckForNull
+    public Integer getCacheDurationHours() {
+        return cacheDurationHours;
+    }
+
+    @DataBoundSetter
+    public void setCacheDurationHours(Integer cacheDurationHours) {
+        this.cacheDurationHours = cacheDurationHours == null || cacheDurationHours < 0 ? null : cacheDurationHours;
+    }
+
+    /** Connections each client may open per endpoint. */
+    @CheckForNull
+    public Integer getMaxConnectionPoolSize() {
+        return maxConnectionPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnectionPoolSize(Integer maxConnectionPoolSize) {
+        this.maxConnectionPoolSize = positive(maxConnectionPoolSize);
+    }
+
+    /** Idle connections are closed after this long. */
+    @CheckForNull
+    public Integer getIdleConnectionTimeoutSeconds() {
+        return idleConnectionTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setIdleConnectionTimeoutSeconds(Integer idleConnectionTimeoutSeconds) {
+        this.idleConnectionTimeoutSeconds = positive(idleConnectionTimeoutSeconds);
+    }
+
+    /** Steps doing Cosmos DB work at once across the controller. */
+    @CheckForNull
+    public Integer getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(Integer maxConcurrency) {
+        this.maxConcurrency = positive(maxConcurrency);
+    }
+
+    /** Steps doing Cosmos DB work at once against the same account. */
+    @CheckForNull
+    public Integer getMaxConcurrencyPerAccount() {
+        return maxConcurrencyPerAccount;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrencyPerAccount(Integer maxConcurrencyPerAccount) {
+        this.maxConcurrencyPerAccount = positive(maxConcurrencyPerAccount);
+    }
+
+    /** What steps do while an account keeps failing, {@link CircuitBreakerAction#DISABLED} when not set. */
+    @CheckForNull
+    public CircuitBreakerAction getCircuitBreakerAction() {
+        return circuitBreakerAction;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerAction(CircuitBreakerAction circuitBreakerAction) {
+        this.circuitBreakerAction = circuitBreakerAction;
+    }
+
+    /** Percentage of failed operations that opens an account's circuit breaker. */
+    @CheckForNull
+    public Integer getCircuitBreakerFailureRate() {
+        return circuitBreakerFailureRate;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerFailureRate(Integer circuitBreakerFailureRate) {
+        this.circuitBreakerFailureRate = circuitBreakerFailureRate == null
+                        || circuitBreakerFailureRate <= 0
+                        || circuitBreakerFailureRate > 100
+                ? null
+                : circuitBreakerFailureRate;
+    }
+
+    /** How long an open circuit breaker waits before letting a probe through. */
+    @CheckForNull
+    public Integer getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerOpenSeconds(Integer circuitBreakerOpenSeconds) {
+        this.circuitBreakerOpenSeconds = positive(circuitBreakerOpenSeconds);
+    }
+
+    /** Space documents spooled while an account is failing may take up on the controller's disk. */
+    @CheckForNull
+    public Integer getSpoolMaxMegabytes() {
+        return spoolMaxMegabytes;
+    }
+
+    @DataBoundSetter
+    public void setSpoolMaxMegabytes(Integer spoolMaxMegabytes) {
+        this.spoolMaxMegabytes = positive(spoolMaxMegabytes);
+    }
+
+    /** Connection credentials of the account pipeline logs are stored in, system scoped credentials included. */
+    @CheckForNull
+    public String getLogStorageCredentialsId() {
+        return logStorageCredentialsId;
+    }
+
+    @DataBoundSetter
+    public void setLogStorageCredentialsId(String logStorageCredentialsId) {
+        this.logStorageCredentialsId = Util.fixEmptyAndTrim(logStorageCredentialsId);
+    }
+
+    @CheckForNull
+    public String getLogStorageDatabase() {
+        return logStorageDatabase;
+    }
+
+    @DataBoundSetter
+    public void setLogStorageDatabase(String logStorageDatabase) {
+        this.logStorageDatabase = Util.fixEmptyAndTrim(logStorageDatabase);
+    }
+
+    /** Container pipeline logs are stored in, partitioned by {@code /run}. */
+    @CheckForNull
+    public String getLogStorageContainer() {
+        return logStorageContainer;
+    }
+
+    @DataBoundSetter
+    public void setLogStorageContainer(String logStorageContainer) {
+        this.logStorageContainer = Util.fixEmptyAndTrim(logStorageContainer);
+    }
+
+    /** Whether new pipeline builds write their logs to Cosmos DB. */
+    public boolean isLogStorageEnabled() {
+        return logStorageCredentialsId != null && logStorageDatabase != null && logStorageContainer != null;
+    }
+
+    private static Integer positive(Integer value) {
+        return value == null || value <= 0 ? null : value;
+    }
+
+    /**
+     * Applies the settings without a restart. The cache is resized in place and clients created with other
+     * connection settings are replaced as they are next used.
+     */
+    private void applySettings() {
+        CredentialsHelper.setConnectionSettings(new ConnectionSettings(
+                maxConnectionPoolSize == null ? CredentialsHelper.MAX_CONNECTION_POOL_SIZE : maxConnectionPoolSize,
+                Duration.ofSeconds(
+                        idleConnectionTimeoutSeconds == null
+                                ? CredentialsHelper.IDLE_CONNECTION_TIMEOUT_SECONDS
+                                : idleConnectionTimeoutSeconds)));
+        AzureCosmosDBCache.configure(cacheSize, cacheIdleMinutes, cacheDurationHours);
+        CosmosStepExecutor.configure(maxConcurrency, maxConcurrencyPerAccount);
+        CosmosCircuitBreaker.configure(circuitBreakerAction, circuitBreakerFailureRate, circuitBreakerOpenSeconds);
+        CosmosSpool.configure(spoolMaxMegabytes);
+    }
+
+    @POST
+    public ListBoxModel doFillLogStorageCredentialsIdItems(@QueryParameter String logStorageCredentialsId) {
+        StandardListBoxModel result = new StandardListBoxModel();
+        if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+            return result.includeCurrentValue(logStorageCredentialsId);
+        }
+        return result.includeEmptyValue()
+                .includeMatchingAs(
+                        ACL.SYSTEM,
+                        Jenkins.get(),
+                        AzureCosmosDBCredentials.class,
+                        Collections.emptyList(),
+                        instanceOf(AzureCosmosDBCredentials.class))
+                .includeCurrentValue(logStorageCredentialsId);
+    }
+
+    public ListBoxModel doFillCircuitBreakerActionItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add("Keep sending requests", CircuitBreakerAction.DISABLED.name());
+        items.add("Fail the step", CircuitBreakerAction.FAIL.name());
+        items.add("Spool created documents to disk", CircuitBreakerAction.SPOOL.name());
+        return items;
+    }
+
+    /** The priority set on the nearest folder containing the item that sets one. */
+    @CheckForNull
+    CosmosRequestPriority getFolderPriority(@CheckForNull Item item) {
+        ItemGroup<?> parent = item == null ? null : item.getParent();
+        while (parent instanceof Item) {
+            Item folder = (Item) parent;
+            FolderSettings settings = getFolderSettings(folder.getFullName());
+            if (settings != null && settings.getPriority() != null) {
+                return CosmosRequestPriority.parse(settings.getPriority());
+            }
+            parent = folder.getParent();
+        }
+        return null;
+    }
+
+    @CheckForNull
+    public FolderSettings getFolderSettings(String fullName) {
+        for (FolderSettings settings : getFolders()) {
+            if (settings.getFolder().equals(fullName)) {
+                return settings;
+            }
+        }
+        return null;
+    }
+}
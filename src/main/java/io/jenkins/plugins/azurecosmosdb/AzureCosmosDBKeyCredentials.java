@@ -6,4 +6,9 @@ import hudson.util.Secret;
 public interface AzureCosmosDBKeyCredentials extends StandardCredentials {
 
     Secret getKey();
+
+    /** The other account key, used when the account rejects {@link #getKey()}, e.g. while keys are rotated. */
+    default Secret getSecondaryKey() {
+        return null;
+    }
 }
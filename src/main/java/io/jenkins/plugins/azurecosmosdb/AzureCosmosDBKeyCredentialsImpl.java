@@ -4,17 +4,17 @@ import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
 import hudson.Extension;
 import hudson.util.Secret;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class AzureCosmosDBKeyCredentialsImpl extends BaseStandardCredentials implements AzureCosmosDBKeyCredentials {
 
     private final Secret key;
+    private Secret secondaryKey;
 
     @DataBoundConstructor
     public AzureCosmosDBKeyCredentialsImpl(String id, String description, Secret key) {
         super(id, description);
         this.key = key;
-
-        AzureCosmosDBCache.invalidateCache();
     }
 
     @Override
@@ -22,6 +22,16 @@ public class AzureCosmosDBKeyCredentialsImpl extends BaseStandardCredentials imp
         return key;
     }
 
+    @Override
+    public Secret getSecondaryKey() {
+        return secondaryKey;
+    }
+
+    @DataBoundSetter
+    public void setSecondaryKey(Secret secondaryKey) {
+        this.secondaryKey = secondaryKey == null || secondaryKey.getPlainText().isEmpty() ? null : secondaryKey;
+    }
+
     @Extension
     public static class DescriptorImpl extends BaseStandardCredentialsDescriptor {
 
@@ -0,0 +1,104 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import jenkins.model.RunAction2;
+
+/** Aggregates the cost and latency of the Cosmos DB operations performed by a build. */
+public class AzureCosmosDBRunAction implements RunAction2 {
+
+    private static final int MAX_TRACKED_OPERATIONS = 10;
+
+    private transient Run<?, ?> run;
+
+    private long operations;
+    private double totalRequestCharge;
+    private long totalLatencyMillis;
+    private final List<CosmosOperationResult> slowest = new ArrayList<>();
+    private final List<CosmosOperationResult> mostExpensive = new ArrayList<>();
+
+    static AzureCosmosDBRunAction forRun(Run<?, ?> run) {
+        synchronized (run) {
+            AzureCosmosDBRunAction action = run.getAction(AzureCosmosDBRunAction.class);
+            if (action == null) {
+                action = new AzureCosmosDBRunAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    synchronized void add(CosmosOperationResult result) {
+        operations++;
+        totalRequestCharge += result.getRequestCharge();
+        totalLatencyMillis += result.getLatencyMillis();
+        track(slowest, result, Comparator.comparingLong(CosmosOperationResult::getLatencyMillis));
+        track(mostExpensive, result, Comparator.comparingDouble(CosmosOperationResult::getRequestCharge));
+    }
+
+    private static void track(
+            List<CosmosOperationResult> results,
+            CosmosOperationResult result,
+            Comparator<CosmosOperationResult> comparator) {
+        results.add(result);
+        results.sort(comparator.reversed());
+        if (results.size() > MAX_TRACKED_OPERATIONS) {
+            results.remove(results.size() - 1);
+        }
+    }
+
+    public synchronized long getOperations() {
+        return operations;
+    }
+
+    public synchronized double getTotalRequestCharge() {
+        return totalRequestCharge;
+    }
+
+    public synchronized long getTotalLatencyMillis() {
+        return totalLatencyMillis;
+    }
+
+    public synchronized long getAverageLatencyMillis() {
+        return operations == 0 ? 0 : totalLatencyMillis / operations;
+    }
+
+    public synchronized List<CosmosOperationResult> getSlowest() {
+        return new ArrayList<>(slowest);
+    }
+
+    public synchronized List<CosmosOperationResult> getMostExpensive() {
+        return new ArrayList<>(mostExpensive);
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Azure Cosmos DB";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "azure-cosmosdb";
+    }
+}
@@ -0,0 +1,446 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
+import static java.util.Objects.requireNonNull;
+
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosBatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosBatchOperationResult;
+import com.azure.cosmos.models.CosmosBatchPatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosBatchResponse;
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Runs a list of operations against documents sharing a partition key as a single transactional batch, either all of
+ * them are applied or none are.
+ */
+public class AzureCosmosDBTransactionalBatchStep extends Step {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    // Service limit on the number of operations in a transactional batch
+    static final int MAX_OPERATIONS = 100;
+
+    private final String credentialsId;
+    private final String database;
+    private final String container;
+    private final Object partitionKey;
+    private final Object operations;
+
+    private boolean failOnError = true;
+    private Integer timeout;
+
+    @DataBoundConstructor
+    public AzureCosmosDBTransactionalBatchStep(
+            String credentialsId, String database, String container, Object partitionKey, Object operations) {
+        this.credentialsId = Util.fixEmpty(credentialsId);
+        this.database = Util.fixEmpty(database);
+        this.container = Util.fixEmpty(container);
+        this.partitionKey = partitionKey instanceof String ? Util.fixEmpty((String) partitionKey) : partitionKey;
+        this.operations = operations instanceof String ? Util.fixEmpty((String) operations) : operations;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+
+        Run<?, ?> run = context.get(Run.class);
+        requireNonNull(run, "Run must not be null");
+        Job<?, ?> item = run.getParent();
+
+        CosmosContext block = context.get(CosmosContext.class);
+        long timeoutSeconds = timeout == null ? 0 : timeout;
+        CosmosConnection connection = CosmosContext.getConnection(block, credentialsId, item);
+        return new Execution(
+                context,
+                connection,
+                CosmosContext.database(block, database),
+                CosmosContext.container(block, container),
+                partitionKey,
+                operations,
+                failOnError,
+                timeoutSeconds);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    public Object getPartitionKey() {
+        return partitionKey;
+    }
+
+    public Object getOperations() {
+        return operations;
+    }
+
+    public boolean isFailOnError() {
+        return failOnError;
+    }
+
+    /** Whether the step fails when the batch is rolled back, otherwise the result is returned for inspection. */
+    @DataBoundSetter
+    public void setFailOnError(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    /** Seconds the step may take, queueing included, before it fails and its request is cancelled. */
+    @DataBoundSetter
+    public void setTimeout(Integer timeout) {
+        this.timeout = timeout == null || timeout <= 0 ? null : timeout;
+    }
+
+    /**
+     * Builds the batch from the operations supplied to the step, either a list of maps such as {@code [type:
+     * 'upsert', document: [...]]} or the equivalent JSON array.
+     */
+    static CosmosBatch toBatch(Object partitionKey, Object operationsValue) throws JsonProcessingException {
+        List<Map<String, Object>> operations = toOperations(operationsValue);
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("A transactional batch must contain at least one operation");
+        }
+        if (operations.size() > MAX_OPERATIONS) {
+            throw new IllegalArgumentException("A transactional batch can contain at most " + MAX_OPERATIONS
+                    + " operations, got " + operations.size());
+        }
+        CosmosBatch batch = CosmosBatch.createCosmosBatch(ContainerMetadataCache.toPartitionKey(partitionKey));
+        for (int i = 0; i < operations.size(); i++) {
+            addOperation(batch, i, operations.get(i));
+        }
+        return batch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> toOperations(Object operations) throws JsonProcessingException {
+        Object value =
+                operations instanceof String ? OBJECT_MAPPER.readValue((String) operations, List.class) : operations;
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("Operations must be a list");
+        }
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Object operation : (List<?>) value) {
+            if (!(operation instanceof Map)) {
+                throw new IllegalArgumentException("Operation " + result.size() + " isn't a map");
+            }
+            result.add((Map<String, Object>) operation);
+        }
+        return result;
+    }
+
+    private static void addOperation(CosmosBatch batch, int index, Map<String, Object> operation)
+            throws JsonProcessingException {
+        Object type = operation.get("type");
+        if (type == null) {
+            throw new IllegalArgumentException("Operation " + index + " has no type");
+        }
+        ObjectNode document = toDocument(operation.get("document"));
+        String id = operation.get("id") == null ? null : operation.get("id").toString();
+        if (id == null && document != null) {
+            id = document.path("id").asText(null);
+        }
+        String ifMatch = operation.get("ifMatch") == null ? null : operation.get("ifMatch").toString();
+        CosmosBatchItemRequestOptions options = new CosmosBatchItemRequestOptions().setIfMatchETag(ifMatch);
+
+        switch (type.toString().toLowerCase(Locale.ENGLISH)) {
+            case "create":
+                batch.createItemOperation(requireDocument(index, document), options);
+                break;
+            case "upsert":
+                batch.upsertItemOperation(requireDocument(index, document), options);
+                break;
+            case "replace":
+                batch.replaceItemOperation(requireId(index, id), requireDocument(index, document), options);
+                break;
+            case "patch":
+                batch.patchItemOperation(
+                        requireId(index, id),
+                        toPatchOperations(index, operation.get("patch")),
+                        new CosmosBatchPatchItemRequestOptions().setIfMatchETag(ifMatch));
+                break;
+            case "delete":
+                batch.deleteItemOperation(requireId(index, id), options);
+                break;
+            case "read":
+                batch.readItemOperation(requireId(index, id), options);
+                break;
+            default:
+                throw new IllegalArgumentException("Operation " + index + " has unsupported type: " + type
+                        + ", expected one of create, upsert, replace, patch, delete or read");
+        }
+    }
+
+    private static CosmosPatchOperations toPatchOperations(int index, Object patch) {
+        if (!(patch instanceof List) || ((List<?>) patch).isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Operation " + index + " must have a list of patch operations, e.g. [[op: 'set', path: '/a']]");
+        }
+        CosmosPatchOperations patchOperations = CosmosPatchOperations.create();
+        for (Object entry : (List<?>) patch) {
+            if (!(entry instanceof Map)) {
+                throw new IllegalArgumentException("Operation " + index + " has a patch operation that isn't a map");
+            }
+            Map<?, ?> patchOperation = (Map<?, ?>) entry;
+            String op = String.valueOf(patchOperation.get("op")).toLowerCase(Locale.ENGLISH);
+            String path = (String) patchOperation.get("path");
+            Object value = patchOperation.get("value");
+            switch (op) {
+                case "add":
+                    patchOperations.add(path, value);
+                    break;
+                case "set":
+                    patchOperations.set(path, value);
+                    break;
+                case "replace":
+                    patchOperations.replace(path, value);
+                    break;
+                case "remove":
+                    patchOperations.remove(path);
+                    break;
+                case "increment":
+                    if (value instanceof Double || value instanceof Float) {
+                        patchOperations.increment(path, ((Number) value).doubleValue());
+                    } else if (value instanceof Number) {
+                        patchOperations.increment(path, ((Number) value).longValue());
+                    } else {
+                        throw new IllegalArgumentException(
+                                "Operation " + index + " increments " + path + " by a value that isn't a number");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Operation " + index + " has unsupported patch operation: "
+                            + op + ", expected one of add, set, replace, remove or increment");
+            }
+        }
+        return patchOperations;
+    }
+
+    private static ObjectNode toDocument(Object document) throws JsonProcessingException {
+        if (document == null) {
+            return null;
+        }
+        if (document instanceof String) {
+            return (ObjectNode) OBJECT_MAPPER.readTree((String) document);
+        }
+        return OBJECT_MAPPER.valueToTree(document);
+    }
+
+    private static ObjectNode requireDocument(int index, ObjectNode document) {
+        if (document == null) {
+            throw new IllegalArgumentException("Operation " + index + " must have a document");
+        }
+        return document;
+    }
+
+    private static String requireId(int index, String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Operation " + index + " must have an id");
+        }
+        return id;
+    }
+
+    /** Pipeline friendly representation of the result of each operation in the batch. */
+    static List<Map<String, Object>> toResults(CosmosBatchResponse response) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (CosmosBatchOperationResult operationResult : response.getResults()) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            String type = operationResult.getOperation().getOperationType().name();
+            result.put("operation", type.toLowerCase(Locale.ENGLISH));
+            result.put("id", operationResult.getOperation().getId());
+            result.put("statusCode", operationResult.getStatusCode());
+            result.put("etag", operationResult.getETag());
+            result.put("requestCharge", operationResult.getRequestCharge());
+            ObjectNode item = operationResult.getItem(ObjectNode.class);
+            if (item != null) {
+                result.put("document", OBJECT_MAPPER.convertValue(item, LinkedHashMap.class));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureCosmosDBTransactionalBatch";
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Run a transactional batch in Azure Cosmos DB";
+        }
+
+        @POST
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String credentialsId) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            if (item == null) {
+                if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            } else {
+                if (!item.hasPermission(Item.EXTENDED_READ) && !item.hasPermission(CredentialsProvider.USE_ITEM)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            }
+            return result.includeEmptyValue()
+                    .includeMatchingAs(
+                            ACL.SYSTEM,
+                            item,
+                            AzureCosmosDBCredentials.class,
+                            Collections.emptyList(),
+                            instanceOf(AzureCosmosDBCredentials.class))
+                    .includeCurrentValue(credentialsId);
+        }
+    }
+
+    @SuppressFBWarnings(value = "SE_NO_SERIALVERSIONID", justification = "Not used in XStream")
+    private static class Execution extends CosmosStepExecution<Map<String, Object>> {
+
+        private final transient CosmosConnection connection;
+        private final String database;
+        private final String container;
+        private final Object partitionKey;
+        private final Object operations;
+        private final boolean failOnError;
+
+        protected Execution(
+                @NonNull StepContext context,
+                CosmosConnection connection,
+                String database,
+                String container,
+                Object partitionKey,
+                Object operations,
+                boolean failOnError,
+                long timeoutSeconds) {
+            super(context, connection, timeoutSeconds);
+            this.connection = connection;
+            this.database = database;
+            this.container = container;
+            this.partitionKey = partitionKey;
+            this.operations = operations;
+            this.failOnError = failOnError;
+        }
+
+        @Override
+        protected Map<String, Object> run() throws Exception {
+            requireNonNull(database, "Database must be set");
+            requireNonNull(container, "Container must be set");
+            requireNonNull(partitionKey, "Partition key must be set");
+            requireNonNull(operations, "Operations must be set");
+
+            Run<?, ?> run = getContext().get(Run.class);
+            TaskListener taskListener = getContext().get(TaskListener.class);
+
+            CosmosBatch batch = toBatch(partitionKey, operations);
+            CosmosBatchResponse response;
+            try {
+                response = connection
+                        .getContainer(database, container)
+                        .getContainer()
+                        .executeCosmosBatch(batch, connection.batchRequestOptions());
+            } catch (CosmosException e) {
+                CosmosMetrics.recordFailure("batch", database, container, e);
+                throw e;
+            }
+
+            CosmosOperationResult result =
+                    CosmosOperationResult.fromBatchResponse("batch", database, container, response);
+            CosmosOperationRecorder.record(run, taskListener, result, response.getDiagnostics());
+            if (taskListener != null) {
+                taskListener
+                        .getLogger()
+                        .printf(
+                                "%s batch of %d operations in database: %s, container: %s (%.2f RU, %d ms)%n",
+                                response.isSuccessStatusCode() ? "Committed" : "Rolled back",
+                                batch.getOperations().size(),
+                                database,
+                                container,
+                                result.getRequestCharge(),
+                                result.getLatencyMillis());
+            }
+
+            if (!response.isSuccessStatusCode() && failOnError) {
+                throw new AbortException(failureMessage(response));
+            }
+
+            Map<String, Object> map = result.toMap();
+            map.put("success", response.isSuccessStatusCode());
+            map.put("results", toResults(response));
+            return map;
+        }
+
+        /** The batch fails as a whole, the operation that caused it is the one with a status other than 424. */
+        private static String failureMessage(CosmosBatchResponse response) {
+            List<CosmosBatchOperationResult> results = response.getResults();
+            for (int i = 0; i < results.size(); i++) {
+                CosmosBatchOperationResult operationResult = results.get(i);
+                if (!operationResult.isSuccessStatusCode() && operationResult.getStatusCode() != 424) {
+                    return String.format(
+                            "Transactional batch rolled back, operation %d (%s %s) failed with status %d",
+                            i,
+                            operationResult.getOperation().getOperationType(),
+                            operationResult.getOperation().getId(),
+                            operationResult.getStatusCode());
+                }
+            }
+            return String.format(
+                    "Transactional batch rolled back with status %d: %s",
+                    response.getStatusCode(), response.getErrorMessage());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.PartitionKeyBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+
+/**
+ * Caches container handles and their partition key definitions of a client, so that steady-state writes don't need
+ * any metadata requests. Each cached client has its own, which goes away with the client.
+ */
+class ContainerMetadataCache {
+
+    /**
+     * Minutes a partition key definition is trusted for, a container that was deleted and created again under the
+     * same name can have a different one.
+     */
+    static final long PARTITION_KEY_PATHS_MINUTES =
+            SystemProperties.getLong(ContainerMetadataCache.class.getName() + ".PARTITION_KEY_PATHS_MINUTES", 60L);
+
+    // sub-status codes of a partition key that doesn't match the container, and of a container that's gone
+    private static final int PARTITION_KEY_MISMATCH = 1001;
+    private static final int NAME_CACHE_IS_STALE = 1000;
+    private static final int CONTAINER_NOT_FOUND = 1003;
+
+    private final CosmosClient client;
+    private final ConcurrentMap<String, CachedContainer> containers = new ConcurrentHashMap<>();
+
+    ContainerMetadataCache(CosmosClient client) {
+        this.client = client;
+    }
+
+    CachedContainer get(String database, String container) {
+        return containers.computeIfAbsent(
+                database + "/" + container,
+                k -> new CachedContainer(client.getDatabase(database).getContainer(container)));
+    }
+
+    /**
+     * Builds a partition key by reading the values at the given paths from the document, a missing value is mapped
+     * to the 'none' partition key.
+     */
+    static PartitionKey extractPartitionKey(JsonNode document, List<String> paths) {
+        PartitionKeyBuilder builder = new PartitionKeyBuilder();
+        for (String path : paths) {
+            JsonNode value = document.at(path);
+            if (value.isMissingNode()) {
+                builder.addNoneValue();
+            } else if (value.isNull()) {
+                builder.addNullValue();
+            } else if (value.isBoolean()) {
+                builder.add(value.booleanValue());
+            } else if (value.isNumber()) {
+                builder.add(value.doubleValue());
+            } else {
+                builder.add(value.asText());
+            }
+        }
+        return builder.build();
+    }
+
+    /** Builds a partition key from a value supplied to a step, lists are used for hierarchical partition keys. */
+    static PartitionKey toPartitionKey(Object value) {
+        Collection<?> values = value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+        PartitionKeyBuilder builder = new PartitionKeyBuilder();
+        for (Object component : values) {
+            if (component == null) {
+                builder.addNullValue();
+            } else if (component instanceof Boolean) {
+                builder.add((Boolean) component);
+            } else if (component instanceof Number) {
+                builder.add(((Number) component).doubleValue());
+            } else {
+                builder.add(component.toString());
+            }
+        }
+        return builder.build();
+    }
+
+    static class CachedContainer {
+
+        private final CosmosContainer container;
+        private final Set<CosmosRequestPriority> priorities = EnumSet.noneOf(CosmosRequestPriority.class);
+        private volatile List<String> partitionKeyPaths;
+        private volatile long partitionKeyPathsRead;
+
+        CachedContainer(CosmosContainer container) {
+            this.container = container;
+        }
+
+        CosmosContainer getContainer() {
+            return container;
+        }
+
+        /**
+         * Reads the partition key definition on first use and again once it's older than {@link
+         * #PARTITION_KEY_PATHS_MINUTES}, it only changes when the container is created again.
+         */
+        List<String> getPartitionKeyPaths() {
+            List<String> paths = partitionKeyPaths;
+            if (paths == null
+                    || System.nanoTime() - partitionKeyPathsRead
+                            > TimeUnit.MINUTES.toNanos(PARTITION_KEY_PATHS_MINUTES)) {
+                paths = Collections.unmodifiableList(container
+                        .read()
+                        .getProperties()
+                        .getPartitionKeyDefinition()
+                        .getPaths());
+                partitionKeyPathsRead = System.nanoTime();
+                partitionKeyPaths = paths;
+            }
+            return paths;
+        }
+
+        /**
+         * Forgets the partition key definition when a write was refused because its partition key doesn't match the
+         * container, or the container is gone, so the next write reads it again.
+         */
+        void onFailure(CosmosException e) {
+            int subStatus = e.getSubStatusCode();
+            boolean mismatch = e.getStatusCode() == 400 && subStatus == PARTITION_KEY_MISMATCH;
+            boolean gone = e.getStatusCode() == 404
+                    && (subStatus == CONTAINER_NOT_FOUND || subStatus == NAME_CACHE_IS_STALE);
+            if (mismatch || gone) {
+                partitionKeyPaths = null;
+            }
+        }
+
+        /**
+         * Enables the throughput control group that sends requests with the priority, requests name the group in their
+         * options. A group can only be enabled once per container.
+         */
+        synchronized void enablePriority(CosmosRequestPriority priority) {
+            if (priorities.add(priority)) {
+                container.enableLocalThroughputControlGroup(priority.toGroupConfig());
+            }
+        }
+
+        /**
+         * Resolves the partition key for a document, an explicit value wins over a configured path which wins over
+         * the container's partition key definition.
+         */
+        PartitionKey partitionKey(JsonNode document, Object partitionKey, String partitionKeyPath) {
+            if (partitionKey != null) {
+                return toPartitionKey(partitionKey);
+            }
+            if (partitionKeyPath != null) {
+                return extractPartitionKey(document, Collections.singletonList(partitionKeyPath));
+            }
+            return extractPartitionKey(document, getPartitionKeyPaths());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import jenkins.util.SystemProperties;
+
+/**
+ * Content hashes of documents written with {@code skipIfUnchanged}, so that writing the same content again can be
+ * skipped without a request. The hash is also stored in the document, which covers documents written by other
+ * controllers or before a restart.
+ *
+ * <p>Hashes are only trusted for {@link #EXPIRE_MINUTES}, a document may be deleted by its time to live or by another
+ * controller meanwhile; documents deleted through the plugin are forgotten straight away.
+ */
+class ContentHashCache {
+
+    /** Property of the document holding the hash of the rest of its content. */
+    static final String PROPERTY = "jenkinsContentHash";
+
+    static final long MAX_ENTRIES =
+            SystemProperties.getLong(ContentHashCache.class.getName() + ".MAX_ENTRIES", 10_000L);
+
+    static final long EXPIRE_MINUTES =
+            SystemProperties.getLong(ContentHashCache.class.getName() + ".EXPIRE_MINUTES", 10L);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    // set by the service, they change on every write without the content changing
+    private static final Set<String> SYSTEM_PROPERTIES = Set.of("_rid", "_self", "_etag", "_attachments", "_ts");
+
+    private static final Cache<String, String> CACHE = Caffeine.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .expireAfterWrite(Duration.ofMinutes(EXPIRE_MINUTES))
+            .build();
+
+    private ContentHashCache() {}
+
+    /**
+     * SHA-256 of the document in a canonical form, with properties sorted by name and without the hash and system
+     * properties, so the same content gives the same hash however it was built.
+     */
+    static String hash(ObjectNode document) {
+        try {
+            byte[] canonical = OBJECT_MAPPER.writeValueAsBytes(canonical(document, true));
+            return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(canonical));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("A JSON tree can always be serialized", e);
+        }
+    }
+
+    private static JsonNode canonical(JsonNode node, boolean root) {
+        if (node.isObject()) {
+            List<String> names = new ArrayList<>();
+            node.fieldNames().forEachRemaining(names::add);
+            Collections.sort(names);
+            ObjectNode sorted = JsonNodeFactory.instance.objectNode();
+            for (String name : names) {
+                if (root && (name.equals(PROPERTY) || SYSTEM_PROPERTIES.contains(name))) {
+                    continue;
+                }
+                sorted.set(name, canonical(node.get(name), false));
+            }
+            return sorted;
+        }
+        if (node.isArray()) {
+            ArrayNode array = JsonNodeFactory.instance.arrayNode();
+            node.forEach(element -> array.add(canonical(element, false)));
+            return array;
+        }
+        return node;
+    }
+
+    /** Identifies a document across accounts and containers. */
+    static String key(String account, String database, String container, PartitionKey partitionKey, String id) {
+        return account + "/" + database + "/" + container + "/" + partitionKey + "/" + id;
+    }
+
+    @CheckForNull
+    static String get(String key) {
+        return CACHE.getIfPresent(key);
+    }
+
+    static void put(String key, String hash) {
+        CACHE.put(key, hash);
+    }
+
+    /** Forgets the hash of a deleted or changed document, so writing it again isn't skipped. */
+    static void invalidate(String key) {
+        CACHE.invalidate(key);
+    }
+
+    static void invalidateAll() {
+        CACHE.invalidateAll();
+    }
+}
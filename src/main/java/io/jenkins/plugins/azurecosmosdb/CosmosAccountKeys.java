@@ -0,0 +1,103 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.cosmos.CosmosException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.util.Secret;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * The primary and secondary key of an account behind the updatable key credential a client signs its requests with.
+ * Changing the key updates the live client in place, keeping its connections and metadata caches.
+ */
+class CosmosAccountKeys {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosAccountKeys.class.getName());
+
+    private static final int UNAUTHORIZED = 401;
+
+    private final AzureKeyCredential credential;
+    private String primary;
+    private String secondary;
+    private String active;
+
+    CosmosAccountKeys(AzureCosmosDBKeyCredentials credentials) {
+        this.primary = plainText(credentials.getKey());
+        this.secondary = plainText(credentials.getSecondaryKey());
+        this.active = primary;
+        this.credential = new AzureKeyCredential(primary);
+    }
+
+    AzureKeyCredential getCredential() {
+        return credential;
+    }
+
+    /** The key requests are signed with at the moment. */
+    synchronized String getActive() {
+        return active;
+    }
+
+    /**
+     * Applies rotated keys from credentials that were updated since the client was created, switching back to the
+     * primary key whenever it changes.
+     */
+    synchronized void update(AzureCosmosDBKeyCredentials credentials) {
+        String newPrimary = plainText(credentials.getKey());
+        String newSecondary = plainText(credentials.getSecondaryKey());
+        if (Objects.equals(primary, newPrimary) && Objects.equals(secondary, newSecondary)) {
+            return;
+        }
+        boolean primaryChanged = !Objects.equals(primary, newPrimary);
+        primary = newPrimary;
+        secondary = newSecondary;
+        if (primaryChanged || !Objects.equals(active, secondary)) {
+            activate(primary);
+        }
+        LOGGER.fine(() -> "Updated the key of " + credentials.getId() + " in place");
+    }
+
+    /**
+     * Switches to the other key after a request signed with {@code rejected} was refused, unless another request
+     * already did.
+     *
+     * @return whether requests are now signed with a different key and are worth retrying
+     */
+    synchronized boolean failover(String rejected) {
+        if (!Objects.equals(active, rejected)) {
+            return true;
+        }
+        String other = Objects.equals(active, primary) ? secondary : primary;
+        if (other == null || other.equals(active)) {
+            return false;
+        }
+        LOGGER.info("Key was rejected with 401, switching to the "
+                + (other.equals(secondary) ? "secondary" : "primary") + " key");
+        activate(other);
+        return true;
+    }
+
+    /** Whether the request failed because the account didn't accept the key it was signed with. */
+    static boolean isUnauthorized(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CosmosException && ((CosmosException) cause).getStatusCode() == UNAUTHORIZED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void activate(String key) {
+        active = key;
+        credential.update(key);
+    }
+
+    @CheckForNull
+    private static String plainText(@CheckForNull Secret secret) {
+        if (secret == null) {
+            return null;
+        }
+        String plainText = secret.getPlainText();
+        return plainText.isEmpty() ? null : plainText;
+    }
+}
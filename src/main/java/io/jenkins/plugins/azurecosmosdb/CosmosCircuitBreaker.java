@@ -0,0 +1,238 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBGlobalConfiguration.CircuitBreakerAction;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Stops sending requests to an account that keeps failing or throttling, so steps fail fast, or have their writes
+ * spooled, instead of each waiting out the SDK's retries during an outage.
+ *
+ * <p>The breaker opens when at least {@link #MIN_REQUESTS} operations in a {@link #WINDOW_SECONDS} window saw a
+ * failure rate of {@link #FAILURE_RATE_PERCENT} or more. After {@link #OPEN_SECONDS} it lets a single probe through,
+ * which closes it again on success or opens it for another period on failure.
+ *
+ * <p>Breakers are off until an administrator chooses what steps do while one is open.
+ */
+class CosmosCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosCircuitBreaker.class.getName());
+
+    static final int MIN_REQUESTS =
+            SystemProperties.getInteger(CosmosCircuitBreaker.class.getName() + ".MIN_REQUESTS", 10);
+
+    static final int FAILURE_RATE_PERCENT =
+            SystemProperties.getInteger(CosmosCircuitBreaker.class.getName() + ".FAILURE_RATE_PERCENT", 50);
+
+    static final long WINDOW_SECONDS =
+            SystemProperties.getLong(CosmosCircuitBreaker.class.getName() + ".WINDOW_SECONDS", 60L);
+
+    static final long OPEN_SECONDS =
+            SystemProperties.getLong(CosmosCircuitBreaker.class.getName() + ".OPEN_SECONDS", 30L);
+
+    private static final Map<String, CosmosCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    // settings from the global configuration, shared by every breaker
+    private static volatile CircuitBreakerAction configuredAction = CircuitBreakerAction.DISABLED;
+    private static volatile int configuredFailureRatePercent = FAILURE_RATE_PERCENT;
+    private static volatile Duration configuredOpenDuration = Duration.ofSeconds(OPEN_SECONDS);
+
+    enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final String account;
+    private final LongSupplier nanoTime;
+    private final Counter rejected;
+
+    private State state = State.CLOSED;
+    private long windowStart;
+    private int requests;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+
+    CosmosCircuitBreaker(String account, LongSupplier nanoTime, MeterRegistry registry) {
+        this.account = account;
+        this.nanoTime = nanoTime;
+        this.windowStart = nanoTime.getAsLong();
+        Gauge.builder(CosmosMetrics.PREFIX + ".circuit.state", this, b -> b.getState().ordinal())
+                .description("0 closed, 1 half open, 2 open")
+                .tags("account", account)
+                .register(registry);
+        this.rejected = Counter.builder(CosmosMetrics.PREFIX + ".circuit.rejected")
+                .tags("account", account)
+                .register(registry);
+    }
+
+    static CosmosCircuitBreaker forAccount(String account) {
+        return BREAKERS.computeIfAbsent(
+                account, k -> new CosmosCircuitBreaker(k, System::nanoTime, CosmosMetrics.registry()));
+    }
+
+    /** Sets the settings from the global configuration, {@code null} restores the default. */
+    static void configure(CircuitBreakerAction action, Integer failureRatePercent, Integer openSeconds) {
+        configuredAction = action == null ? CircuitBreakerAction.DISABLED : action;
+        configuredFailureRatePercent = failureRatePercent == null ? FAILURE_RATE_PERCENT : failureRatePercent;
+        configuredOpenDuration = Duration.ofSeconds(openSeconds == null ? OPEN_SECONDS : openSeconds);
+    }
+
+    /** What steps do while an account's breaker is open. */
+    static CircuitBreakerAction getAction() {
+        return configuredAction;
+    }
+
+    String getAccount() {
+        return account;
+    }
+
+    synchronized State getState() {
+        if (state == State.OPEN && openElapsed()) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Whether an operation may go ahead. Once the open period has passed one caller at a time is let through as a
+     * probe, it must report its outcome.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN && openElapsed()) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /** @return the new state if this closed the breaker, otherwise {@code null} */
+    @CheckForNull
+    synchronized State onSuccess() {
+        if (state == State.HALF_OPEN) {
+            LOGGER.info(() -> "Circuit breaker for " + account + " closed, probe succeeded");
+            state = State.CLOSED;
+            probing = false;
+            resetWindow(nanoTime.getAsLong());
+            return state;
+        }
+        record(false);
+        return null;
+    }
+
+    /** @return the new state if this opened the breaker, otherwise {@code null} */
+    @CheckForNull
+    synchronized State onFailure() {
+        if (state == State.HALF_OPEN) {
+            LOGGER.info(() -> "Circuit breaker for " + account + " opened again, probe failed");
+            open();
+            return state;
+        }
+        if (state == State.OPEN) {
+            return null;
+        }
+        record(true);
+        if (requests >= MIN_REQUESTS && failures * 100 >= requests * configuredFailureRatePercent) {
+            LOGGER.warning(() -> "Circuit breaker for " + account + " opened after " + failures + " of " + requests
+                    + " operations failed");
+            open();
+            return state;
+        }
+        return null;
+    }
+
+    /**
+     * Reports an operation that threw. Failures of the account count against it, while an error response for the
+     * request itself shows the account is answering.
+     *
+     * @return the new state if this opened or closed the breaker, otherwise {@code null}
+     */
+    @CheckForNull
+    State onError(Throwable t) {
+        if (isFailure(t)) {
+            return onFailure();
+        }
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CosmosException) {
+                return onSuccess();
+            }
+        }
+        release();
+        return null;
+    }
+
+    /** Forgets a probe that ended without telling whether the account is healthy, e.g. when the step was stopped. */
+    synchronized void release() {
+        probing = false;
+    }
+
+    /** Time until a probe is let through, zero if the breaker isn't open. */
+    synchronized Duration getRemainingOpenTime() {
+        if (state != State.OPEN) {
+            return Duration.ZERO;
+        }
+        Duration elapsed = Duration.ofNanos(nanoTime.getAsLong() - openedAt);
+        Duration remaining = configuredOpenDuration.minus(elapsed);
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
+    /**
+     * Failures that suggest the account is unavailable or overloaded rather than a problem with the request: timeouts,
+     * throttling that outlasted the SDK's retries, server errors and connection failures.
+     */
+    static boolean isFailure(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CosmosException) {
+                int status = ((CosmosException) cause).getStatusCode();
+                return status == 0 || status == 408 || status == 429 || status == 449 || status >= 500;
+            }
+        }
+        return false;
+    }
+
+    private void record(boolean failure) {
+        long now = nanoTime.getAsLong();
+        if (now - windowStart >= Duration.ofSeconds(WINDOW_SECONDS).toNanos()) {
+            resetWindow(now);
+        }
+        requests++;
+        if (failure) {
+            failures++;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        probing = false;
+        openedAt = nanoTime.getAsLong();
+        resetWindow(openedAt);
+    }
+
+    private boolean openElapsed() {
+        return nanoTime.getAsLong() - openedAt >= configuredOpenDuration.toNanos();
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        requests = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,314 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.CosmosDiagnosticsContext;
+import com.azure.cosmos.CosmosEndToEndOperationLatencyPolicyConfig;
+import com.azure.cosmos.CosmosEndToEndOperationLatencyPolicyConfigBuilder;
+import com.azure.cosmos.ThresholdBasedAvailabilityStrategy;
+import com.azure.cosmos.models.CosmosBatchRequestOptions;
+import com.azure.cosmos.models.CosmosBulkExecutionOptions;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Item;
+import io.jenkins.plugins.azurecosmosdb.ContainerMetadataCache.CachedContainer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A shared account client together with the region preference, latency policy and request priority of the credentials
+ * it was looked up with. Region preference is applied per request by excluding the account's other configured
+ * regions, apart from those requests may be hedged to.
+ */
+class CosmosConnection {
+
+    // used when hedging is configured without an end-to-end timeout, the policy needs one
+    static final Duration DEFAULT_END_TO_END_TIMEOUT = Duration.ofSeconds(60);
+
+    static final int DEFAULT_HEDGE_THRESHOLD_STEP_MILLIS = 100;
+
+    private final String account;
+    private final CosmosClient client;
+    private final ContainerMetadataCache containers;
+    private final String preferredRegion;
+    private final List<String> excludedRegions;
+    private final CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy;
+    private final CosmosAccountKeys keys;
+    private final CosmosRequestPriority priority;
+
+    CosmosConnection(String account, CosmosClient client, String preferredRegion, List<String> accountRegions) {
+        this(account, client, preferredRegion, Collections.emptyList(), accountRegions, null, null);
+    }
+
+    CosmosConnection(
+            String account,
+            CosmosClient client,
+            String preferredRegion,
+            List<String> hedgeRegions,
+            List<String> accountRegions,
+            CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy,
+            @CheckForNull CosmosAccountKeys keys) {
+        this(account, client, preferredRegion, hedgeRegions, accountRegions, latencyPolicy, keys, null);
+    }
+
+    CosmosConnection(
+            String account,
+            CosmosClient client,
+            String preferredRegion,
+            List<String> hedgeRegions,
+            List<String> accountRegions,
+            CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy,
+            @CheckForNull CosmosAccountKeys keys,
+            @CheckForNull CosmosRequestPriority priority) {
+        this(
+                account,
+                client,
+                new ContainerMetadataCache(client),
+                preferredRegion,
+                hedgeRegions,
+                accountRegions,
+                latencyPolicy,
+                keys,
+                priority);
+    }
+
+    CosmosConnection(
+            String account,
+            CosmosClient client,
+            ContainerMetadataCache containers,
+            String preferredRegion,
+            List<String> hedgeRegions,
+            List<String> accountRegions,
+            CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy,
+            @CheckForNull CosmosAccountKeys keys,
+            @CheckForNull CosmosRequestPriority priority) {
+        this.account = account;
+        this.client = client;
+        this.containers = containers;
+        this.preferredRegion = preferredRegion;
+        this.excludedRegions = excludedRegions(preferredRegion, hedgeRegions, accountRegions);
+        this.latencyPolicy = latencyPolicy;
+        this.keys = keys;
+        this.priority = priority;
+    }
+
+    private CosmosConnection(
+            CosmosConnection connection,
+            CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy,
+            CosmosRequestPriority priority) {
+        this.account = connection.account;
+        this.client = connection.client;
+        this.containers = connection.containers;
+        this.preferredRegion = connection.preferredRegion;
+        this.excludedRegions = connection.excludedRegions;
+        this.latencyPolicy = latencyPolicy;
+        this.keys = connection.keys;
+        this.priority = priority;
+    }
+
+    /**
+     * The same connection with the end-to-end timeout of its requests capped, so the SDK cancels a request and stops
+     * retrying it once a step's timeout has passed. Any hedging of the credentials is kept.
+     */
+    CosmosConnection withTimeout(long timeoutSeconds) {
+        if (timeoutSeconds <= 0) {
+            return this;
+        }
+        Duration timeout = Duration.ofSeconds(timeoutSeconds);
+        if (latencyPolicy != null && latencyPolicy.getEndToEndOperationTimeout().compareTo(timeout) <= 0) {
+            return this;
+        }
+        CosmosEndToEndOperationLatencyPolicyConfigBuilder builder =
+                new CosmosEndToEndOperationLatencyPolicyConfigBuilder(timeout);
+        if (latencyPolicy != null && latencyPolicy.getAvailabilityStrategy() != null) {
+            builder.availabilityStrategy(latencyPolicy.getAvailabilityStrategy());
+        }
+        return new CosmosConnection(this, builder.build(), priority);
+    }
+
+    /**
+     * The same connection with the priority a step or folder asked for, {@code null} keeps the priority of the
+     * credentials.
+     */
+    CosmosConnection withPriority(@CheckForNull CosmosRequestPriority priority) {
+        if (priority == null || priority == this.priority) {
+            return this;
+        }
+        return new CosmosConnection(this, latencyPolicy, priority);
+    }
+
+    /** The priority of a step's requests, set on the step itself, on an enclosing folder, or on the credentials. */
+    CosmosConnection withPriority(@CheckForNull String stepPriority, @CheckForNull Item item) {
+        CosmosRequestPriority priority = CosmosRequestPriority.parse(stepPriority);
+        if (priority == null) {
+            priority = AzureCosmosDBGlobalConfiguration.get().getFolderPriority(item);
+        }
+        return withPriority(priority);
+    }
+
+    static List<String> excludedRegions(String preferredRegion, List<String> accountRegions) {
+        return excludedRegions(preferredRegion, Collections.emptyList(), accountRegions);
+    }
+
+    static List<String> excludedRegions(
+            String preferredRegion, List<String> hedgeRegions, List<String> accountRegions) {
+        if (preferredRegion == null || !accountRegions.contains(preferredRegion)) {
+            return Collections.emptyList();
+        }
+        List<String> excluded = new ArrayList<>(accountRegions);
+        excluded.remove(preferredRegion);
+        excluded.removeAll(hedgeRegions);
+        return Collections.unmodifiableList(excluded);
+    }
+
+    /** Parses the comma separated regions requests may be hedged to. */
+    static List<String> hedgeRegions(@CheckForNull String hedgeRegions) {
+        if (hedgeRegions == null) {
+            return Collections.emptyList();
+        }
+        List<String> regions = new ArrayList<>();
+        for (String region : hedgeRegions.split(",")) {
+            String trimmed = region.trim();
+            if (!trimmed.isEmpty() && !regions.contains(trimmed)) {
+                regions.add(trimmed);
+            }
+        }
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * The end-to-end latency policy the credentials ask for, if any. With a hedge threshold, requests still waiting
+     * after the threshold are also sent to the next region, the first response wins.
+     */
+    @CheckForNull
+    static CosmosEndToEndOperationLatencyPolicyConfig latencyPolicy(AzureCosmosDBCredentials credentials) {
+        Integer timeoutSeconds = credentials.getEndToEndTimeoutSeconds();
+        Integer thresholdMillis = credentials.getHedgeThresholdMillis();
+        if (timeoutSeconds == null && thresholdMillis == null) {
+            return null;
+        }
+        Duration timeout = timeoutSeconds == null ? DEFAULT_END_TO_END_TIMEOUT : Duration.ofSeconds(timeoutSeconds);
+        CosmosEndToEndOperationLatencyPolicyConfigBuilder builder =
+                new CosmosEndToEndOperationLatencyPolicyConfigBuilder(timeout);
+        if (thresholdMillis != null) {
+            Integer stepMillis = credentials.getHedgeThresholdStepMillis();
+            builder.availabilityStrategy(new ThresholdBasedAvailabilityStrategy(
+                    Duration.ofMillis(thresholdMillis),
+                    Duration.ofMillis(stepMillis == null ? DEFAULT_HEDGE_THRESHOLD_STEP_MILLIS : stepMillis)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Whether the response came from a region other than the preferred one after the request was hedged, i.e. the
+     * hedge won.
+     */
+    static boolean hedged(CosmosDiagnostics diagnostics, String preferredRegion) {
+        if (diagnostics == null || preferredRegion == null) {
+            return false;
+        }
+        CosmosDiagnosticsContext context = diagnostics.getDiagnosticsContext();
+        if (context == null || context.getDiagnostics().size() < 2) {
+            return false;
+        }
+        Set<String> regions = diagnostics.getContactedRegionNames();
+        return regions != null && !regions.isEmpty() && regions.stream().noneMatch(preferredRegion::equalsIgnoreCase);
+    }
+
+    /** The account endpoint, identifies the account for concurrency limits and metrics. */
+    String getAccount() {
+        return account;
+    }
+
+    CosmosClient getClient() {
+        return client;
+    }
+
+    String getPreferredRegion() {
+        return preferredRegion;
+    }
+
+    List<String> getExcludedRegions() {
+        return excludedRegions;
+    }
+
+    CachedContainer getContainer(String database, String container) {
+        CachedContainer cached = containers.get(database, container);
+        if (priority != null) {
+            cached.enablePriority(priority);
+        }
+        return cached;
+    }
+
+    /** The keys requests are signed with for key based credentials, {@code null} for other authentication. */
+    @CheckForNull
+    CosmosAccountKeys getKeys() {
+        return keys;
+    }
+
+    @CheckForNull
+    CosmosRequestPriority getPriority() {
+        return priority;
+    }
+
+    @CheckForNull
+    CosmosEndToEndOperationLatencyPolicyConfig getLatencyPolicy() {
+        return latencyPolicy;
+    }
+
+    /** Whether a response was served by a hedged request, see {@link #hedged(CosmosDiagnostics, String)}. */
+    boolean isHedged(CosmosDiagnostics diagnostics) {
+        return latencyPolicy != null && hedged(diagnostics, preferredRegion);
+    }
+
+    CosmosItemRequestOptions itemRequestOptions() {
+        CosmosItemRequestOptions options = new CosmosItemRequestOptions();
+        if (!excludedRegions.isEmpty()) {
+            options.setExcludedRegions(excludedRegions);
+        }
+        if (latencyPolicy != null) {
+            options.setCosmosEndToEndOperationLatencyPolicyConfig(latencyPolicy);
+        }
+        if (priority != null) {
+            options.setThroughputControlGroupName(priority.getGroupName());
+        }
+        return options;
+    }
+
+    CosmosBatchRequestOptions batchRequestOptions() {
+        CosmosBatchRequestOptions options = new CosmosBatchRequestOptions();
+        if (!excludedRegions.isEmpty()) {
+            options.setExcludedRegions(excludedRegions);
+        }
+        return options;
+    }
+
+    CosmosQueryRequestOptions queryRequestOptions() {
+        CosmosQueryRequestOptions options = new CosmosQueryRequestOptions();
+        if (!excludedRegions.isEmpty()) {
+            options.setExcludedRegions(excludedRegions);
+        }
+        if (latencyPolicy != null) {
+            options.setCosmosEndToEndOperationLatencyPolicyConfig(latencyPolicy);
+        }
+        if (priority != null) {
+            options.setThroughputControlGroupName(priority.getGroupName());
+        }
+        return options;
+    }
+
+    CosmosBulkExecutionOptions bulkExecutionOptions() {
+        CosmosBulkExecutionOptions options = new CosmosBulkExecutionOptions();
+        if (!excludedRegions.isEmpty()) {
+            options.setExcludedRegions(excludedRegions);
+        }
+        if (priority != null) {
+            options.setThroughputControlGroupName(priority.getGroupName());
+        }
+        return options;
+    }
+}
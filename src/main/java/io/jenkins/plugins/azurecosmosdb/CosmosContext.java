@@ -0,0 +1,63 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Item;
+import java.io.Serializable;
+
+/**
+ * Connection details {@code withCosmosDB} passes to the steps in its body, which use them for any of {@code
+ * credentialsId}, {@code database} and {@code container} they leave out.
+ *
+ * <p>The connection the block resolved is reused by the steps in it, after a restart it is looked up again on first
+ * use.
+ */
+class CosmosContext implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String credentialsId;
+    private final String database;
+    private final String container;
+
+    private transient volatile CosmosConnection connection;
+
+    CosmosContext(String credentialsId, String database, String container, CosmosConnection connection) {
+        this.credentialsId = credentialsId;
+        this.database = database;
+        this.container = container;
+        this.connection = connection;
+    }
+
+    String getCredentialsId() {
+        return credentialsId;
+    }
+
+    String getDatabase() {
+        return database;
+    }
+
+    String getContainer() {
+        return container;
+    }
+
+    /** The connection for a step, the block's unless the step names other credentials. */
+    static CosmosConnection getConnection(@CheckForNull CosmosContext block, String credentialsId, Item item) {
+        if (block == null || (credentialsId != null && !credentialsId.equals(block.credentialsId))) {
+            return AzureCosmosDBCache.getConnection(credentialsId, item);
+        }
+        CosmosConnection current = block.connection;
+        if (current == null) {
+            current = AzureCosmosDBCache.getConnection(block.credentialsId, item);
+            block.connection = current;
+        }
+        return current;
+    }
+
+    static String database(@CheckForNull CosmosContext block, String database) {
+        return database != null || block == null ? database : block.database;
+    }
+
+    static String container(@CheckForNull CosmosContext block, String container) {
+        return container != null || block == null ? container : block.container;
+    }
+}
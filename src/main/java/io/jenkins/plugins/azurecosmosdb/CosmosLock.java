@@ -0,0 +1,247 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosItemResponse;
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ThreadLocalRandom;
+import jenkins.util.SystemProperties;
+
+/**
+ * A lock on a named resource shared by controllers through a document in a container partitioned by {@code /id}. Up
+ * to {@code permits} holders hold the lock at once, everyone else waits in a queue in the document and acquires in
+ * turn.
+ *
+ * <p>Every change reads the document and replaces it only if its ETag is unchanged, retrying on a conflicting write,
+ * so controllers never overwrite each other's changes. Holders and waiters have an expiry they renew while they're
+ * alive; entries of controllers that went away expire and are removed by the next change, and the document itself
+ * expires through its time to live once nobody renews it.
+ *
+ * <p>Expiries are measured with the account's clock rather than the controllers' ones, so a controller whose clock
+ * is off can't take a lock that's still held: a renewed entry only stores its lease, and the next change sets its
+ * expiry from the {@code _ts} of the write that renewed it. Changes compare expiries with the {@code _ts} of the last
+ * write, which waiters and holders keep moving forward as they renew.
+ */
+class CosmosLock {
+
+    /** Conflicting writes to retry before giving up on a change, the caller tries again later. */
+    static final int MAX_CONFLICTS = SystemProperties.getInteger(CosmosLock.class.getName() + ".MAX_CONFLICTS", 10);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final CosmosConnection connection;
+    private final String database;
+    private final String container;
+    private final String resource;
+    private final int permits;
+    private final long leaseMillis;
+
+    CosmosLock(
+            CosmosConnection connection,
+            String database,
+            String container,
+            String resource,
+            int permits,
+            int leaseSeconds) {
+        this.connection = connection;
+        this.database = database;
+        this.container = container;
+        this.resource = resource;
+        this.permits = permits;
+        this.leaseMillis = leaseSeconds * 1000L;
+    }
+
+    /**
+     * Acquires the lock if it's the holder's turn, otherwise queues the holder or renews its place in the queue.
+     * Returns whether the holder holds the lock.
+     */
+    boolean tryAcquire(String holder, String owner) {
+        try {
+            return update((document, now) -> acquire(document, holder, owner, permits, now, leaseMillis), true);
+        } catch (CosmosException e) {
+            // still contended after MAX_CONFLICTS tries, the waiter polls again like any other waiter
+            if (isConflict(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /** Extends the holder's lease, returns {@code false} when it expired and was given to someone else. */
+    boolean renew(String holder) {
+        return update((document, now) -> renew(document, holder, now, leaseMillis), false);
+    }
+
+    /** Gives the lock up, or leaves the queue. */
+    void release(String holder) {
+        update((document, now) -> release(document, holder, now), false);
+    }
+
+    private boolean update(Change change, boolean create) {
+        CosmosContainer cosmosContainer = connection.getContainer(database, container).getContainer();
+        PartitionKey partitionKey = new PartitionKey(resource);
+        for (int conflicts = 0; ; conflicts++) {
+            ObjectNode document;
+            String etag;
+            long now;
+            try {
+                CosmosItemResponse<ObjectNode> response = cosmosContainer.readItem(
+                        resource, partitionKey, connection.itemRequestOptions(), ObjectNode.class);
+                document = response.getItem();
+                etag = response.getETag();
+                now = document.path("_ts").asLong() * 1000;
+                stamp(document, now);
+            } catch (CosmosException e) {
+                if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw e;
+                }
+                if (!create) {
+                    return false;
+                }
+                document = OBJECT_MAPPER.createObjectNode().put("id", resource);
+                etag = null;
+                // nothing in it to expire yet
+                now = 0;
+            }
+            boolean result = change.apply(document, now);
+            // outlives every lease in it, so it's only removed once nobody renews it
+            document.put("ttl", Math.max(60, 2 * leaseMillis / 1000));
+            try {
+                CosmosItemRequestOptions options = connection.itemRequestOptions();
+                if (etag == null) {
+                    cosmosContainer.createItem(document, partitionKey, options);
+                } else {
+                    options.setIfMatchETag(etag);
+                    cosmosContainer.replaceItem(document, resource, partitionKey, options);
+                }
+                return result;
+            } catch (CosmosException e) {
+                if (!isConflict(e) || conflicts >= MAX_CONFLICTS) {
+                    throw e;
+                }
+                pause(conflicts);
+            }
+        }
+    }
+
+    private static boolean isConflict(CosmosException e) {
+        return e.getStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED
+                || e.getStatusCode() == HttpURLConnection.HTTP_CONFLICT;
+    }
+
+    // spreads out controllers that wrote at the same time
+    private static void pause(int conflicts) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(10, 20L << Math.min(conflicts, 5)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while changing a lock", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Change {
+        boolean apply(ObjectNode document, long now);
+    }
+
+    static boolean acquire(ObjectNode document, String holder, String owner, int permits, long now, long leaseMillis) {
+        ArrayNode holders = entries(document, "holders", now);
+        ArrayNode queue = entries(document, "queue", now);
+        ObjectNode held = find(holders, holder);
+        if (held != null) {
+            lease(held, leaseMillis);
+            return true;
+        }
+        int position = indexOf(queue, holder);
+        if (position < 0) {
+            queue.addObject().put("holder", holder).put("owner", owner);
+            position = queue.size() - 1;
+        }
+        ObjectNode waiting = (ObjectNode) queue.get(position);
+        lease(waiting, leaseMillis);
+        // waiters ahead in the queue go first
+        if (position < permits - holders.size()) {
+            queue.remove(position);
+            holders.add(waiting);
+            return true;
+        }
+        return false;
+    }
+
+    static boolean renew(ObjectNode document, String holder, long now, long leaseMillis) {
+        ArrayNode holders = entries(document, "holders", now);
+        entries(document, "queue", now);
+        ObjectNode held = find(holders, holder);
+        if (held == null) {
+            return false;
+        }
+        lease(held, leaseMillis);
+        return true;
+    }
+
+    static boolean release(ObjectNode document, String holder, long now) {
+        ArrayNode holders = entries(document, "holders", now);
+        ArrayNode queue = entries(document, "queue", now);
+        int held = indexOf(holders, holder);
+        if (held >= 0) {
+            holders.remove(held);
+            return true;
+        }
+        int waiting = indexOf(queue, holder);
+        if (waiting >= 0) {
+            queue.remove(waiting);
+        }
+        return false;
+    }
+
+    /** Sets the expiry of the entries renewed by the write at {@code writtenAt}, the {@code _ts} of the document. */
+    static void stamp(ObjectNode document, long writtenAt) {
+        for (String name : new String[] {"holders", "queue"}) {
+            for (JsonNode entry : document.path(name)) {
+                if (entry instanceof ObjectNode renewed && renewed.has("lease")) {
+                    renewed.put("expires", writtenAt + renewed.path("lease").asLong());
+                    renewed.remove("lease");
+                }
+            }
+        }
+    }
+
+    // the expiry is set from the server time of the write by the next change
+    private static void lease(ObjectNode entry, long leaseMillis) {
+        entry.remove("expires");
+        entry.put("lease", leaseMillis);
+    }
+
+    /** The entries of a list in the document, without the expired ones. */
+    private static ArrayNode entries(ObjectNode document, String name, long now) {
+        JsonNode existing = document.get(name);
+        ArrayNode entries = existing instanceof ArrayNode ? (ArrayNode) existing : document.putArray(name);
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            JsonNode expires = entries.get(i).get("expires");
+            if (expires != null && expires.asLong() < now) {
+                entries.remove(i);
+            }
+        }
+        return entries;
+    }
+
+    private static ObjectNode find(ArrayNode entries, String holder) {
+        int index = indexOf(entries, holder);
+        return index < 0 ? null : (ObjectNode) entries.get(index);
+    }
+
+    private static int indexOf(ArrayNode entries, String holder) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (holder.equals(entries.get(i).path("holder").asText())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,433 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
+import static java.util.Objects.requireNonNull;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.BodyExecution;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Runs its body while holding a lock on a resource shared by controllers, see {@link CosmosLock}. Waiting and
+ * renewing the lease happen off the pipeline's thread, waiters poll with a growing delay and go in the order they
+ * queued.
+ */
+public class CosmosLockStep extends Step {
+
+    static final int DEFAULT_LEASE_SECONDS = 60;
+
+    static final long BACKOFF_MILLIS =
+            SystemProperties.getLong(CosmosLockStep.class.getName() + ".BACKOFF_MILLIS", 500L);
+
+    static final long MAX_BACKOFF_MILLIS =
+            SystemProperties.getLong(CosmosLockStep.class.getName() + ".MAX_BACKOFF_MILLIS", 10_000L);
+
+    private final String resource;
+
+    private String credentialsId;
+    private String database;
+    private String container;
+    private int permits = 1;
+    private int leaseSeconds = DEFAULT_LEASE_SECONDS;
+
+    @DataBoundConstructor
+    public CosmosLockStep(String resource) {
+        this.resource = Util.fixEmptyAndTrim(resource);
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = Util.fixEmpty(credentialsId);
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    @DataBoundSetter
+    public void setDatabase(String database) {
+        this.database = Util.fixEmpty(database);
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    /** Container holding the lock documents, partitioned by {@code /id}. */
+    @DataBoundSetter
+    public void setContainer(String container) {
+        this.container = Util.fixEmpty(container);
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    /** Holders allowed at once, every user of the resource should ask for the same number. */
+    @DataBoundSetter
+    public void setPermits(int permits) {
+        this.permits = permits;
+    }
+
+    public int getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    /** How long the lock is kept for a controller that stopped renewing it, e.g. because it crashed. */
+    @DataBoundSetter
+    public void setLeaseSeconds(int leaseSeconds) {
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        if (resource == null) {
+            throw new AbortException("cosmosLock needs a resource");
+        }
+        if (permits < 1) {
+            throw new AbortException("cosmosLock needs at least 1 permit, got " + permits);
+        }
+        if (leaseSeconds < 10) {
+            throw new AbortException("cosmosLock needs a lease of at least 10 seconds, got " + leaseSeconds);
+        }
+        CosmosContext block = context.get(CosmosContext.class);
+        String credentials = credentialsId != null || block == null ? credentialsId : block.getCredentialsId();
+        String db = CosmosContext.database(block, database);
+        String coll = CosmosContext.container(block, container);
+        if (credentials == null || db == null || coll == null) {
+            throw new AbortException(
+                    "cosmosLock needs credentialsId, database and container, or a withCosmosDB block setting them");
+        }
+        return new Execution(context, this, credentials, db, coll);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(Run.class);
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "cosmosLock";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Lock a resource shared with other controllers through Azure Cosmos DB";
+        }
+
+        public FormValidation doCheckPermits(@QueryParameter int value) {
+            return value < 1 ? FormValidation.error("At least 1") : FormValidation.ok();
+        }
+
+        public FormValidation doCheckLeaseSeconds(@QueryParameter int value) {
+            return value < 10 ? FormValidation.error("At least 10 seconds") : FormValidation.ok();
+        }
+
+        @POST
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String credentialsId) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            if (item == null) {
+                if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            } else {
+                if (!item.hasPermission(Item.EXTENDED_READ) && !item.hasPermission(CredentialsProvider.USE_ITEM)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            }
+            return result.includeEmptyValue()
+                    .includeMatchingAs(
+                            ACL.SYSTEM,
+                            item,
+                            AzureCosmosDBCredentials.class,
+                            Collections.emptyList(),
+                            instanceOf(AzureCosmosDBCredentials.class))
+                    .includeCurrentValue(credentialsId);
+        }
+    }
+
+    @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Rescheduled in onResume")
+    private static class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String resource;
+        private final String credentialsId;
+        private final String database;
+        private final String container;
+        private final int permits;
+        private final int leaseSeconds;
+        // identifies this build's place in the lock document
+        private final String holder = UUID.randomUUID().toString();
+        private String owner;
+
+        private volatile boolean acquired;
+        private volatile boolean stopped;
+        private volatile BodyExecution body;
+        private transient int waits;
+        private transient volatile Future<?> scheduled;
+        private transient volatile Future<?> heartbeat;
+
+        Execution(
+                @NonNull StepContext context,
+                CosmosLockStep step,
+                String credentialsId,
+                String database,
+                String container) {
+            super(context);
+            this.resource = step.resource;
+            this.permits = step.permits;
+            this.leaseSeconds = step.leaseSeconds;
+            this.credentialsId = credentialsId;
+            this.database = database;
+            this.container = container;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            Run<?, ?> run = requireNonNull(getContext().get(Run.class), "Run must not be null");
+            String rootUrl = Jenkins.get().getRootUrl();
+            owner = rootUrl == null ? run.getExternalizableId() : run.getExternalizableId() + " on " + rootUrl;
+            schedule(this::attempt, 0);
+            return false;
+        }
+
+        private CosmosLock lock() throws IOException, InterruptedException {
+            Run<?, ?> run = requireNonNull(getContext().get(Run.class), "Run must not be null");
+            CosmosConnection connection = AzureCosmosDBCache.getConnection(credentialsId, run.getParent());
+            return new CosmosLock(connection, database, container, resource, permits, leaseSeconds);
+        }
+
+        /** Runs the requests to the account on the plugin's threads, after a delay. */
+        private void schedule(Runnable work, long delayMillis) {
+            scheduled = Timer.get().schedule(() -> submit(work), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void submit(Runnable work) {
+            try {
+                Run<?, ?> run = requireNonNull(getContext().get(Run.class), "Run must not be null");
+                String account = AzureCosmosDBCache.getConnection(credentialsId, run.getParent()).getAccount();
+                CosmosStepExecutor.get().submit(account, run.getParent().getFullName(), work);
+            } catch (Exception e) {
+                getContext().onFailure(e);
+            }
+        }
+
+        private void attempt() {
+            if (stopped) {
+                return;
+            }
+            try {
+                TaskListener listener = getContext().get(TaskListener.class);
+                if (!lock().tryAcquire(holder, owner)) {
+                    if (waits++ == 0) {
+                        listener.getLogger().println("Waiting for lock on " + resource);
+                    }
+                    schedule(this::attempt, backoff());
+                    return;
+                }
+                acquired = true;
+                if (stopped) {
+                    release();
+                    return;
+                }
+                listener.getLogger().println("Acquired lock on " + resource);
+                startHeartbeat();
+                body = getContext().newBodyInvoker().withCallback(new Release(this)).start();
+            } catch (Exception e) {
+                if (CosmosCircuitBreaker.isFailure(e)) {
+                    schedule(this::attempt, backoff());
+                } else {
+                    getContext().onFailure(e);
+                }
+            }
+        }
+
+        /** Doubles with each poll up to a limit, with jitter so waiters don't poll in step. */
+        private long backoff() {
+            // renews the waiter's place in the queue well before it expires
+            long limit = Math.min(MAX_BACKOFF_MILLIS, leaseSeconds * 1000L / 3);
+            long delay = Math.min(limit, BACKOFF_MILLIS << Math.min(waits, 20));
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+
+        private void startHeartbeat() {
+            long period = leaseSeconds * 1000L / 3;
+            heartbeat = Timer.get()
+                    .scheduleWithFixedDelay(() -> submit(this::renew), period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void renew() {
+            if (!acquired) {
+                return;
+            }
+            try {
+                if (!lock().renew(holder)) {
+                    acquired = false;
+                    stopHeartbeat();
+                    BodyExecution running = body;
+                    if (running != null) {
+                        running.cancel(new AbortException("Lost the lock on " + resource + ", its lease expired"));
+                    }
+                }
+            } catch (Exception e) {
+                // the lease outlasts a few failed renewals
+                try {
+                    getContext()
+                            .get(TaskListener.class)
+                            .getLogger()
+                            .println("Could not renew the lock on " + resource + ": " + e);
+                } catch (IOException | InterruptedException x) {
+                    // nowhere to report it
+                }
+            }
+        }
+
+        private void stopHeartbeat() {
+            Future<?> current = heartbeat;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+
+        /** Gives the lock up, or leaves the queue when still waiting. */
+        void release() throws IOException, InterruptedException {
+            stopHeartbeat();
+            acquired = false;
+            lock().release(holder);
+        }
+
+        @Override
+        public void stop(@NonNull Throwable cause) throws Exception {
+            stopped = true;
+            Future<?> current = scheduled;
+            if (current != null) {
+                current.cancel(false);
+            }
+            BodyExecution running = body;
+            if (running != null) {
+                // the callback releases the lock once the body is done
+                running.cancel(cause);
+                return;
+            }
+            getContext().onFailure(cause);
+            submit(() -> {
+                try {
+                    release();
+                } catch (Exception e) {
+                    // expires on its own
+                }
+            });
+        }
+
+        @Override
+        public void onResume() {
+            if (stopped) {
+                return;
+            }
+            if (acquired) {
+                // the lease may have run out while the controller restarted
+                submit(this::renew);
+                startHeartbeat();
+            } else if (body == null) {
+                schedule(this::attempt, 0);
+            }
+        }
+    }
+
+    /** Releases the lock off the pipeline's thread before passing the body's outcome on. */
+    private static class Release extends BodyExecutionCallback {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Execution execution;
+
+        Release(Execution execution) {
+            this.execution = execution;
+        }
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            execution.submit(() -> {
+                release(context);
+                context.onSuccess(result);
+            });
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            execution.submit(() -> {
+                release(context);
+                context.onFailure(t);
+            });
+        }
+
+        // a lock that couldn't be released expires with its lease, the body's outcome stands
+        private void release(StepContext context) {
+            try {
+                execution.release();
+            } catch (Exception e) {
+                try {
+                    context.get(TaskListener.class)
+                            .getLogger()
+                            .println("Could not release the lock on " + execution.resource + ": " + e);
+                } catch (IOException | InterruptedException x) {
+                    // nowhere to report it
+                }
+            }
+        }
+    }
+}
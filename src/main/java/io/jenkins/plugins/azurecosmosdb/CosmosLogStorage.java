@@ -0,0 +1,311 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.console.AnnotatedLargeText;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.util.io.CloseProofOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.log.LogStorage;
+import org.kohsuke.stapler.framework.io.ByteBuffer;
+
+/**
+ * Log storage of a pipeline build in Cosmos DB, see {@link CosmosRunLog} for how it is written. The console reads the
+ * overall log a page at a time: chunks before the requested offset are skipped using their metadata, only the chunks
+ * shown are read. A step's log is streamed the same way from the chunks the step wrote to.
+ */
+class CosmosLogStorage implements LogStorage {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosLogStorage.class.getName());
+
+    private final String credentialsId;
+    private final String database;
+    private final String container;
+    private final String run;
+
+    CosmosLogStorage(String credentialsId, String database, String container, String run) {
+        this.credentialsId = credentialsId;
+        this.database = database;
+        this.container = container;
+        this.run = run;
+    }
+
+    @NonNull
+    @Override
+    public BuildListener overallListener() throws IOException {
+        return new Listener(open(), null, true);
+    }
+
+    @NonNull
+    @Override
+    public TaskListener nodeListener(@NonNull FlowNode node) throws IOException {
+        return new Listener(open(), node.getId(), false);
+    }
+
+    private CosmosRunLog open() throws IOException {
+        try {
+            return CosmosRunLog.open(run, credentialsId, database, container);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not open the log of " + run + " in Cosmos DB", e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public AnnotatedLargeText<FlowExecutionOwner.Executable> overallLog(
+            @NonNull FlowExecutionOwner.Executable build, boolean complete) {
+        return new AnnotatedLargeText<>(new OverallText(), StandardCharsets.UTF_8, complete, build);
+    }
+
+    @NonNull
+    @Override
+    public AnnotatedLargeText<FlowNode> stepLog(@NonNull FlowNode node, boolean complete) {
+        return new AnnotatedLargeText<>(new StepText(node.getId()), StandardCharsets.UTF_8, complete, node);
+    }
+
+    /** The stored chunks and the output that isn't stored yet, at the time the log is first read. */
+    private final class Snapshot {
+        final List<CosmosRunLog.Chunk> chunks;
+        final CosmosRunLog.ChunkData tail;
+        final long length;
+
+        Snapshot() throws IOException {
+            CosmosRunLog live = CosmosRunLog.live(run);
+            // taken before listing the chunks, so every chunk before it is listed
+            CosmosRunLog.Tail tail = live == null ? null : live.tail();
+            List<CosmosRunLog.Chunk> stored = CosmosRunLog.chunks(credentialsId, database, container, run);
+            if (tail == null) {
+                this.chunks = stored;
+                this.tail = new CosmosRunLog.ChunkData(new byte[0], List.of());
+                CosmosRunLog.Chunk last = stored.isEmpty() ? null : stored.get(stored.size() - 1);
+                this.length = last == null ? 0 : last.pos + last.size;
+            } else {
+                this.chunks = stored.stream().filter(chunk -> chunk.pos < tail.pos).toList();
+                this.tail = tail.data;
+                this.length = tail.pos + tail.data.data.length;
+            }
+        }
+
+        CosmosRunLog.ChunkData read(int index) throws IOException {
+            return index < chunks.size()
+                    ? CosmosRunLog.read(credentialsId, database, container, run, chunks.get(index))
+                    : tail;
+        }
+    }
+
+    private final class OverallText extends ByteBuffer {
+
+        private Snapshot snapshot;
+
+        private synchronized Snapshot snapshot() throws IOException {
+            if (snapshot == null) {
+                snapshot = new Snapshot();
+            }
+            return snapshot;
+        }
+
+        @Override
+        public long length() {
+            try {
+                return snapshot().length;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read the log of " + run, e);
+                return 0;
+            }
+        }
+
+        @Override
+        public InputStream newInputStream() {
+            try {
+                return new ChunkInputStream(snapshot(), null);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read the log of " + run, e);
+                return InputStream.nullInputStream();
+            }
+        }
+    }
+
+    /**
+     * Reads the chunks in order, or only what a flow node wrote to them, holding one chunk at a time. Whole chunks are
+     * skipped without reading them, as are chunks the flow node didn't write to.
+     */
+    private static final class ChunkInputStream extends InputStream {
+
+        private final Snapshot snapshot;
+        private final String node;
+        private int next;
+        private byte[] current = new byte[0];
+        private int offset;
+
+        ChunkInputStream(Snapshot snapshot, @CheckForNull String node) {
+            this.snapshot = snapshot;
+            this.node = node;
+        }
+
+        private boolean ensure() throws IOException {
+            while (offset >= current.length) {
+                if (next > snapshot.chunks.size()) {
+                    return false;
+                }
+                int index = next++;
+                if (node != null && index < snapshot.chunks.size() && !snapshot.chunks.get(index).mayContain(node)) {
+                    continue;
+                }
+                current = snapshot.read(index).bytesOf(node);
+                offset = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensure() ? current[offset++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensure()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if (offset < current.length) {
+                    int step = (int) Math.min(n - skipped, current.length - offset);
+                    offset += step;
+                    skipped += step;
+                } else if (next < snapshot.chunks.size() && fits(snapshot.chunks.get(next).sizeOf(node), n - skipped)) {
+                    skipped += snapshot.chunks.get(next++).sizeOf(node);
+                } else if (!ensure()) {
+                    break;
+                }
+            }
+            return skipped;
+        }
+
+        // chunks without the sizes of their flow nodes have to be read to skip them
+        private static boolean fits(long size, long remaining) {
+            return size >= 0 && size <= remaining;
+        }
+    }
+
+    /** The log of one step, streamed from the chunks the step wrote to. */
+    private final class StepText extends ByteBuffer {
+
+        private final String node;
+        private Snapshot snapshot;
+        private long length = -1;
+
+        StepText(String node) {
+            this.node = node;
+        }
+
+        private synchronized Snapshot snapshot() throws IOException {
+            if (snapshot == null) {
+                snapshot = new Snapshot();
+            }
+            return snapshot;
+        }
+
+        /** Adds up the sizes listed with the chunks, only chunks stored without them are read. */
+        @Override
+        public synchronized long length() {
+            if (length < 0) {
+                try {
+                    Snapshot snapshot = snapshot();
+                    long total = snapshot.tail.bytesOf(node).length;
+                    for (int i = 0; i < snapshot.chunks.size(); i++) {
+                        long size = snapshot.chunks.get(i).sizeOf(node);
+                        total += size >= 0 ? size : snapshot.read(i).bytesOf(node).length;
+                    }
+                    length = total;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not read the log of step " + node + " of " + run, e);
+                    return 0;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public InputStream newInputStream() {
+            try {
+                return new ChunkInputStream(snapshot(), node);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read the log of step " + node + " of " + run, e);
+                return InputStream.nullInputStream();
+            }
+        }
+    }
+
+    /**
+     * Appends whole lines to the run's log. Closing the build's own listener writes what is left once the build is
+     * done.
+     */
+    private static final class Listener implements BuildListener, AutoCloseable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient CosmosRunLog log;
+        private final transient LineTransformationOutputStream out;
+        private final transient PrintStream logger;
+        private final boolean overall;
+
+        Listener(CosmosRunLog log, @CheckForNull String node, boolean overall) {
+            this.log = log;
+            this.overall = overall;
+            this.out = new LineTransformationOutputStream() {
+                @Override
+                protected void eol(byte[] b, int len) {
+                    log.append(node, b, len);
+                }
+            };
+            this.logger = new PrintStream(out, true, StandardCharsets.UTF_8);
+        }
+
+        @NonNull
+        @Override
+        public PrintStream getLogger() {
+            return logger;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // completes a last line without a line break
+            logger.close();
+            if (overall) {
+                log.close();
+            }
+        }
+
+        /** Agents write through the controller. */
+        private Object writeReplace() throws ObjectStreamException {
+            return new StreamBuildListener(
+                    new RemoteOutputStream(new CloseProofOutputStream(logger)),
+                    StandardCharsets.UTF_8);
+        }
+    }
+}
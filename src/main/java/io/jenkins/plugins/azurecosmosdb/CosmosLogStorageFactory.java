@@ -0,0 +1,76 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.log.LogStorage;
+import org.jenkinsci.plugins.workflow.log.LogStorageFactory;
+
+/**
+ * Stores the logs of new pipeline builds in Cosmos DB when configured globally. Where a build's log is stored is
+ * recorded in its build directory when it starts, so builds keep reading their log from where it was written when the
+ * configuration changes.
+ */
+@Extension
+public class CosmosLogStorageFactory implements LogStorageFactory {
+
+    static final String MARKER = "azure-cosmosdb-log.properties";
+
+    @CheckForNull
+    @Override
+    public LogStorage forBuild(@NonNull FlowExecutionOwner owner) {
+        try {
+            Queue.Executable executable = owner.getExecutable();
+            if (!(executable instanceof Run)) {
+                return null;
+            }
+            Run<?, ?> run = (Run<?, ?>) executable;
+            Properties location = location(run);
+            if (location == null) {
+                return null;
+            }
+            return new CosmosLogStorage(
+                    location.getProperty("credentialsId"),
+                    location.getProperty("database"),
+                    location.getProperty("container"),
+                    run.getExternalizableId());
+        } catch (IOException e) {
+            return LogStorage.broken(e);
+        }
+    }
+
+    /** Where the build's log is stored, or {@code null} when it is stored in a file. */
+    @CheckForNull
+    private static Properties location(Run<?, ?> run) throws IOException {
+        File marker = new File(run.getRootDir(), MARKER);
+        Properties location = new Properties();
+        if (marker.isFile()) {
+            try (InputStream in = Files.newInputStream(marker.toPath())) {
+                location.load(in);
+            }
+            return location;
+        }
+        AzureCosmosDBGlobalConfiguration configuration = AzureCosmosDBGlobalConfiguration.get();
+        // builds that already write to a file keep doing so
+        if (!configuration.isLogStorageEnabled() || new File(run.getRootDir(), "log").exists()) {
+            return null;
+        }
+        location.setProperty("credentialsId", configuration.getLogStorageCredentialsId());
+        location.setProperty("database", configuration.getLogStorageDatabase());
+        location.setProperty("container", configuration.getLogStorageContainer());
+        Files.createDirectories(run.getRootDir().toPath());
+        try (OutputStream out = Files.newOutputStream(marker.toPath())) {
+            location.store(out, null);
+        }
+        return location;
+    }
+}
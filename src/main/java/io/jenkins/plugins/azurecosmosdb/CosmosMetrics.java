@@ -0,0 +1,147 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.CosmosDiagnosticsContext;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosClientTelemetryConfig;
+import com.azure.cosmos.models.CosmosMicrometerMetricsOptions;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.NamingConvention;
+import io.micrometer.core.instrument.dropwizard.DropwizardConfig;
+import io.micrometer.core.instrument.dropwizard.DropwizardMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.core.instrument.util.HierarchicalNameMapper;
+import java.time.Duration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Publishes Cosmos DB operation metrics to the Jenkins metrics registry, and from there to anything reading it, such
+ * as the Prometheus plugin.
+ *
+ * <p>The SDK's own client telemetry is wired to the same registry, which adds transport level detail such as retries
+ * on 449 and 503 responses that never surface to the steps.
+ */
+class CosmosMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosMetrics.class.getName());
+
+    static final String PREFIX = "azure-cosmosdb";
+
+    private static volatile MeterRegistry registry;
+
+    private CosmosMetrics() {}
+
+    static MeterRegistry registry() {
+        MeterRegistry current = registry;
+        if (current == null) {
+            synchronized (CosmosMetrics.class) {
+                current = registry;
+                if (current == null) {
+                    current = createRegistry();
+                    registry = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static MeterRegistry createRegistry() {
+        try {
+            DropwizardConfig config = new DropwizardConfig() {
+                @Override
+                public String prefix() {
+                    return PREFIX;
+                }
+
+                @Override
+                public String get(String key) {
+                    return null;
+                }
+            };
+            MeterRegistry dropwizard = new DropwizardMeterRegistry(
+                    config, Metrics.metricRegistry(), HierarchicalNameMapper.DEFAULT, Clock.SYSTEM) {
+                @Override
+                protected Double nullGaugeValue() {
+                    return Double.NaN;
+                }
+            };
+            // keep names consistent with the rest of the Jenkins metrics rather than Dropwizard's camel case
+            dropwizard.config().namingConvention(NamingConvention.dot);
+            return dropwizard;
+        } catch (RuntimeException | LinkageError e) {
+            LOGGER.log(Level.FINE, "Metrics registry unavailable, metrics won't be published", e);
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    /** Telemetry configuration for new clients, sends the SDK's operation and request metrics to our registry. */
+    static CosmosClientTelemetryConfig telemetryConfig() {
+        return new CosmosClientTelemetryConfig()
+                .metricsOptions(new CosmosMicrometerMetricsOptions().meterRegistry(registry()));
+    }
+
+    static void recordSuccess(CosmosOperationResult result, CosmosDiagnostics diagnostics) {
+        record(
+                result.getOperation(),
+                result.getDatabase(),
+                result.getContainer(),
+                result.getStatusCode(),
+                Duration.ofMillis(result.getLatencyMillis()),
+                diagnostics);
+    }
+
+    static void recordFailure(String operation, String database, String container, CosmosException e) {
+        CosmosDiagnostics diagnostics = e.getDiagnostics();
+        Duration latency = diagnostics == null ? Duration.ZERO : diagnostics.getDuration();
+        record(operation, database, container, e.getStatusCode(), latency, diagnostics);
+    }
+
+    private static void record(
+            String operation,
+            String database,
+            String container,
+            int statusCode,
+            Duration latency,
+            CosmosDiagnostics diagnostics) {
+        MeterRegistry meters = registry();
+        CosmosDiagnosticsContext context = diagnostics == null ? null : diagnostics.getDiagnosticsContext();
+        String account = context == null || context.getAccountName() == null ? "unknown" : context.getAccountName();
+        String containerName = database + "/" + container;
+
+        Timer.builder(PREFIX + ".operation.latency")
+                .tags("account", account, "container", containerName, "operation", operation)
+                .register(meters)
+                .record(latency == null ? Duration.ZERO : latency);
+        Timer.builder(PREFIX + ".account.latency")
+                .tags("account", account)
+                .register(meters)
+                .record(latency == null ? Duration.ZERO : latency);
+        Counter.builder(PREFIX + ".operation.status")
+                .tags("account", account, "statusCode", String.valueOf(statusCode))
+                .register(meters)
+                .increment();
+
+        if (context != null) {
+            DistributionSummary.builder(PREFIX + ".operation.retries")
+                    .tags("account", account, "container", containerName)
+                    .register(meters)
+                    .record(context.getRetryCount());
+            DistributionSummary.builder(PREFIX + ".operation.request.size")
+                    .baseUnit("bytes")
+                    .tags("account", account, "container", containerName)
+                    .register(meters)
+                    .record(context.getMaxRequestPayloadSizeInBytes());
+            DistributionSummary.builder(PREFIX + ".operation.response.size")
+                    .baseUnit("bytes")
+                    .tags("account", account, "container", containerName)
+                    .register(meters)
+                    .record(context.getMaxResponsePayloadSizeInBytes());
+        }
+    }
+}
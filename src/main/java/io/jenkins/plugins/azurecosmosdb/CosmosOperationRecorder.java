@@ -0,0 +1,41 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.util.SystemProperties;
+
+/** Records the outcome of operations performed by steps, logging diagnostics for slow or expensive ones. */
+class CosmosOperationRecorder {
+
+    // Operations slower than this have their diagnostics written to the build log
+    private static final long LATENCY_THRESHOLD_MILLIS = SystemProperties.getLong(
+            CosmosOperationRecorder.class.getName() + ".LATENCY_THRESHOLD_MILLIS", 1000L);
+
+    // Operations costing more request units than this have their diagnostics written to the build log
+    private static final double REQUEST_CHARGE_THRESHOLD = Double.parseDouble(SystemProperties.getString(
+            CosmosOperationRecorder.class.getName() + ".REQUEST_CHARGE_THRESHOLD", "100"));
+
+    private CosmosOperationRecorder() {}
+
+    static void record(
+            Run<?, ?> run, TaskListener listener, CosmosOperationResult result, CosmosDiagnostics diagnostics) {
+        if (run != null) {
+            AzureCosmosDBRunAction.forRun(run).add(result);
+            RequestChargeLedger.get().record(run.getParent(), result.getRequestCharge());
+        }
+        CosmosMetrics.recordSuccess(result, diagnostics);
+
+        if (listener != null && diagnostics != null && exceedsThresholds(result)) {
+            listener.getLogger()
+                    .printf(
+                            "Cosmos DB %s took %d ms and cost %.2f RU, diagnostics: %s%n",
+                            result.getOperation(), result.getLatencyMillis(), result.getRequestCharge(), diagnostics);
+        }
+    }
+
+    static boolean exceedsThresholds(CosmosOperationResult result) {
+        return result.getLatencyMillis() > LATENCY_THRESHOLD_MILLIS
+                || result.getRequestCharge() > REQUEST_CHARGE_THRESHOLD;
+    }
+}
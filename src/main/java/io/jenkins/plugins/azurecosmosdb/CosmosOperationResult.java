@@ -0,0 +1,172 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosDiagnostics;
+import com.azure.cosmos.models.CosmosBatchResponse;
+import com.azure.cosmos.models.CosmosItemResponse;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Outcome of a single Cosmos DB operation, returned from steps and aggregated in {@link AzureCosmosDBRunAction}. */
+public class CosmosOperationResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String operation;
+    private final String database;
+    private final String container;
+    private final String id;
+    private final String etag;
+    private final int statusCode;
+    private final double requestCharge;
+    private final long latencyMillis;
+    private final List<String> regions;
+    private final boolean hedged;
+
+    CosmosOperationResult(
+            String operation,
+            String database,
+            String container,
+            String id,
+            String etag,
+            int statusCode,
+            double requestCharge,
+            Duration latency,
+            List<String> regions) {
+        this(operation, database, container, id, etag, statusCode, requestCharge, latency, regions, false);
+    }
+
+    CosmosOperationResult(
+            String operation,
+            String database,
+            String container,
+            String id,
+            String etag,
+            int statusCode,
+            double requestCharge,
+            Duration latency,
+            List<String> regions,
+            boolean hedged) {
+        this.operation = operation;
+        this.database = database;
+        this.container = container;
+        this.id = id;
+        this.etag = etag;
+        this.statusCode = statusCode;
+        this.requestCharge = requestCharge;
+        this.latencyMillis = latency == null ? 0 : latency.toMillis();
+        this.regions = regions == null ? Collections.emptyList() : Collections.unmodifiableList(regions);
+        this.hedged = hedged;
+    }
+
+    static CosmosOperationResult fromResponse(
+            String operation, String database, String container, String id, CosmosItemResponse<?> response) {
+        return fromResponse(operation, database, container, id, response, false);
+    }
+
+    static CosmosOperationResult fromResponse(
+            String operation,
+            String database,
+            String container,
+            String id,
+            CosmosItemResponse<?> response,
+            boolean hedged) {
+        return new CosmosOperationResult(
+                operation,
+                database,
+                container,
+                id,
+                response.getETag(),
+                response.getStatusCode(),
+                response.getRequestCharge(),
+                response.getDuration(),
+                contactedRegions(response.getDiagnostics()),
+                hedged);
+    }
+
+    static CosmosOperationResult fromBatchResponse(
+            String operation, String database, String container, CosmosBatchResponse response) {
+        return new CosmosOperationResult(
+                operation,
+                database,
+                container,
+                null,
+                null,
+                response.getStatusCode(),
+                response.getRequestCharge(),
+                response.getDuration(),
+                contactedRegions(response.getDiagnostics()));
+    }
+
+    static List<String> contactedRegions(CosmosDiagnostics diagnostics) {
+        if (diagnostics == null || diagnostics.getContactedRegionNames() == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(diagnostics.getContactedRegionNames());
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public double getRequestCharge() {
+        return requestCharge;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public List<String> getRegions() {
+        return regions;
+    }
+
+    /** Whether the response came from a request hedged to another region, see the credentials' latency policy. */
+    public boolean isHedged() {
+        return hedged;
+    }
+
+    /** Pipeline friendly representation, only uses types that are safe to keep in the program state. */
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", id);
+        result.put("etag", etag);
+        result.put("statusCode", statusCode);
+        result.put("requestCharge", requestCharge);
+        result.put("latencyMillis", latencyMillis);
+        result.put("regions", new ArrayList<>(regions));
+        result.put("hedged", hedged);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "CosmosOperationResult{operation='%s', database='%s', container='%s', id='%s', statusCode=%d, requestCharge=%.2f, latencyMillis=%d, regions=%s, hedged=%s}",
+                operation, database, container, id, statusCode, requestCharge, latencyMillis, regions, hedged);
+    }
+}
@@ -0,0 +1,68 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.models.PriorityLevel;
+import com.azure.cosmos.models.ThroughputControlGroupConfig;
+import com.azure.cosmos.models.ThroughputControlGroupConfigBuilder;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.util.ListBoxModel;
+import java.util.Locale;
+
+/**
+ * Priority of the requests a step sends. When the account has priority-based execution enabled and its throughput is
+ * exhausted, low priority requests are throttled before high priority ones, including those of other applications
+ * sharing the account.
+ */
+public enum CosmosRequestPriority {
+    /** Bulk work that can wait, throttled first. */
+    LOW(PriorityLevel.LOW),
+    /** Latency-sensitive requests. */
+    HIGH(PriorityLevel.HIGH);
+
+    private final PriorityLevel level;
+
+    CosmosRequestPriority(PriorityLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Parses a priority ignoring case, as in {@code priority: 'low'}.
+     *
+     * @return {@code null} for an empty value, which inherits the default
+     * @throws IllegalArgumentException if the value isn't a priority
+     */
+    @CheckForNull
+    static CosmosRequestPriority parse(@CheckForNull String priority) {
+        String value = Util.fixEmptyAndTrim(priority);
+        if (value == null) {
+            return null;
+        }
+        for (CosmosRequestPriority candidate : values()) {
+            if (candidate.name().equalsIgnoreCase(value)) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("Unknown priority '" + priority + "', expected 'low' or 'high'");
+    }
+
+    /** The throughput control group requests of this priority are sent with, enabled per container on first use. */
+    String getGroupName() {
+        return "jenkins-" + name().toLowerCase(Locale.ROOT);
+    }
+
+    ThroughputControlGroupConfig toGroupConfig() {
+        return new ThroughputControlGroupConfigBuilder()
+                .groupName(getGroupName())
+                .priorityLevel(level)
+                .build();
+    }
+
+    /** Choices for forms, the empty one inherits the default. */
+    static ListBoxModel items(String inherited) {
+        ListBoxModel items = new ListBoxModel();
+        items.add(inherited, "");
+        items.add("Low", LOW.name());
+        items.add("High", HIGH.name());
+        return items;
+    }
+}
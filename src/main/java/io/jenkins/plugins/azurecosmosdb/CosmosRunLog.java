@@ -0,0 +1,504 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.FeedResponse;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * The log of a pipeline build stored in Cosmos DB as gzipped chunks, one document per chunk in a container partitioned
+ * by {@code /run}. Each chunk records which flow node wrote which part of it, so a step's log can be read back on its
+ * own.
+ *
+ * <p>While the build runs, output is buffered on the controller and written once {@link #CHUNK_BYTES} have been
+ * buffered or every {@link #FLUSH_MILLIS}, on the threads of {@link CosmosStepExecutor}. At most
+ * {@link #MAX_BUFFER_BYTES} are buffered per build; when the account falls behind, writers wait for the buffer to
+ * drain, and drop their output if it doesn't within {@link #APPEND_TIMEOUT_MILLIS}.
+ */
+class CosmosRunLog {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosRunLog.class.getName());
+
+    static final int CHUNK_BYTES =
+            SystemProperties.getInteger(CosmosRunLog.class.getName() + ".CHUNK_BYTES", 128 * 1024);
+
+    static final int MAX_BUFFER_BYTES =
+            SystemProperties.getInteger(CosmosRunLog.class.getName() + ".MAX_BUFFER_BYTES", 1024 * 1024);
+
+    static final long FLUSH_MILLIS = SystemProperties.getLong(CosmosRunLog.class.getName() + ".FLUSH_MILLIS", 2000L);
+
+    static final long APPEND_TIMEOUT_MILLIS =
+            SystemProperties.getLong(CosmosRunLog.class.getName() + ".APPEND_TIMEOUT_MILLIS", 30_000L);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    // logs of running builds, by run
+    private static final Map<String, CosmosRunLog> LIVE = new ConcurrentHashMap<>();
+
+    // only hands the writes to the executor, a slow account mustn't hold up the threads Jenkins shares
+    static {
+        Timer.get().scheduleWithFixedDelay(CosmosRunLog::flushAll, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private final String run;
+    private final String credentialsId;
+    private final String database;
+    private final String container;
+
+    // guarded by this: output waiting to be written, and the chunk being written
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private List<Segment> pendingSegments = new ArrayList<>();
+    private byte[] flushing;
+    private List<Segment> flushingSegments = List.of();
+    private long committed;
+    private long seq;
+    private long dropped;
+    private boolean closed;
+
+    // only one chunk is written at a time so they are stored in order
+    private final Object flushLock = new Object();
+
+    // at most one flush per log waits for or runs on the executor
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private CosmosRunLog(String run, String credentialsId, String database, String container, List<Chunk> chunks) {
+        this.run = run;
+        this.credentialsId = credentialsId;
+        this.database = database;
+        this.container = container;
+        if (!chunks.isEmpty()) {
+            Chunk last = chunks.get(chunks.size() - 1);
+            this.committed = last.pos + last.size;
+            this.seq = last.seq + 1;
+        }
+    }
+
+    /** The log a running build writes to, continuing after the chunks already stored when the build resumes. */
+    static CosmosRunLog open(String run, String credentialsId, String database, String container) throws IOException {
+        CosmosRunLog log = LIVE.get(run);
+        if (log != null) {
+            return log;
+        }
+        List<Chunk> chunks = chunks(credentialsId, database, container, run);
+        return LIVE.computeIfAbsent(run, k -> new CosmosRunLog(run, credentialsId, database, container, chunks));
+    }
+
+    @CheckForNull
+    static CosmosRunLog live(String run) {
+        return LIVE.get(run);
+    }
+
+    private static void flushAll() {
+        for (CosmosRunLog log : LIVE.values()) {
+            if (log.hasPending()) {
+                log.scheduleFlush();
+            }
+        }
+    }
+
+    private synchronized boolean hasPending() {
+        return pending.size() > 0;
+    }
+
+    /**
+     * Flushes the log on the plugin's executor unless a flush is already waiting or running, output buffered while it
+     * runs is written by the same flush or the next periodic one.
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            CosmosStepExecutor.get().submit(account(), run, () -> {
+                try {
+                    flush();
+                } finally {
+                    flushScheduled.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            flushScheduled.set(false);
+            LOGGER.log(Level.FINE, "Could not schedule writing the log of " + run, e);
+        }
+    }
+
+    // the executor limits concurrent requests per account, missing credentials are reported by the write itself
+    private String account() {
+        try {
+            return AzureCosmosDBCache.getConnection(credentialsId, null).getAccount();
+        } catch (RuntimeException e) {
+            return credentialsId;
+        }
+    }
+
+    /** Buffers complete lines written by a flow node, or by the build itself when {@code node} is {@code null}. */
+    void append(@CheckForNull String node, byte[] bytes, int length) {
+        boolean full;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(APPEND_TIMEOUT_MILLIS);
+            while (pending.size() > 0 && pending.size() + length > MAX_BUFFER_BYTES) {
+                long remaining = deadline - System.nanoTime();
+                // once output was dropped, keep dropping rather than waiting on every line
+                if (remaining <= 0 || dropped > 0) {
+                    dropped += length;
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped += length;
+                    return;
+                }
+            }
+            if (dropped > 0) {
+                byte[] note = String.format("[%d bytes of log output were dropped, Cosmos DB fell behind]%n", dropped)
+                        .getBytes(StandardCharsets.UTF_8);
+                dropped = 0;
+                add(null, note, note.length);
+            }
+            add(node, bytes, length);
+            full = pending.size() >= CHUNK_BYTES;
+        }
+        if (full) {
+            scheduleFlush();
+        }
+    }
+
+    private void add(@CheckForNull String node, byte[] bytes, int length) {
+        pending.write(bytes, 0, length);
+        Segment last = pendingSegments.isEmpty() ? null : pendingSegments.get(pendingSegments.size() - 1);
+        if (last != null && Objects.equals(last.node, node)) {
+            last.size += length;
+        } else {
+            pendingSegments.add(new Segment(node, length));
+        }
+    }
+
+    /**
+     * Writes the buffered output in chunks of at most {@link #CHUNK_BYTES}, keeping what isn't written to retry later
+     * if the account isn't available.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            while (flushChunk()) {
+                // until everything buffered is written
+            }
+        }
+    }
+
+    private boolean flushChunk() {
+        byte[] data;
+        List<Segment> segments;
+        long pos;
+        long chunkSeq;
+        synchronized (this) {
+            if (pending.size() == 0) {
+                return false;
+            }
+            byte[] buffered = pending.toByteArray();
+            data = Arrays.copyOf(buffered, Math.min(buffered.length, CHUNK_BYTES));
+            segments = takeSegments(data.length);
+            pending = new ByteArrayOutputStream();
+            pending.write(buffered, data.length, buffered.length - data.length);
+            flushing = data;
+            flushingSegments = segments;
+            pos = committed;
+            chunkSeq = seq;
+        }
+        boolean written = true;
+        try {
+            write(chunkSeq, pos, data, segments);
+        } catch (RuntimeException | IOException e) {
+            if (CosmosCircuitBreaker.isFailure(e)) {
+                LOGGER.log(Level.FINE, "Could not write the log of " + run + ", will retry", e);
+                written = false;
+            } else {
+                LOGGER.log(Level.WARNING, "Dropping " + data.length + " bytes of the log of " + run, e);
+                data = null;
+            }
+        }
+        synchronized (this) {
+            flushing = null;
+            flushingSegments = List.of();
+            if (!written) {
+                // put the chunk back in front of what was buffered meanwhile
+                ByteArrayOutputStream retry = new ByteArrayOutputStream();
+                retry.write(data, 0, data.length);
+                byte[] later = pending.toByteArray();
+                retry.write(later, 0, later.length);
+                segments.addAll(pendingSegments);
+                pending = retry;
+                pendingSegments = segments;
+            } else {
+                if (data != null) {
+                    committed = pos + data.length;
+                }
+                // a dropped chunk still uses up its id, so the next one doesn't hit whatever made it fail
+                seq = chunkSeq + 1;
+            }
+            notifyAll();
+        }
+        return written;
+    }
+
+    /** Removes the segments of the first {@code length} buffered bytes, splitting the last one. */
+    private List<Segment> takeSegments(int length) {
+        List<Segment> taken = new ArrayList<>();
+        int remaining = length;
+        while (remaining > 0) {
+            Segment first = pendingSegments.get(0);
+            if (first.size <= remaining) {
+                taken.add(pendingSegments.remove(0));
+                remaining -= first.size;
+            } else {
+                taken.add(new Segment(first.node, remaining));
+                first.size -= remaining;
+                remaining = 0;
+            }
+        }
+        return taken;
+    }
+
+    /** Writes what is left and stops buffering, once the build is done. */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flush();
+        LIVE.remove(run, this);
+        synchronized (this) {
+            if (pending.size() > 0) {
+                LOGGER.warning(
+                        "Dropping " + pending.size() + " bytes of the log of " + run + ", Cosmos DB is unavailable");
+            }
+        }
+    }
+
+    /**
+     * Output that isn't stored yet, with the offset it starts at in the log, so readers can show it after the stored
+     * chunks before it.
+     */
+    synchronized Tail tail() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<Segment> segments = new ArrayList<>();
+        if (flushing != null) {
+            bytes.write(flushing, 0, flushing.length);
+            flushingSegments.forEach(segment -> segments.add(new Segment(segment.node, segment.size)));
+        }
+        byte[] buffered = pending.toByteArray();
+        bytes.write(buffered, 0, buffered.length);
+        pendingSegments.forEach(segment -> segments.add(new Segment(segment.node, segment.size)));
+        return new Tail(committed, new ChunkData(bytes.toByteArray(), segments));
+    }
+
+    private void write(long chunkSeq, long pos, byte[] data, List<Segment> segments) throws IOException {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode();
+        document.put("id", String.format("%010d", chunkSeq));
+        document.put("run", run);
+        document.put("seq", chunkSeq);
+        document.put("pos", pos);
+        document.put("size", data.length);
+        ArrayNode segmentsNode = document.putArray("segments");
+        // listed with the chunks, so a step's log knows its length and only reads the chunks it wrote to
+        ObjectNode nodesNode = document.putObject("nodes");
+        for (Segment segment : segments) {
+            segmentsNode.addObject().put("node", segment.node).put("size", segment.size);
+            if (segment.node != null) {
+                nodesNode.put(segment.node, nodesNode.path(segment.node).asLong() + segment.size);
+            }
+        }
+        document.put("data", Base64.getEncoder().encodeToString(gzip(data)));
+
+        CosmosConnection connection = AzureCosmosDBCache.getConnection(credentialsId, null);
+        // an upsert, so retrying a chunk that was stored after all doesn't conflict with it
+        connection
+                .getContainer(database, container)
+                .getContainer()
+                .upsertItem(document, new PartitionKey(run), connection.itemRequestOptions());
+    }
+
+    /** The stored chunks of a run without their data, in order. */
+    static List<Chunk> chunks(String credentialsId, String database, String container, String run)
+            throws IOException {
+        SqlQuerySpec query = new SqlQuerySpec(
+                "SELECT c.seq, c.pos, c.size, c.nodes FROM c WHERE c.run = @run", new SqlParameter("@run", run));
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            CosmosConnection connection = AzureCosmosDBCache.getConnection(credentialsId, null);
+            CosmosQueryRequestOptions options = connection.queryRequestOptions();
+            options.setPartitionKey(new PartitionKey(run));
+            for (FeedResponse<JsonNode> page : connection
+                    .getContainer(database, container)
+                    .getContainer()
+                    .queryItems(query, options, JsonNode.class)
+                    .iterableByPage()) {
+                for (JsonNode row : page.getResults()) {
+                    Map<String, Long> nodes = null;
+                    if (row.path("nodes").isObject()) {
+                        nodes = new HashMap<>();
+                        for (Map.Entry<String, JsonNode> node : row.path("nodes").properties()) {
+                            nodes.put(node.getKey(), node.getValue().asLong());
+                        }
+                    }
+                    chunks.add(new Chunk(
+                            row.path("seq").asLong(), row.path("pos").asLong(), row.path("size").asLong(), nodes));
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Could not list the log chunks of " + run, e);
+        }
+        chunks.sort(Comparator.comparingLong(chunk -> chunk.seq));
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /** Reads a stored chunk with the flow node of each of its segments. */
+    static ChunkData read(String credentialsId, String database, String container, String run, Chunk chunk)
+            throws IOException {
+        JsonNode document;
+        try {
+            CosmosConnection connection = AzureCosmosDBCache.getConnection(credentialsId, null);
+            document = connection
+                    .getContainer(database, container)
+                    .getContainer()
+                    .readItem(
+                            String.format("%010d", chunk.seq),
+                            new PartitionKey(run),
+                            connection.itemRequestOptions(),
+                            JsonNode.class)
+                    .getItem();
+        } catch (RuntimeException e) {
+            throw new IOException("Could not read log chunk " + chunk.seq + " of " + run, e);
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (JsonNode segment : document.path("segments")) {
+            segments.add(new Segment(
+                    segment.path("node").isNull() ? null : segment.path("node").asText(),
+                    segment.path("size").asInt()));
+        }
+        return new ChunkData(gunzip(Base64.getDecoder().decode(document.path("data").asText())), segments);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Metadata of a stored chunk, {@code pos} is the offset of its first byte in the log and {@code nodes} the bytes
+     * each flow node wrote to it, {@code null} when not recorded.
+     */
+    static final class Chunk {
+        final long seq;
+        final long pos;
+        final long size;
+        final Map<String, Long> nodes;
+
+        Chunk(long seq, long pos, long size, @CheckForNull Map<String, Long> nodes) {
+            this.seq = seq;
+            this.pos = pos;
+            this.size = size;
+            this.nodes = nodes;
+        }
+
+        /** Whether the flow node may have written to the chunk. */
+        boolean mayContain(String node) {
+            return nodes == null || nodes.containsKey(node);
+        }
+
+        /** The bytes the flow node wrote to the chunk, or the whole chunk for {@code null}; -1 when not recorded. */
+        long sizeOf(@CheckForNull String node) {
+            if (node == null) {
+                return size;
+            }
+            return nodes == null ? -1 : nodes.getOrDefault(node, 0L);
+        }
+    }
+
+    /** Part of a chunk written by one flow node, or by the build itself when {@code node} is {@code null}. */
+    static final class Segment {
+        final String node;
+        int size;
+
+        Segment(@CheckForNull String node, int size) {
+            this.node = node;
+            this.size = size;
+        }
+    }
+
+    static final class ChunkData {
+        final byte[] data;
+        final List<Segment> segments;
+
+        ChunkData(byte[] data, List<Segment> segments) {
+            this.data = data;
+            this.segments = segments;
+        }
+
+        /** The bytes the flow node wrote to the chunk, or the whole chunk for {@code null}. */
+        byte[] bytesOf(@CheckForNull String node) {
+            if (node == null) {
+                return data;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int pos = 0;
+            for (Segment segment : segments) {
+                if (node.equals(segment.node)) {
+                    out.write(data, pos, segment.size);
+                }
+                pos += segment.size;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    static final class Tail {
+        final long pos;
+        final ChunkData data;
+
+        Tail(long pos, ChunkData data) {
+            this.pos = pos;
+            this.data = data;
+        }
+    }
+}
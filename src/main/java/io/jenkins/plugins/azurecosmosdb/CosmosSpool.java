@@ -0,0 +1,300 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import io.jenkins.plugins.azurecosmosdb.ContainerMetadataCache.CachedContainer;
+import io.micrometer.core.instrument.Counter;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Keeps documents that couldn't be written while an account's circuit breaker was open on the controller's disk, and
+ * writes them once the breaker lets requests through again.
+ *
+ * <p>Each write is a file under {@code $JENKINS_HOME/azure-cosmosdb-spool}. Replayed writes are upserts, so a write
+ * that reached the account before the controller restarted isn't duplicated. Writes the account refuses for reasons
+ * other than an outage are moved to the {@code failed} directory for an administrator to look at. Once pending writes
+ * take up the configured size, {@link #MAX_MEGABYTES} by default, further documents aren't spooled and their steps
+ * fail instead.
+ */
+class CosmosSpool {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosSpool.class.getName());
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    static final int MAX_MEGABYTES = SystemProperties.getInteger(CosmosSpool.class.getName() + ".MAX_MEGABYTES", 100);
+
+    private static volatile long configuredMaxBytes = megabytes(MAX_MEGABYTES);
+
+    // bytes taken up by pending writes, counted from the directory on first use and kept up to date after that
+    private static File countedDirectory;
+    private static long pendingBytes;
+
+    private CosmosSpool() {}
+
+    static File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "azure-cosmosdb-spool");
+    }
+
+    /** Sets the size from the global configuration, {@code null} restores the default. */
+    static void configure(Integer maxMegabytes) {
+        configuredMaxBytes = megabytes(maxMegabytes == null ? MAX_MEGABYTES : maxMegabytes);
+    }
+
+    private static long megabytes(int megabytes) {
+        return megabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Writes the document to the spool, the file name sorts writes in the order they were made. Fails when the
+     * spool is full.
+     */
+    static void spool(
+            String account,
+            String credentialsId,
+            Item item,
+            String database,
+            String container,
+            JsonNode document,
+            Object partitionKey,
+            String partitionKeyPath,
+            boolean skipIfUnchanged)
+            throws IOException {
+        ObjectNode entry = OBJECT_MAPPER.createObjectNode();
+        entry.put("account", account);
+        entry.put("credentialsId", credentialsId);
+        entry.put("item", item == null ? null : item.getFullName());
+        entry.put("database", database);
+        entry.put("container", container);
+        entry.set("partitionKey", OBJECT_MAPPER.valueToTree(partitionKey));
+        entry.put("partitionKeyPath", partitionKeyPath);
+        entry.put("skipIfUnchanged", skipIfUnchanged);
+        entry.set("document", document);
+
+        byte[] bytes = OBJECT_MAPPER.writeValueAsBytes(entry);
+        if (!reserve(bytes.length)) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Spool for Cosmos DB writes is full, not spooling a document for account {0}",
+                    account);
+            Counter.builder(CosmosMetrics.PREFIX + ".spool.rejected")
+                    .tags("account", account)
+                    .register(CosmosMetrics.registry())
+                    .increment();
+            throw new AbortException("Cosmos DB account " + account + " is failing and the spool of documents to "
+                    + "write once it recovers is full at " + configuredMaxBytes / (1024 * 1024) + " MB");
+        }
+        try {
+            Path directory = getDirectory().toPath();
+            Files.createDirectories(directory);
+            String name = String.format("%019d-%s.json", System.currentTimeMillis(), UUID.randomUUID());
+            // written under another name first so the replay never reads half a file
+            Path temporary = directory.resolve(name + ".tmp");
+            Files.write(temporary, bytes);
+            Files.move(temporary, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            release(bytes.length);
+            throw e;
+        }
+        Counter.builder(CosmosMetrics.PREFIX + ".spool.written")
+                .tags("account", account)
+                .register(CosmosMetrics.registry())
+                .increment();
+    }
+
+    /** Counts the bytes towards the spool's size unless they don't fit. */
+    private static synchronized boolean reserve(long bytes) throws IOException {
+        File directory = getDirectory();
+        if (!directory.equals(countedDirectory)) {
+            long total = 0;
+            for (Path file : pending()) {
+                total += Files.size(file);
+            }
+            countedDirectory = directory;
+            pendingBytes = total;
+        }
+        if (pendingBytes + bytes > configuredMaxBytes) {
+            return false;
+        }
+        pendingBytes += bytes;
+        return true;
+    }
+
+    private static synchronized void release(long bytes) {
+        pendingBytes = Math.max(0, pendingBytes - bytes);
+    }
+
+    /** Writes that are still waiting, oldest first. */
+    static List<Path> pending() throws IOException {
+        Path directory = getDirectory().toPath();
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".json"))
+                    .sorted()
+                    .collect(ArrayList::new, List::add, List::addAll);
+        }
+    }
+
+    /**
+     * Replays pending writes in order. An account whose breaker is open, or whose write failed again, is skipped
+     * until the next run so its later writes stay behind the earlier ones.
+     */
+    static void replay() throws IOException {
+        Set<String> skipped = new HashSet<>();
+        for (Path file : pending()) {
+            long size = Files.size(file);
+            JsonNode entry;
+            try {
+                entry = OBJECT_MAPPER.readTree(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                entry = null;
+            }
+            // e.g. cut short by a crash or a full disk, it would stop every later write from being replayed
+            if (entry == null || !entry.path("document").isObject()) {
+                LOGGER.log(Level.WARNING, "Spooled write " + file.getFileName() + " can't be read, moving it aside");
+                moveAside(file, size);
+                continue;
+            }
+            String account = entry.path("account").asText();
+            if (skipped.contains(account)) {
+                continue;
+            }
+            CosmosCircuitBreaker breaker = CosmosCircuitBreaker.forAccount(account);
+            if (!breaker.tryAcquire()) {
+                skipped.add(account);
+                continue;
+            }
+            try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+                write(entry);
+                breaker.onSuccess();
+                Files.delete(file);
+                release(size);
+            } catch (RuntimeException | IOException e) {
+                breaker.onError(e);
+                if (CosmosCircuitBreaker.isFailure(e)) {
+                    skipped.add(account);
+                } else {
+                    LOGGER.log(
+                            Level.WARNING, "Spooled write " + file.getFileName() + " was refused, moving it aside", e);
+                    moveAside(file, size);
+                }
+            }
+        }
+    }
+
+    /** Keeps a write that can't be replayed in {@code failed/} for an administrator to look at. */
+    private static void moveAside(Path file, long size) throws IOException {
+        Path failed = file.resolveSibling("failed");
+        Files.createDirectories(failed);
+        Files.move(file, failed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        release(size);
+    }
+
+    private static void write(JsonNode entry) throws IOException {
+        String itemName = entry.path("item").asText(null);
+        Item item = itemName == null ? null : Jenkins.get().getItemByFullName(itemName);
+        CosmosConnection connection =
+                AzureCosmosDBCache.getConnection(entry.path("credentialsId").asText(null), item);
+        CachedContainer container = connection.getContainer(
+                entry.path("database").asText(), entry.path("container").asText());
+        ObjectNode document = (ObjectNode) entry.path("document");
+        Object partitionKey = entry.path("partitionKey").isNull()
+                ? null
+                : OBJECT_MAPPER.treeToValue(entry.path("partitionKey"), Object.class);
+        PartitionKey key =
+                container.partitionKey(document, partitionKey, entry.path("partitionKeyPath").asText(null));
+        try {
+            if (entry.path("skipIfUnchanged").asBoolean()) {
+                writeIfChanged(connection, container.getContainer(), entry, document, key);
+            } else {
+                container.getContainer().upsertItem(document, key, connection.itemRequestOptions());
+            }
+        } catch (CosmosException e) {
+            container.onFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Upserts the document with its content hash unless the same content is already stored, as the create step does
+     * with {@code skipIfUnchanged}.
+     */
+    private static void writeIfChanged(
+            CosmosConnection connection,
+            CosmosContainer container,
+            JsonNode entry,
+            ObjectNode document,
+            PartitionKey key) {
+        String id = document.path("id").asText();
+        String hash = ContentHashCache.hash(document);
+        document.put(ContentHashCache.PROPERTY, hash);
+        String cacheKey = ContentHashCache.key(
+                connection.getAccount(), entry.path("database").asText(), entry.path("container").asText(), key, id);
+        if (hash.equals(ContentHashCache.get(cacheKey))) {
+            return;
+        }
+        try {
+            ObjectNode stored = container
+                    .readItem(id, key, connection.itemRequestOptions(), ObjectNode.class)
+                    .getItem();
+            if (hash.equals(stored.path(ContentHashCache.PROPERTY).asText(null))) {
+                ContentHashCache.put(cacheKey, hash);
+                return;
+            }
+        } catch (CosmosException e) {
+            if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+        }
+        container.upsertItem(document, key, connection.itemRequestOptions());
+        ContentHashCache.put(cacheKey, hash);
+    }
+
+    @Extension
+    public static class Replay extends AsyncPeriodicWork {
+
+        public Replay() {
+            super("Azure Cosmos DB spooled write replay");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException {
+            CosmosSpool.replay();
+        }
+    }
+}
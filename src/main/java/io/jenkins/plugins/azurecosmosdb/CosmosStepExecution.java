@@ -0,0 +1,272 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBGlobalConfiguration.CircuitBreakerAction;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Like {@link org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution} but runs on the plugin's
+ * {@link CosmosStepExecutor}, queued fairly against other jobs using the same account.
+ *
+ * <p>Stopping the step, or its timeout running out, fails it straight away and interrupts the thread doing the work.
+ * The SDK's blocking calls dispose of their reactive subscription when interrupted, which cancels the request and any
+ * retries still to come rather than leaving them running after the build is gone.
+ */
+@SuppressFBWarnings(value = "SE_NO_SERIALVERSIONID", justification = "Not used in XStream")
+abstract class CosmosStepExecution<T> extends StepExecution {
+
+    private final String account;
+    private final transient CosmosAccountKeys keys;
+    private final long timeoutSeconds;
+    private transient volatile Future<?> task;
+    private transient volatile Future<?> timeoutTask;
+    private transient volatile CosmosCircuitBreaker breaker;
+    private transient volatile String threadName;
+    // set once the step succeeded or failed, whichever of the work, its timeout or stopping it gets there first
+    private final AtomicBoolean done = new AtomicBoolean();
+    // set once the work started, or once it's known it never will, by whoever then cleans up
+    private final AtomicBoolean started = new AtomicBoolean();
+    private transient Item job;
+    private transient Authentication auth;
+
+    protected CosmosStepExecution(@NonNull StepContext context, CosmosConnection connection) {
+        this(context, connection, 0);
+    }
+
+    /** @param timeoutSeconds how long the step may queue and run in total, {@code 0} for no limit */
+    protected CosmosStepExecution(@NonNull StepContext context, CosmosConnection connection, long timeoutSeconds) {
+        super(context);
+        this.account = connection.getAccount();
+        this.keys = connection.getKeys();
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /** Does the blocking work of the step, the result is returned to the pipeline. */
+    protected abstract T run() throws Exception;
+
+    /**
+     * Called instead of {@link #run()} while the account's circuit breaker is open, without waiting for a thread.
+     * Fails the step unless overridden.
+     */
+    protected T whenOpen(CosmosCircuitBreaker breaker) throws Exception {
+        throw new AbortException("Cosmos DB account " + account + " is failing, not sending requests to it for another "
+                + breaker.getRemainingOpenTime().toSeconds() + " seconds");
+    }
+
+    /** Called once the step is done, however it ended, to free anything held for {@link #run()}. */
+    protected void cleanUp() {}
+
+    @Override
+    public boolean start() throws Exception {
+        Run<?, ?> run = getContext().get(Run.class);
+        job = run == null ? null : run.getParent();
+        auth = Jenkins.getAuthentication2();
+        // scheduled first so work finishing straight away can always cancel it
+        if (timeoutSeconds > 0) {
+            timeoutTask = Timer.get()
+                    .schedule(
+                            () -> cancel(
+                                    new TimeoutException(
+                                            "Cosmos DB step did not finish within " + timeoutSeconds + " seconds"),
+                                    true),
+                            timeoutSeconds,
+                            TimeUnit.SECONDS);
+        }
+        dispatch();
+        return false;
+    }
+
+    /**
+     * Queues the work on the executor. While a folder containing the job is over its request charge quota the step
+     * comes back once the quota period ends instead, rather than holding one of the executor's threads meanwhile.
+     */
+    private void dispatch() {
+        if (done.get()) {
+            return;
+        }
+        try {
+            long waitMillis = RequestChargeLedger.get().checkQuota(job, getContext().get(TaskListener.class));
+            if (waitMillis > 0) {
+                task = Timer.get().schedule(this::dispatch, waitMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            CosmosCircuitBreaker circuitBreaker = CosmosCircuitBreaker.getAction() == CircuitBreakerAction.DISABLED
+                    ? null
+                    : CosmosCircuitBreaker.forAccount(account);
+            if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+                if (started.compareAndSet(false, true)) {
+                    try {
+                        T result = whenOpen(circuitBreaker);
+                        if (done.compareAndSet(false, true)) {
+                            getContext().onSuccess(result);
+                        }
+                    } catch (Exception e) {
+                        if (done.compareAndSet(false, true)) {
+                            getContext().onFailure(e);
+                        }
+                    } finally {
+                        cleanUp();
+                        cancelTimeout();
+                    }
+                }
+                return;
+            }
+            breaker = circuitBreaker;
+            task = CosmosStepExecutor.get().submit(account, job == null ? "" : job.getFullName(), () -> {
+                // a step stopped while queued has already cleaned up
+                if (!started.compareAndSet(false, true)) {
+                    return;
+                }
+                threadName = Thread.currentThread().getName();
+                try (ACLContext ignored = ACL.as2(auth)) {
+                    T result = runWithKeyFailover();
+                    if (done.compareAndSet(false, true)) {
+                        if (circuitBreaker != null) {
+                            report(circuitBreaker.onSuccess());
+                        }
+                        getContext().onSuccess(result);
+                    }
+                } catch (Throwable t) {
+                    // once stopped the step has already failed and released the breaker
+                    if (done.compareAndSet(false, true)) {
+                        if (circuitBreaker != null) {
+                            report(circuitBreaker.onError(t));
+                        }
+                        getContext().onFailure(t);
+                    }
+                } finally {
+                    threadName = null;
+                    cleanUp();
+                    cancelTimeout();
+                }
+            });
+        } catch (Exception e) {
+            if (done.compareAndSet(false, true)) {
+                getContext().onFailure(e);
+            }
+            if (started.compareAndSet(false, true)) {
+                cleanUp();
+            }
+            cancelTimeout();
+        }
+    }
+
+    private void cancelTimeout() {
+        Future<?> timeout = timeoutTask;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * A request the account refused the key for is run once more after switching to the other key, nothing was
+     * written by the refused request.
+     */
+    private T runWithKeyFailover() throws Exception {
+        String used = keys == null ? null : keys.getActive();
+        try {
+            return run();
+        } catch (Exception e) {
+            if (keys == null || !CosmosAccountKeys.isUnauthorized(e) || !keys.failover(used)) {
+                throw e;
+            }
+            return run();
+        }
+    }
+
+    @Override
+    public void stop(@NonNull Throwable cause) throws Exception {
+        cancelTimeout();
+        cancel(cause, false);
+    }
+
+    /**
+     * Fails the step with the cause before interrupting the work, so the interruption isn't reported instead. Does
+     * nothing once the step ended, and only cleans up when the work never started, otherwise the work still uses
+     * what it holds until the interruption reaches it and cleans up itself.
+     *
+     * @param timedOut whether the step's timeout ran out, work still running then counts as a failure of the account
+     */
+    private void cancel(Throwable cause, boolean timedOut) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        getContext().onFailure(cause);
+        Future<?> current = task;
+        if (current != null) {
+            current.cancel(true);
+        }
+        CosmosCircuitBreaker held = breaker;
+        if (held != null) {
+            if (timedOut && started.get()) {
+                // requests hanging is how an outage usually shows, the SDK may not have given up on them yet
+                report(held.onFailure());
+            } else {
+                // a probe that was stopped or never ran can't tell whether the account recovered
+                held.release();
+            }
+        }
+        if (started.compareAndSet(false, true)) {
+            cleanUp();
+        }
+    }
+
+    /** Tells the build when its step opened or closed the account's circuit breaker. */
+    private void report(@CheckForNull CosmosCircuitBreaker.State state) {
+        if (state == null) {
+            return;
+        }
+        try {
+            TaskListener listener = getContext().get(TaskListener.class);
+            if (listener == null) {
+                return;
+            }
+            if (state == CosmosCircuitBreaker.State.OPEN) {
+                listener.getLogger()
+                        .printf(
+                                "Cosmos DB account %s is failing, circuit breaker opened, steps using it will %s for "
+                                        + "the next %d seconds%n",
+                                account,
+                                CosmosCircuitBreaker.getAction() == CircuitBreakerAction.SPOOL
+                                        ? "spool documents"
+                                        : "fail fast",
+                                breaker.getRemainingOpenTime().toSeconds());
+            } else {
+                listener.getLogger().printf("Cosmos DB account %s recovered, circuit breaker closed%n", account);
+            }
+        } catch (IOException e) {
+            // only a log message lost
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onResume() {
+        cleanUp();
+        getContext().onFailure(new Exception("Resume after a restart not supported"));
+    }
+
+    @Override
+    public String getStatus() {
+        String name = threadName;
+        return name == null ? "waiting for a Cosmos DB thread" : "running in thread: " + name;
+    }
+}
@@ -0,0 +1,262 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Runs the blocking part of Cosmos DB steps on threads owned by the plugin, so a slow or throttled account can't fill
+ * the thread pool other plugins' steps share.
+ *
+ * <p>At most {@link #getMaxConcurrency()} tasks run at once and at most {@link #getMaxConcurrencyPerAccount()} of
+ * those for the same account. Waiting tasks are queued per job and jobs take turns, so a job running hundreds of
+ * writes doesn't hold up another job's single write.
+ */
+class CosmosStepExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(CosmosStepExecutor.class.getName());
+
+    static final int MAX_CONCURRENCY =
+            SystemProperties.getInteger(CosmosStepExecutor.class.getName() + ".MAX_CONCURRENCY", 32);
+
+    static final int MAX_CONCURRENCY_PER_ACCOUNT =
+            SystemProperties.getInteger(CosmosStepExecutor.class.getName() + ".MAX_CONCURRENCY_PER_ACCOUNT", 16);
+
+    // Runs tasks on virtual threads when the controller runs on Java 21 or later
+    private static final boolean USE_VIRTUAL_THREADS =
+            SystemProperties.getBoolean(CosmosStepExecutor.class.getName() + ".USE_VIRTUAL_THREADS");
+
+    private static volatile CosmosStepExecutor instance;
+
+    // limits from the global configuration, applied when the executor is created
+    private static volatile int configuredMaxConcurrency = MAX_CONCURRENCY;
+    private static volatile int configuredMaxConcurrencyPerAccount = MAX_CONCURRENCY_PER_ACCOUNT;
+
+    private final ExecutorService backend;
+    private final MeterRegistry registry;
+
+    // jobs in the order they next get a turn, each with its waiting tasks
+    private final Map<String, Deque<Task>> queues = new LinkedHashMap<>();
+    private final Map<String, Integer> runningPerAccount = new HashMap<>();
+    private int queued;
+    private int running;
+
+    private volatile int maxConcurrency;
+    private volatile int maxConcurrencyPerAccount;
+
+    CosmosStepExecutor(
+            int maxConcurrency, int maxConcurrencyPerAccount, ExecutorService backend, MeterRegistry registry) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxConcurrencyPerAccount = Math.max(1, maxConcurrencyPerAccount);
+        this.backend = backend;
+        this.registry = registry;
+        Gauge.builder(CosmosMetrics.PREFIX + ".executor.queue.depth", this, CosmosStepExecutor::getQueued)
+                .register(registry);
+        Gauge.builder(CosmosMetrics.PREFIX + ".executor.active", this, CosmosStepExecutor::getRunning)
+                .register(registry);
+    }
+
+    static CosmosStepExecutor get() {
+        CosmosStepExecutor current = instance;
+        if (current == null) {
+            synchronized (CosmosStepExecutor.class) {
+                current = instance;
+                if (current == null) {
+                    current = new CosmosStepExecutor(
+                            configuredMaxConcurrency,
+                            configuredMaxConcurrencyPerAccount,
+                            newBackend(),
+                            CosmosMetrics.registry());
+                    instance = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Sets the limits from the global configuration, {@code null} restores the system property default. */
+    static void configure(Integer maxConcurrency, Integer maxConcurrencyPerAccount) {
+        synchronized (CosmosStepExecutor.class) {
+            configuredMaxConcurrency = maxConcurrency == null ? MAX_CONCURRENCY : maxConcurrency;
+            configuredMaxConcurrencyPerAccount =
+                    maxConcurrencyPerAccount == null ? MAX_CONCURRENCY_PER_ACCOUNT : maxConcurrencyPerAccount;
+        }
+        CosmosStepExecutor current = instance;
+        if (current != null) {
+            current.setLimits(configuredMaxConcurrency, configuredMaxConcurrencyPerAccount);
+        }
+    }
+
+    /**
+     * Concurrency is bounded by the dispatcher rather than the pool, so the pool only needs to hand out a thread per
+     * dispatched task.
+     */
+    private static ExecutorService newBackend() {
+        if (USE_VIRTUAL_THREADS) {
+            try {
+                return (ExecutorService)
+                        Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.WARNING, "Virtual threads need Java 21 or later, using platform threads", e);
+            }
+        }
+        return Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "Azure Cosmos DB step"));
+    }
+
+    /**
+     * Queues work for an account on behalf of a job, cancelling the returned future removes it from the queue or
+     * interrupts it if it is already running.
+     */
+    Future<?> submit(String account, String job, Runnable runnable) {
+        Task task = new Task(account, job, runnable);
+        synchronized (this) {
+            queues.computeIfAbsent(job, k -> new ArrayDeque<>()).add(task);
+            queued++;
+        }
+        dispatch();
+        return task;
+    }
+
+    /** Applies new limits, raising them starts waiting tasks straight away, lowering them lets running ones finish. */
+    void setLimits(int maxConcurrency, int maxConcurrencyPerAccount) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxConcurrencyPerAccount = Math.max(1, maxConcurrencyPerAccount);
+        dispatch();
+    }
+
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    int getMaxConcurrencyPerAccount() {
+        return maxConcurrencyPerAccount;
+    }
+
+    synchronized int getQueued() {
+        return queued;
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    private void dispatch() {
+        while (true) {
+            Task next;
+            synchronized (this) {
+                next = running < maxConcurrency ? takeNext() : null;
+                if (next == null) {
+                    return;
+                }
+                running++;
+                runningPerAccount.merge(next.account, 1, Integer::sum);
+            }
+            start(next);
+        }
+    }
+
+    /** Takes the first task of the first job in turn that has one for an account with spare capacity. */
+    private Task takeNext() {
+        Iterator<Map.Entry<String, Deque<Task>>> jobs = queues.entrySet().iterator();
+        while (jobs.hasNext()) {
+            Map.Entry<String, Deque<Task>> job = jobs.next();
+            Iterator<Task> tasks = job.getValue().iterator();
+            while (tasks.hasNext()) {
+                Task task = tasks.next();
+                if (runningPerAccount.getOrDefault(task.account, 0) < maxConcurrencyPerAccount) {
+                    tasks.remove();
+                    queued--;
+                    // the job goes to the back of the line
+                    jobs.remove();
+                    if (!job.getValue().isEmpty()) {
+                        queues.put(job.getKey(), job.getValue());
+                    }
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void start(Task task) {
+        Timer.builder(CosmosMetrics.PREFIX + ".executor.wait")
+                .tags("account", task.account)
+                .register(registry)
+                .record(Duration.ofNanos(System.nanoTime() - task.queuedAt));
+        try {
+            backend.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished(task);
+                }
+            });
+        } catch (RuntimeException e) {
+            task.setException(e);
+            finished(task);
+        }
+    }
+
+    private void finished(Task task) {
+        synchronized (this) {
+            running--;
+            runningPerAccount.computeIfPresent(task.account, (k, v) -> v == 1 ? null : v - 1);
+        }
+        dispatch();
+    }
+
+    private synchronized void remove(Task task) {
+        Deque<Task> tasks = queues.get(task.job);
+        if (tasks != null && tasks.remove(task)) {
+            queued--;
+            if (tasks.isEmpty()) {
+                queues.remove(task.job);
+            }
+        }
+    }
+
+    private class Task extends FutureTask<Void> {
+
+        private final String account;
+        private final String job;
+        private final long queuedAt = System.nanoTime();
+
+        Task(String account, String job, Runnable runnable) {
+            super(runnable, null);
+            this.account = account;
+            this.job = job;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                remove(this);
+            }
+            return cancelled;
+        }
+
+        // lets the dispatcher fail a task the pool rejected
+        @Override
+        protected void setException(Throwable t) {
+            super.setException(t);
+        }
+    }
+}
@@ -4,19 +4,66 @@ import com.azure.core.credential.TokenCredential;
 import com.azure.cosmos.ConsistencyLevel;
 import com.azure.cosmos.CosmosClient;
 import com.azure.cosmos.CosmosClientBuilder;
+import com.azure.cosmos.GatewayConnectionConfig;
+import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.microsoft.azure.util.AzureBaseCredentials;
-import com.microsoft.azure.util.AzureCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
 import hudson.model.Item;
+import hudson.model.ModelObject;
 import hudson.security.ACL;
+import java.time.Duration;
 import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 
 public class CredentialsHelper {
 
+    // The SDK defaults to 1000 connections per endpoint which is far more than a controller's steps need, this bounds
+    // the sockets each cached client can hold open
+    static final int MAX_CONNECTION_POOL_SIZE =
+            SystemProperties.getInteger(CredentialsHelper.class.getName() + ".MAX_CONNECTION_POOL_SIZE", 100);
+
+    static final long IDLE_CONNECTION_TIMEOUT_SECONDS =
+            SystemProperties.getLong(CredentialsHelper.class.getName() + ".IDLE_CONNECTION_TIMEOUT_SECONDS", 60L);
+
+    // Seconds the store credentials were found in is remembered for, credentials moved to another store are only
+    // noticed after this
+    static final long ORIGIN_CACHE_SECONDS =
+            SystemProperties.getLong(CredentialsHelper.class.getName() + ".ORIGIN_CACHE_SECONDS", 60L);
+
+    // looking up the store walks every credential in reach of the item, which is too much for every request
+    private static final Cache<String, Optional<String>> ORIGINS = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(Duration.ofSeconds(ORIGIN_CACHE_SECONDS))
+            .build();
+
+    private static volatile ConnectionSettings connectionSettings =
+            new ConnectionSettings(MAX_CONNECTION_POOL_SIZE, Duration.ofSeconds(IDLE_CONNECTION_TIMEOUT_SECONDS));
+
     private CredentialsHelper() {}
 
+    /** Settings new clients are created with. */
+    static ConnectionSettings connectionSettings() {
+        return connectionSettings;
+    }
+
+    /** Changes the settings for new clients, cached clients are replaced with new ones as they are next used. */
+    static void setConnectionSettings(ConnectionSettings settings) {
+        connectionSettings = settings;
+    }
+
     public static StandardCredentials findCredentials(String credentialsId, Item context) {
         return CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentials(
@@ -24,20 +71,90 @@ public class CredentialsHelper {
                 CredentialsMatchers.withId(credentialsId));
     }
 
+    /**
+     * Names the nearest store key credentials are found in for the item. Key credentials with the same id in different
+     * folders are different credentials, {@code null} when they don't come from a store or aren't key credentials,
+     * which are told apart by their other properties.
+     */
+    @CheckForNull
+    static String origin(StandardCredentials credentials, @CheckForNull Item context) {
+        if (!(credentials instanceof AzureCosmosDBKeyCredentials)) {
+            return null;
+        }
+        String credentialsId = credentials.getId();
+        String key = credentialsId + "\n" + (context == null ? "" : context.getFullName());
+        return ORIGINS.get(key, k -> Optional.ofNullable(findOrigin(credentialsId, context))).orElse(null);
+    }
+
+    /** Forgets where credentials were found, e.g. after they changed. */
+    static void invalidateOrigins() {
+        ORIGINS.invalidateAll();
+    }
+
+    @CheckForNull
+    private static String findOrigin(String credentialsId, @CheckForNull Item context) {
+        ModelObject object = context == null ? Jenkins.get() : context;
+        for (CredentialsStore store : CredentialsProvider.lookupStores(object)) {
+            for (Domain domain : store.getDomains()) {
+                for (Credentials credentials : store.getCredentials(domain)) {
+                    if (credentials instanceof IdCredentials
+                            && credentialsId.equals(((IdCredentials) credentials).getId())) {
+                        ModelObject storeContext = store.getContext();
+                        String name = storeContext instanceof Item
+                                ? ((Item) storeContext).getFullName()
+                                : storeContext.getDisplayName();
+                        return store.getClass().getName() + ":" + name;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     public static CosmosClient createClient(
             StandardCredentials standardCredentials, String preferredRegion, String url) {
+        List<String> preferredRegions = Util.fixEmptyAndTrim(preferredRegion) == null
+                ? Collections.emptyList()
+                : Collections.singletonList(preferredRegion.trim());
+        return createClient(standardCredentials, preferredRegions, url);
+    }
+
+    /**
+     * Creates a client that prefers the given regions in order, requests can narrow this down with excluded regions.
+     */
+    public static CosmosClient createClient(
+            StandardCredentials standardCredentials, List<String> preferredRegions, String url) {
+        return createClient(standardCredentials, preferredRegions, url, connectionSettings());
+    }
+
+    static CosmosClient createClient(
+            StandardCredentials standardCredentials,
+            List<String> preferredRegions,
+            String url,
+            ConnectionSettings settings) {
+        return createClient(standardCredentials, preferredRegions, url, settings, null);
+    }
+
+    /** Key based clients sign requests with the given keys when set, so rotated keys can be applied in place. */
+    static CosmosClient createClient(
+            StandardCredentials standardCredentials,
+            List<String> preferredRegions,
+            String url,
+            ConnectionSettings settings,
+            @CheckForNull CosmosAccountKeys keys) {
         CosmosClientBuilder builder = new CosmosClientBuilder()
                 .endpoint(url)
-                .preferredRegions(Collections.singletonList(preferredRegion))
+                .preferredRegions(preferredRegions)
                 .consistencyLevel(ConsistencyLevel.EVENTUAL)
-                .gatewayMode();
+                .clientTelemetryConfig(CosmosMetrics.telemetryConfig())
+                .gatewayMode(settings.gatewayConnectionConfig());
 
         if (standardCredentials instanceof AzureCosmosDBKeyCredentials) {
-            builder = builder.key(
-                    ((AzureCosmosDBKeyCredentials) standardCredentials).getKey().getPlainText());
+            AzureCosmosDBKeyCredentials keyCredentials = (AzureCosmosDBKeyCredentials) standardCredentials;
+            builder = builder.credential(
+                    keys == null ? new CosmosAccountKeys(keyCredentials).getCredential() : keys.getCredential());
         } else if (standardCredentials instanceof AzureBaseCredentials) {
-            TokenCredential tokenCredential =
-                    AzureCredentials.getTokenCredential((AzureBaseCredentials) standardCredentials);
+            TokenCredential tokenCredential = SharedTokenCache.get((AzureBaseCredentials) standardCredentials);
 
             builder = builder.credential(tokenCredential);
         } else {
@@ -47,4 +164,51 @@ public class CredentialsHelper {
 
         return builder.buildClient();
     }
+
+    /**
+     * Connection settings shared by every client. Event loops and schedulers are already shared by the SDK across
+     * clients, the connection pool is the part of a client's footprint that we control.
+     */
+    static final class ConnectionSettings {
+
+        private final int maxConnectionPoolSize;
+        private final Duration idleConnectionTimeout;
+
+        ConnectionSettings(int maxConnectionPoolSize, Duration idleConnectionTimeout) {
+            this.maxConnectionPoolSize = maxConnectionPoolSize;
+            this.idleConnectionTimeout = idleConnectionTimeout;
+        }
+
+        int getMaxConnectionPoolSize() {
+            return maxConnectionPoolSize;
+        }
+
+        Duration getIdleConnectionTimeout() {
+            return idleConnectionTimeout;
+        }
+
+        GatewayConnectionConfig gatewayConnectionConfig() {
+            return new GatewayConnectionConfig()
+                    .setMaxConnectionPoolSize(maxConnectionPoolSize)
+                    .setIdleConnectionTimeout(idleConnectionTimeout);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ConnectionSettings that = (ConnectionSettings) o;
+            return maxConnectionPoolSize == that.maxConnectionPoolSize
+                    && Objects.equals(idleConnectionTimeout, that.idleConnectionTimeout);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(maxConnectionPoolSize, idleConnectionTimeout);
+        }
+    }
 }
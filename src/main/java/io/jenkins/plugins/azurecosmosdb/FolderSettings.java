@@ -0,0 +1,88 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/** Settings applied to every job inside a folder, configured by administrators in the global configuration. */
+public class FolderSettings extends AbstractDescribableImpl<FolderSettings> {
+
+    public enum QuotaAction {
+        /** Steps fail once the quota is exceeded. */
+        FAIL,
+        /** Steps wait for the next quota period once the quota is exceeded. */
+        DELAY
+    }
+
+    private final String folder;
+    private Double requestChargeQuota;
+    private QuotaAction quotaAction = QuotaAction.FAIL;
+    private CosmosRequestPriority priority;
+
+    @DataBoundConstructor
+    public FolderSettings(String folder) {
+        this.folder = Util.fixNull(Util.fixEmptyAndTrim(folder));
+    }
+
+    /** Full name of the folder, e.g. {@code team-a/services}. */
+    public String getFolder() {
+        return folder;
+    }
+
+    public Double getRequestChargeQuota() {
+        return requestChargeQuota;
+    }
+
+    /** Maximum request units the folder may use per quota period, unlimited when not set. */
+    @DataBoundSetter
+    public void setRequestChargeQuota(Double requestChargeQuota) {
+        this.requestChargeQuota = requestChargeQuota != null && requestChargeQuota > 0 ? requestChargeQuota : null;
+    }
+
+    public QuotaAction getQuotaAction() {
+        return quotaAction;
+    }
+
+    @DataBoundSetter
+    public void setQuotaAction(QuotaAction quotaAction) {
+        this.quotaAction = quotaAction == null ? QuotaAction.FAIL : quotaAction;
+    }
+
+    public String getPriority() {
+        return priority == null ? null : priority.name();
+    }
+
+    /** Priority of requests from jobs in the folder, unless a step sets one, inherited from enclosing folders. */
+    @DataBoundSetter
+    public void setPriority(String priority) {
+        this.priority = CosmosRequestPriority.parse(priority);
+    }
+
+    @Extension
+    @Symbol("folder")
+    public static class DescriptorImpl extends Descriptor<FolderSettings> {
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Folder";
+        }
+
+        public ListBoxModel doFillQuotaActionItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Fail the step", QuotaAction.FAIL.name());
+            items.add("Wait for the next quota period", QuotaAction.DELAY.name());
+            return items;
+        }
+
+        public ListBoxModel doFillPriorityItems() {
+            return CosmosRequestPriority.items("Inherit");
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import io.jenkins.plugins.azurecosmosdb.FolderSettings.QuotaAction;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Tracks the request units used by each job and folder. Totals are kept in memory and periodically written to disk,
+ * so recording an operation never does any I/O.
+ */
+public class RequestChargeLedger {
+
+    private static final Logger LOGGER = Logger.getLogger(RequestChargeLedger.class.getName());
+
+    private static volatile RequestChargeLedger instance;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private transient volatile boolean dirty;
+
+    public static RequestChargeLedger get() {
+        RequestChargeLedger ledger = instance;
+        if (ledger == null) {
+            synchronized (RequestChargeLedger.class) {
+                ledger = instance;
+                if (ledger == null) {
+                    ledger = load();
+                    instance = ledger;
+                }
+            }
+        }
+        return ledger;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(
+                Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), RequestChargeLedger.class.getName() + ".xml"));
+    }
+
+    private static RequestChargeLedger load() {
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                return (RequestChargeLedger) file.read();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to load request charge snapshot, starting from zero", e);
+            }
+        }
+        return new RequestChargeLedger();
+    }
+
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        getConfigFile().write(this);
+    }
+
+    /** Adds the charge to the job and every folder containing it. */
+    public void record(@CheckForNull Item item, double requestCharge) {
+        if (item == null || requestCharge <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long period = quotaPeriodMillis();
+        for (Item current = item; current != null; current = parentOf(current)) {
+            entries.computeIfAbsent(current.getFullName(), k -> new Entry()).add(requestCharge, now, period);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Checks the quotas of every folder containing the item. Fails when a folder over its quota is configured to,
+     * otherwise returns the milliseconds until that folder's next period, {@code 0} when every folder is within its
+     * quota. Never waits itself, callers come back later instead of holding a thread.
+     */
+    public long checkQuota(@CheckForNull Item item, @CheckForNull TaskListener listener) throws AbortException {
+        if (item == null) {
+            return 0;
+        }
+        AzureCosmosDBGlobalConfiguration configuration = AzureCosmosDBGlobalConfiguration.get();
+        for (Item current = parentOf(item); current != null; current = parentOf(current)) {
+            FolderSettings settings = configuration.getFolderSettings(current.getFullName());
+            if (settings == null || settings.getRequestChargeQuota() == null) {
+                continue;
+            }
+            long waitMillis = quotaDelay(current.getFullName(), settings, listener);
+            if (waitMillis > 0) {
+                return waitMillis;
+            }
+        }
+        return 0;
+    }
+
+    private long quotaDelay(String folder, FolderSettings settings, @CheckForNull TaskListener listener)
+            throws AbortException {
+        long period = quotaPeriodMillis();
+        Entry entry = entries.get(folder);
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.getWindowCharge(now, period) < settings.getRequestChargeQuota()) {
+            return 0;
+        }
+        String message = String.format(
+                "Folder %s has used its quota of %.0f RU per %d minutes",
+                folder, settings.getRequestChargeQuota(), TimeUnit.MILLISECONDS.toMinutes(period));
+        if (settings.getQuotaAction() == QuotaAction.FAIL) {
+            throw new AbortException(message);
+        }
+        long waitMillis = Math.max(entry.getWindowEnd(period) - now, 1000L);
+        if (listener != null) {
+            listener.getLogger().printf("%s, waiting %d seconds%n", message, waitMillis / 1000);
+        }
+        return waitMillis;
+    }
+
+    public List<Usage> getUsage() {
+        long now = System.currentTimeMillis();
+        long period = quotaPeriodMillis();
+        AzureCosmosDBGlobalConfiguration configuration = AzureCosmosDBGlobalConfiguration.get();
+        List<Usage> usage = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            FolderSettings settings = configuration.getFolderSettings(entry.getKey());
+            usage.add(new Usage(
+                    entry.getKey(),
+                    entry.getValue().getTotal(),
+                    entry.getValue().getWindowCharge(now, period),
+                    settings == null ? null : settings.getRequestChargeQuota()));
+        }
+        usage.sort(Comparator.comparingDouble(Usage::getTotal).reversed());
+        return usage;
+    }
+
+    @CheckForNull
+    Usage getUsage(String fullName) {
+        Entry entry = entries.get(fullName);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        return new Usage(fullName, entry.getTotal(), entry.getWindowCharge(now, quotaPeriodMillis()), null);
+    }
+
+    /** Drops the entries of the item and of every item inside it. */
+    void forget(String fullName) {
+        if (entries.keySet().removeIf(name -> isWithin(name, fullName))) {
+            dirty = true;
+        }
+    }
+
+    /** Moves the entries of the item and of every item inside it to its new name. */
+    void rename(String oldFullName, String newFullName) {
+        boolean renamed = false;
+        for (String name : new ArrayList<>(entries.keySet())) {
+            if (isWithin(name, oldFullName)) {
+                Entry entry = entries.remove(name);
+                if (entry != null) {
+                    entries.put(newFullName + name.substring(oldFullName.length()), entry);
+                    renamed = true;
+                }
+            }
+        }
+        if (renamed) {
+            dirty = true;
+        }
+    }
+
+    private static boolean isWithin(String name, String fullName) {
+        return name.equals(fullName) || name.startsWith(fullName + "/");
+    }
+
+    void reset() {
+        entries.clear();
+        dirty = true;
+    }
+
+    @CheckForNull
+    private static Item parentOf(Item item) {
+        ItemGroup<?> parent = item.getParent();
+        return parent instanceof Item ? (Item) parent : null;
+    }
+
+    private static long quotaPeriodMillis() {
+        return TimeUnit.MINUTES.toMillis(AzureCosmosDBGlobalConfiguration.get().getQuotaPeriodMinutes());
+    }
+
+    static class Entry {
+
+        private double total;
+        private long windowStart;
+        private double windowCharge;
+
+        synchronized void add(double requestCharge, long now, long period) {
+            rollWindow(now, period);
+            total += requestCharge;
+            windowCharge += requestCharge;
+        }
+
+        synchronized double getTotal() {
+            return total;
+        }
+
+        synchronized double getWindowCharge(long now, long period) {
+            rollWindow(now, period);
+            return windowCharge;
+        }
+
+        synchronized long getWindowEnd(long period) {
+            return windowStart + period;
+        }
+
+        private void rollWindow(long now, long period) {
+            if (now - windowStart >= period) {
+                windowStart = now - ((now - windowStart) % period);
+                windowCharge = 0;
+            }
+        }
+    }
+
+    /** Request units used by a job or folder, exposed to the report. */
+    public static class Usage {
+
+        private final String name;
+        private final double total;
+        private final double currentPeriod;
+        private final Double quota;
+
+        Usage(String name, double total, double currentPeriod, Double quota) {
+            this.name = name;
+            this.total = total;
+            this.currentPeriod = currentPeriod;
+            this.quota = quota;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getTotal() {
+            return total;
+        }
+
+        public double getCurrentPeriod() {
+            return currentPeriod;
+        }
+
+        public Double getQuota() {
+            return quota;
+        }
+    }
+
+    /** Keeps entries in step with jobs and folders as they are deleted, renamed or moved. */
+    @Extension
+    public static class Listener extends ItemListener {
+
+        @Override
+        public void onDeleted(Item item) {
+            RequestChargeLedger.get().forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            RequestChargeLedger.get().rename(oldFullName, newFullName);
+        }
+    }
+
+    @Extension
+    public static class Snapshot extends AsyncPeriodicWork {
+
+        public Snapshot() {
+            super("Azure Cosmos DB request charge snapshot");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(5);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException {
+            RequestChargeLedger.get().save();
+        }
+    }
+}
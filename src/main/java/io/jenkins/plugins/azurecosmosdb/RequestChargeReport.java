@@ -0,0 +1,53 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import java.util.List;
+import jenkins.model.Jenkins;
+
+/** Shows the request units used by each job and folder. */
+@Extension
+public class RequestChargeReport extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Azure Cosmos DB Usage";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Request units used by jobs and folders";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "azure-cosmosdb-usage";
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    @NonNull
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.SYSTEM_READ;
+    }
+
+    public int getQuotaPeriodMinutes() {
+        return AzureCosmosDBGlobalConfiguration.get().getQuotaPeriodMinutes();
+    }
+
+    public List<RequestChargeLedger.Usage> getUsage() {
+        return RequestChargeLedger.get().getUsage();
+    }
+}
@@ -0,0 +1,196 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.azure.util.AzureBaseCredentials;
+import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.azure.util.AzureImdsCredentials;
+import hudson.Util;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import reactor.core.publisher.Mono;
+
+/**
+ * Shares AAD tokens between every client built from the same service principal or managed identity.
+ *
+ * <p>Tokens are refreshed in the background before they expire, so requests don't pay for token acquisition, and
+ * concurrent acquisitions for the same scopes are collapsed into a single request.
+ */
+class SharedTokenCache {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedTokenCache.class.getName());
+
+    // How long before expiry a token is refreshed
+    private static final Duration REFRESH_BEFORE_EXPIRY = Duration.ofMinutes(SystemProperties.getLong(
+            SharedTokenCache.class.getName() + ".REFRESH_BEFORE_EXPIRY_MINUTES", 5L));
+
+    // Tokens that haven't been used for this long are left to expire rather than refreshed in the background
+    private static final Duration IDLE_AFTER = Duration.ofHours(1);
+
+    // Credentials nobody has built a client for in this long are dropped, existing clients keep their reference
+    private static final Cache<String, CachingTokenCredential> CREDENTIALS =
+            Caffeine.newBuilder().expireAfterAccess(Duration.ofDays(1)).build();
+
+    private SharedTokenCache() {}
+
+    static TokenCredential get(AzureBaseCredentials credentials) {
+        return CREDENTIALS.get(
+                fingerprint(credentials),
+                k -> new CachingTokenCredential(
+                        AzureCredentials.getTokenCredential(credentials), Timer::get, REFRESH_BEFORE_EXPIRY));
+    }
+
+    static long size() {
+        return CREDENTIALS.estimatedSize();
+    }
+
+    static void invalidate() {
+        CREDENTIALS.invalidateAll();
+    }
+
+    /** Identifies the principal behind the credentials, including the secret so that rotating it gets a new entry. */
+    static String fingerprint(AzureBaseCredentials credentials) {
+        StringBuilder fingerprint = new StringBuilder()
+                .append(credentials.getClass().getName())
+                .append('|')
+                .append(credentials.getId());
+        if (credentials instanceof AzureImdsCredentials) {
+            fingerprint.append('|').append(((AzureImdsCredentials) credentials).getSubscriptionId());
+        } else if (credentials instanceof AzureCredentials) {
+            AzureCredentials azureCredentials = (AzureCredentials) credentials;
+            fingerprint
+                    .append('|')
+                    .append(azureCredentials.getSubscriptionId())
+                    .append('|')
+                    .append(azureCredentials.getTenant())
+                    .append('|')
+                    .append(azureCredentials.getClientId())
+                    .append('|')
+                    .append(azureCredentials.getCertificateId())
+                    .append('|')
+                    .append(azureCredentials.getPlainClientSecret());
+        }
+        return sha256(fingerprint.toString());
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class CachingTokenCredential implements TokenCredential {
+
+        private final TokenCredential delegate;
+        private final Supplier<ScheduledExecutorService> scheduler;
+        private final Duration refreshBeforeExpiry;
+        private final ConcurrentMap<String, TokenState> tokens = new ConcurrentHashMap<>();
+
+        CachingTokenCredential(
+                TokenCredential delegate, Supplier<ScheduledExecutorService> scheduler, Duration refreshBeforeExpiry) {
+            this.delegate = delegate;
+            this.scheduler = scheduler;
+            this.refreshBeforeExpiry = refreshBeforeExpiry;
+        }
+
+        @Override
+        public Mono<AccessToken> getToken(TokenRequestContext request) {
+            return Mono.defer(() -> Mono.fromFuture(stateFor(request).getToken(), true));
+        }
+
+        private TokenState stateFor(TokenRequestContext request) {
+            String key =
+                    String.join(" ", request.getScopes()) + "|" + request.getTenantId() + "|" + request.getClaims();
+            return tokens.computeIfAbsent(key, k -> new TokenState(request));
+        }
+
+        private class TokenState {
+
+            private final TokenRequestContext request;
+            private volatile AccessToken current;
+            private volatile long lastUsed;
+            private CompletableFuture<AccessToken> inFlight;
+
+            TokenState(TokenRequestContext request) {
+                this.request = request;
+            }
+
+            CompletableFuture<AccessToken> getToken() {
+                lastUsed = System.currentTimeMillis();
+                AccessToken token = current;
+                if (token != null && !expiresWithin(token, Duration.ZERO)) {
+                    if (expiresWithin(token, refreshBeforeExpiry)) {
+                        // still usable, refresh without making the caller wait
+                        acquire();
+                    }
+                    return CompletableFuture.completedFuture(token);
+                }
+                return acquire();
+            }
+
+            private synchronized CompletableFuture<AccessToken> acquire() {
+                if (inFlight != null) {
+                    return inFlight;
+                }
+                CompletableFuture<AccessToken> future = delegate.getToken(request).toFuture();
+                inFlight = future;
+                future.whenComplete((token, failure) -> {
+                    if (token != null) {
+                        current = token;
+                    }
+                    synchronized (this) {
+                        inFlight = null;
+                    }
+                    if (failure != null) {
+                        LOGGER.log(Level.FINE, "Failed to acquire token", failure);
+                        return;
+                    }
+                    scheduleRefresh(token);
+                });
+                return future;
+            }
+
+            private void scheduleRefresh(AccessToken token) {
+                long delay = Duration.between(OffsetDateTime.now(), token.getExpiresAt())
+                        .minus(refreshBeforeExpiry)
+                        .toMillis();
+                if (delay <= 0) {
+                    return;
+                }
+                scheduler.get().schedule(this::backgroundRefresh, delay, TimeUnit.MILLISECONDS);
+            }
+
+            private void backgroundRefresh() {
+                AccessToken token = current;
+                long idleMillis = System.currentTimeMillis() - lastUsed;
+                if (token == null || idleMillis > IDLE_AFTER.toMillis()) {
+                    return;
+                }
+                acquire();
+            }
+
+            private boolean expiresWithin(AccessToken token, Duration duration) {
+                return token.getExpiresAt().isBefore(OffsetDateTime.now().plus(duration));
+            }
+        }
+    }
+}
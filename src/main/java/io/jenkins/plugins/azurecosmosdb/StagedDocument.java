@@ -0,0 +1,140 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Run;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A large document written to a file in the build directory while its step runs, so that the step execution saved
+ * with the pipeline's program state only holds the file's path. The file is deleted once the step is done with it,
+ * and at the latest with the build.
+ */
+class StagedDocument implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(StagedDocument.class.getName());
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String path;
+
+    private StagedDocument(File file) {
+        this.path = file.getAbsolutePath();
+    }
+
+    static File getDirectory(Run<?, ?> run) {
+        return new File(run.getRootDir(), "azure-cosmosdb-staging");
+    }
+
+    /**
+     * Serializes the document, to a new file for the run once it grows past {@code threshold} bytes. Smaller
+     * documents are only counted, they are left to the step execution and {@code null} is returned.
+     */
+    @CheckForNull
+    static StagedDocument stage(Run<?, ?> run, Object document, int threshold) throws IOException {
+        return stage(getDirectory(run), document, threshold);
+    }
+
+    @CheckForNull
+    static StagedDocument stage(File directory, Object document, int threshold) throws IOException {
+        // a char never takes more than three bytes in UTF-8, short strings need not be encoded at all
+        if (document instanceof String && ((String) document).length() * 3L <= threshold) {
+            return null;
+        }
+        File file = new File(directory, UUID.randomUUID() + ".json");
+        SpillingOutputStream out = new SpillingOutputStream(file, threshold);
+        try (out) {
+            if (document instanceof String) {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                writer.write((String) document);
+                writer.flush();
+            } else {
+                OBJECT_MAPPER.writeValue(out, document);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        return out.isSpilled() ? new StagedDocument(file) : null;
+    }
+
+    ObjectNode read() throws IOException {
+        JsonNode node = OBJECT_MAPPER.readTree(new File(path));
+        if (!(node instanceof ObjectNode)) {
+            throw new IOException("Staged document " + path + " is not a JSON object");
+        }
+        return (ObjectNode) node;
+    }
+
+    /** Deletes the file, later calls do nothing. */
+    void release() {
+        try {
+            Files.deleteIfExists(new File(path).toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not delete staged document " + path, e);
+        }
+    }
+
+    /** Keeps what is written in memory until it passes the threshold, then moves it and the rest to the file. */
+    private static final class SpillingOutputStream extends OutputStream {
+
+        private final File file;
+        private final int threshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private OutputStream out = memory;
+        private long count;
+
+        SpillingOutputStream(File file, int threshold) {
+            this.file = file;
+            this.threshold = threshold;
+        }
+
+        boolean isSpilled() {
+            return memory == null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (memory != null && count + len > threshold) {
+                Files.createDirectories(file.getParentFile().toPath());
+                OutputStream spilled = new BufferedOutputStream(Files.newOutputStream(file.toPath()));
+                memory.writeTo(spilled);
+                memory = null;
+                out = spilled;
+            }
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
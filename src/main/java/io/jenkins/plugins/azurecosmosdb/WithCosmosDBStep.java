@@ -0,0 +1,174 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
+import static java.util.Objects.requireNonNull;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Resolves credentials, client and container once for a block of Cosmos DB steps, which can then leave out {@code
+ * credentialsId}, {@code database} and {@code container}.
+ */
+public class WithCosmosDBStep extends Step {
+
+    private final String credentialsId;
+    private final String database;
+    private final String container;
+
+    @DataBoundConstructor
+    public WithCosmosDBStep(String credentialsId, String database, String container) {
+        this.credentialsId = Util.fixEmpty(credentialsId);
+        this.database = Util.fixEmpty(database);
+        this.container = Util.fixEmpty(container);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context, credentialsId, database, container);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(Run.class);
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "withCosmosDB";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Use an Azure Cosmos DB container for the Cosmos DB steps in a block";
+        }
+
+        @POST
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String credentialsId) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            if (item == null) {
+                if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            } else {
+                if (!item.hasPermission(Item.EXTENDED_READ) && !item.hasPermission(CredentialsProvider.USE_ITEM)) {
+                    return result.includeCurrentValue(credentialsId);
+                }
+            }
+            return result.includeEmptyValue()
+                    .includeMatchingAs(
+                            ACL.SYSTEM,
+                            item,
+                            AzureCosmosDBCredentials.class,
+                            Collections.emptyList(),
+                            instanceOf(AzureCosmosDBCredentials.class))
+                    .includeCurrentValue(credentialsId);
+        }
+    }
+
+    private static class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String credentialsId;
+        private final String database;
+        private final String container;
+
+        Execution(@NonNull StepContext context, String credentialsId, String database, String container) {
+            super(context);
+            this.credentialsId = credentialsId;
+            this.database = database;
+            this.container = container;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            Run<?, ?> run = requireNonNull(getContext().get(Run.class), "Run must not be null");
+            // nested blocks inherit whatever they leave out
+            CosmosContext outer = getContext().get(CosmosContext.class);
+            String credentials = credentialsId != null || outer == null ? credentialsId : outer.getCredentialsId();
+            String db = CosmosContext.database(outer, database);
+            String coll = CosmosContext.container(outer, container);
+
+            // the container is not read here, that would block the pipeline's thread, a missing one fails the first
+            // nested step that uses it
+            AzureCosmosDBCache.Lease lease = AzureCosmosDBCache.lease(credentials, run.getParent());
+            getContext()
+                    .newBodyInvoker()
+                    .withContext(new CosmosContext(credentials, db, coll, lease.getConnection()))
+                    .withCallback(new ReleaseLease(lease))
+                    .start();
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            // the lease didn't survive the restart, nested steps look the connection up again
+        }
+    }
+
+    @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Nothing to release after a restart")
+    private static class ReleaseLease extends BodyExecutionCallback.TailCall {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient AzureCosmosDBCache.Lease lease;
+
+        ReleaseLease(AzureCosmosDBCache.Lease lease) {
+            this.lease = lease;
+        }
+
+        @Override
+        protected void finished(StepContext context) {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+}
@@ -3,15 +3,23 @@ package io.jenkins.plugins.azurecosmosdb;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.azure.cosmos.CosmosEndToEndOperationLatencyPolicyConfig;
+import com.azure.cosmos.ThresholdBasedAvailabilityStrategy;
 import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.azure.util.AzureImdsCredentials;
 import hudson.util.Secret;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBCache.AccountClient;
 import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBCache.CacheKey;
+import io.jenkins.plugins.azurecosmosdb.CredentialsHelper.ConnectionSettings;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
 import org.junit.jupiter.api.BeforeEach;
@@ -55,12 +63,11 @@ class AzureCosmosDBCacheTest {
     void toStringAsExpected() {
         AzureCosmosDBKeyCredentialsImpl credentials =
                 new AzureCosmosDBKeyCredentialsImpl("key", null, Secret.fromString("abcd"));
-        CacheKey cacheKey = new CacheKey(credentials, "https://your-account-name.documents.azure.com:443/", "UK South");
+        CacheKey cacheKey = new CacheKey(credentials, "https://your-account-name.documents.azure.com:443/");
 
         assertThat(
                 cacheKey.toString(),
-                equalTo(
-                        "CacheKey{cosmosAuthCredentials=key, url='https://your-account-name.documents.azure.com:443/', preferredRegion='UK South'}"));
+                equalTo("CacheKey{cosmosAuthCredentials=key, url='https://your-account-name.documents.azure.com:443/'}"));
     }
 
     @Test
@@ -71,8 +78,8 @@ class AzureCosmosDBCacheTest {
                 new StringCredentialsImpl(CredentialsScope.GLOBAL, "id", null, Secret.fromString("a"));
         AzureCosmosDBKeyCredentialsImpl credentials =
                 new AzureCosmosDBKeyCredentialsImpl("id", null, Secret.fromString("abcd"));
-        CacheKey invalidTypeCacheKey = new CacheKey(stringCredentials, url, "UK South");
-        CacheKey validTypeCacheKey = new CacheKey(credentials, url, "UK South");
+        CacheKey invalidTypeCacheKey = new CacheKey(stringCredentials, url);
+        CacheKey validTypeCacheKey = new CacheKey(credentials, url);
 
         assertThat(invalidTypeCacheKey.equals(validTypeCacheKey), is(false));
     }
@@ -83,8 +90,8 @@ class AzureCosmosDBCacheTest {
         String url = "https://your-account-name.documents.azure.com:443/";
         StringCredentialsImpl stringCredentials =
                 new StringCredentialsImpl(CredentialsScope.GLOBAL, "id", null, Secret.fromString("a"));
-        CacheKey invalidTypeCacheKey = new CacheKey(stringCredentials, url, "UK South");
-        CacheKey invalidTypeCacheKey2 = new CacheKey(stringCredentials, url, "UK South");
+        CacheKey invalidTypeCacheKey = new CacheKey(stringCredentials, url);
+        CacheKey invalidTypeCacheKey2 = new CacheKey(stringCredentials, url);
 
         assertThat(invalidTypeCacheKey.equals(invalidTypeCacheKey2), is(false));
     }
@@ -94,8 +101,8 @@ class AzureCosmosDBCacheTest {
     void equalsMatchesForImdsCredentials() {
         String url = "https://your-account-name.documents.azure.com:443/";
         AzureImdsCredentials imdsCredentials = new AzureImdsCredentials(CredentialsScope.GLOBAL, "id", null);
-        CacheKey imds1 = new CacheKey(imdsCredentials, url, "UK South");
-        CacheKey imds2 = new CacheKey(imdsCredentials, url, "UK South");
+        CacheKey imds1 = new CacheKey(imdsCredentials, url);
+        CacheKey imds2 = new CacheKey(imdsCredentials, url);
 
         assertThat(imds1.equals(imds2), is(true));
     }
@@ -111,8 +118,8 @@ class AzureCosmosDBCacheTest {
         AzureCredentials sp2 =
                 new AzureCredentials(CredentialsScope.GLOBAL, "sp", null, "1234", "12345", Secret.fromString("1234"));
         sp2.setTenant("1234567");
-        CacheKey sp1Cache = new CacheKey(sp, url, "UK South");
-        CacheKey sp2Cache = new CacheKey(sp2, url, "UK South");
+        CacheKey sp1Cache = new CacheKey(sp, url);
+        CacheKey sp2Cache = new CacheKey(sp2, url);
 
         assertThat(sp1Cache.equals(sp2Cache), is(false));
     }
@@ -123,19 +130,131 @@ class AzureCosmosDBCacheTest {
         String url = "https://your-account-name.documents.azure.com:443/";
         AzureImdsCredentials imdsCredentials = new AzureImdsCredentials(CredentialsScope.GLOBAL, "id", null);
         AzureImdsCredentials imdsCredentials2 = new AzureImdsCredentials(CredentialsScope.GLOBAL, "id2", null);
-        CacheKey imds1 = new CacheKey(imdsCredentials, url, "UK South");
-        CacheKey imds2 = new CacheKey(imdsCredentials2, url, "UK South");
+        CacheKey imds1 = new CacheKey(imdsCredentials, url);
+        CacheKey imds2 = new CacheKey(imdsCredentials2, url);
 
         assertThat(imds1.equals(imds2), is(false));
     }
 
+    @Test
+    @WithoutJenkins
+    void regionIsNotPartOfTheKey() {
+        String url = "https://your-account-name.documents.azure.com:443/";
+        AzureCosmosDBKeyCredentialsImpl credentials =
+                new AzureCosmosDBKeyCredentialsImpl("key", null, Secret.fromString("abcd"));
+
+        assertThat(new CacheKey(credentials, url), equalTo(new CacheKey(credentials, url)));
+    }
+
+    @Test
+    @WithoutJenkins
+    void otherAccountRegionsAreExcluded() {
+        List<String> accountRegions = Arrays.asList("UK South", "UK West", "North Europe");
+
+        assertThat(
+                CosmosConnection.excludedRegions("UK West", accountRegions),
+                equalTo(Arrays.asList("UK South", "North Europe")));
+        assertThat(CosmosConnection.excludedRegions(null, accountRegions), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    @WithoutJenkins
+    void hedgeRegionsAreNotExcluded() {
+        List<String> accountRegions = Arrays.asList("UK South", "UK West", "North Europe");
+
+        assertThat(
+                CosmosConnection.excludedRegions(
+                        "UK South", CosmosConnection.hedgeRegions(" UK West, ,UK West"), accountRegions),
+                equalTo(Collections.singletonList("North Europe")));
+    }
+
+    @Test
+    @WithoutJenkins
+    void latencyPolicyFromCredentials() {
+        AzureCosmosDBCredentialsImpl credentials = new AzureCosmosDBCredentialsImpl(
+                CredentialsScope.GLOBAL, "cosmos", null, "key", "UK South", "https://example.com");
+        assertThat(CosmosConnection.latencyPolicy(credentials), is(nullValue()));
+
+        credentials.setHedgeThresholdMillis(500);
+        CosmosEndToEndOperationLatencyPolicyConfig policy = CosmosConnection.latencyPolicy(credentials);
+        assertThat(policy.getEndToEndOperationTimeout(), equalTo(CosmosConnection.DEFAULT_END_TO_END_TIMEOUT));
+        ThresholdBasedAvailabilityStrategy strategy =
+                (ThresholdBasedAvailabilityStrategy) policy.getAvailabilityStrategy();
+        assertThat(strategy.getThreshold(), equalTo(Duration.ofMillis(500)));
+        assertThat(
+                strategy.getThresholdStep(),
+                equalTo(Duration.ofMillis(CosmosConnection.DEFAULT_HEDGE_THRESHOLD_STEP_MILLIS)));
+
+        credentials.setEndToEndTimeoutSeconds(5);
+        credentials.setHedgeThresholdMillis(0);
+        policy = CosmosConnection.latencyPolicy(credentials);
+        assertThat(policy.getEndToEndOperationTimeout(), equalTo(Duration.ofSeconds(5)));
+        assertThat(policy.getAvailabilityStrategy(), is(nullValue()));
+    }
+
+    @Test
+    @WithoutJenkins
+    void clientWeightGrowsWithRegions() {
+        AccountClient singleRegion = new AccountClient(null, Collections.singletonList("UK South"));
+        AccountClient twoRegions = new AccountClient(null, Arrays.asList("UK South", "UK West"));
+
+        assertThat(singleRegion.getWeight(), equalTo(CredentialsHelper.MAX_CONNECTION_POOL_SIZE));
+        assertThat(twoRegions.getWeight(), equalTo(2 * CredentialsHelper.MAX_CONNECTION_POOL_SIZE));
+    }
+
+    @Test
+    @WithoutJenkins
+    void clientsWithOldConnectionSettingsAreReplaced() {
+        ConnectionSettings original = CredentialsHelper.connectionSettings();
+        AccountClient client = new AccountClient(null, Collections.singletonList("UK South"));
+        try {
+            assertThat(client.isCurrent(), is(true));
+
+            CredentialsHelper.setConnectionSettings(new ConnectionSettings(10, Duration.ofSeconds(5)));
+
+            assertThat(client.isCurrent(), is(false));
+        } finally {
+            CredentialsHelper.setConnectionSettings(original);
+        }
+    }
+
+    @Test
+    @WithoutJenkins
+    void defaultCacheSizeFollowsTheConfiguredPoolSize() {
+        ConnectionSettings original = CredentialsHelper.connectionSettings();
+        try {
+            CredentialsHelper.setConnectionSettings(new ConnectionSettings(10, Duration.ofSeconds(5)));
+            AzureCosmosDBCache.configure(null, null, null);
+
+            assertThat(AzureCosmosDBCache.cacheMaximumWeight(), equalTo(AzureCosmosDBCache.MAX_SIZE * 10));
+        } finally {
+            CredentialsHelper.setConnectionSettings(original);
+            AzureCosmosDBCache.configure(null, null, null);
+        }
+    }
+
+    @Test
+    @WithoutJenkins
+    void leasedClientsCloseWhenReleased() {
+        AccountClient client = new AccountClient(null, Collections.singletonList("UK South"));
+        AzureCosmosDBCache.Lease lease = new AzureCosmosDBCache.Lease(client, null);
+        assertThat(client.acquire(), is(true));
+
+        client.close();
+        assertThat(client.isClosed(), is(false));
+        assertThat(client.acquire(), is(false));
+
+        lease.close();
+        assertThat(client.isClosed(), is(true));
+    }
+
     @Test
     @WithoutJenkins
     @SuppressWarnings("ConstantConditions")
     void nullEqualsIsNotEqual() {
         String url = "https://your-account-name.documents.azure.com:443/";
         AzureImdsCredentials imdsCredentials = new AzureImdsCredentials(CredentialsScope.GLOBAL, "id", null);
-        CacheKey imds1 = new CacheKey(imdsCredentials, url, "UK South");
+        CacheKey imds1 = new CacheKey(imdsCredentials, url);
 
         assertThat(imds1.equals(null), is(false));
     }
@@ -146,7 +265,7 @@ class AzureCosmosDBCacheTest {
     void sameReferenceIsEqual() {
         String url = "https://your-account-name.documents.azure.com:443/";
         AzureImdsCredentials imdsCredentials = new AzureImdsCredentials(CredentialsScope.GLOBAL, "id", null);
-        CacheKey imds1 = new CacheKey(imdsCredentials, url, "UK South");
+        CacheKey imds1 = new CacheKey(imdsCredentials, url);
 
         assertThat(imds1.equals(imds1), is(true));
     }
@@ -0,0 +1,327 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepAtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ * Measures how many {@code azureCosmosDBCreateDocument} steps a controller sustains with several pipelines writing
+ * from parallel branches.
+ *
+ * <p>Not run by default, run with {@code mvn test -P benchmark} and tune the load with system properties:
+ *
+ * <ul>
+ *   <li>{@code benchmark.pipelines}, pipelines running at once, defaults to 4
+ *   <li>{@code benchmark.branches}, parallel branches per pipeline, defaults to 8
+ *   <li>{@code benchmark.documents}, documents written by each branch, defaults to 25
+ *   <li>{@code benchmark.documentSize}, approximate document size in bytes, defaults to 1024
+ *   <li>{@code benchmark.latencyMillis}, latency the fake gateway adds to each request, defaults to 5
+ *   <li>{@code benchmark.baseline}, results to compare against, defaults to the {@code benchmark-baseline.properties}
+ *       committed next to this class in {@code src/test/resources}, which was taken against the fake gateway
+ *   <li>{@code benchmark.tolerance}, fraction throughput or p99 latency may regress by, defaults to 0.2
+ *   <li>{@code benchmark.updateBaseline}, write this run's results as the new baseline
+ * </ul>
+ *
+ * <p>Runs against the in-process {@link FakeCosmosGateway} unless the integration test environment variables point at
+ * a real account. CPU time is the whole process less the gateway's own threads, allocation only counts threads still
+ * alive at the end of the run, so both are a lower bound.
+ */
+@WithJenkins
+class AzureCosmosDBCreateDocumentBenchmark extends BaseIntegrationTest {
+
+    private static final String PREFIX = "benchmark.";
+    private static final String GATEWAY_THREADS = "Fake Cosmos DB gateway";
+    private static final String FUNCTION_NAME = "azureCosmosDBCreateDocument";
+
+    private final int pipelines = SystemProperties.getInteger(PREFIX + "pipelines", 4);
+    private final int branches = SystemProperties.getInteger(PREFIX + "branches", 8);
+    private final int documents = SystemProperties.getInteger(PREFIX + "documents", 25);
+    private final int documentSize = SystemProperties.getInteger(PREFIX + "documentSize", 1024);
+    private final int latencyMillis = SystemProperties.getInteger(PREFIX + "latencyMillis", 5);
+    // surefire sets basedir, so the paths don't depend on the directory maven was started from
+    private final Path basedir = Paths.get(System.getProperty("basedir", "."));
+    private final String baselineProperty = SystemProperties.getString(PREFIX + "baseline");
+    private final Path baseline = baselineProperty != null
+            ? Paths.get(baselineProperty)
+            : basedir.resolve("src/test/resources/io/jenkins/plugins/azurecosmosdb/benchmark-baseline.properties");
+    private final double tolerance = Double.parseDouble(SystemProperties.getString(PREFIX + "tolerance", "0.2"));
+    private final boolean updateBaseline = SystemProperties.getBoolean(PREFIX + "updateBaseline");
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        if (gateway() != null) {
+            gateway().setLatency(Duration.ofMillis(latencyMillis));
+        }
+    }
+
+    @Test
+    void parallelPipelines() throws Exception {
+        String credentialsId = loadValidCredentials();
+        List<WorkflowJob> jobs = new ArrayList<>();
+        for (int i = 0; i < pipelines; i++) {
+            WorkflowJob job = j.createProject(WorkflowJob.class, "benchmark-" + i);
+            job.setDefinition(new CpsFlowDefinition(script(credentialsId), true));
+            jobs.add(job);
+        }
+
+        // the first round loads classes, builds the client and fills the caches
+        runAll(jobs);
+
+        Measurement measurement = Measurement.start();
+        List<WorkflowRun> runs = runAll(jobs);
+        Measurement.Result usage = measurement.stop();
+
+        List<Long> latencies = new ArrayList<>();
+        for (WorkflowRun run : runs) {
+            latencies.addAll(stepLatencies(run));
+        }
+        Collections.sort(latencies);
+        assertThat(latencies.size(), equalTo(pipelines * branches * documents));
+
+        Properties results = new Properties();
+        results.setProperty("pipelines", String.valueOf(pipelines));
+        results.setProperty("branches", String.valueOf(branches));
+        results.setProperty("documents", String.valueOf(documents));
+        results.setProperty("documentSize", String.valueOf(documentSize));
+        results.setProperty("latencyMillis", String.valueOf(latencyMillis));
+        results.setProperty("steps", String.valueOf(latencies.size()));
+        results.setProperty("durationMillis", String.valueOf(usage.wallNanos / 1_000_000));
+        results.setProperty("throughput", format(latencies.size() / seconds(usage.wallNanos)));
+        results.setProperty("p50Millis", String.valueOf(percentile(latencies, 0.50)));
+        results.setProperty("p99Millis", String.valueOf(percentile(latencies, 0.99)));
+        results.setProperty("cpuCores", format(usage.cpuNanos / (double) usage.wallNanos));
+        results.setProperty(
+                "allocationMegabytesPerSecond", format(usage.allocatedBytes / 1e6 / seconds(usage.wallNanos)));
+
+        System.out.println("Benchmark results:");
+        results.stringPropertyNames().stream()
+                .sorted()
+                .forEach(key -> System.out.printf("  %-30s %s%n", key, results.getProperty(key)));
+
+        write(results, basedir.resolve(Paths.get("target", "benchmark-results.properties")));
+        if (updateBaseline) {
+            write(results, baseline);
+            System.out.println("Baseline updated: " + baseline.toAbsolutePath());
+        } else if (gateway() == null && baselineProperty == null) {
+            System.out.println("The default baseline was taken against the fake gateway, set -Dbenchmark.baseline to "
+                    + "compare results from a real account");
+        } else if (Files.exists(baseline)) {
+            assertThat(compare(read(baseline), results), empty());
+        } else {
+            System.out.println("No baseline at " + baseline.toAbsolutePath() + ", run with -Dbenchmark.updateBaseline");
+        }
+    }
+
+    private List<WorkflowRun> runAll(List<WorkflowJob> jobs) throws Exception {
+        List<Future<WorkflowRun>> builds = new ArrayList<>();
+        for (WorkflowJob job : jobs) {
+            builds.add(job.scheduleBuild2(0));
+        }
+        List<WorkflowRun> runs = new ArrayList<>();
+        for (Future<WorkflowRun> build : builds) {
+            runs.add(j.assertBuildStatusSuccess(build));
+        }
+        return runs;
+    }
+
+    private String script(String credentialsId) {
+        StringBuilder payload = new StringBuilder(documentSize);
+        for (int i = 0; i < documentSize; i++) {
+            payload.append((char) ('a' + i % 26));
+        }
+        return "def branches = [:]\n"
+                + "for (int b = 0; b < " + branches + "; b++) {\n"
+                + "  def branch = b\n"
+                + "  branches['branch-' + branch] = {\n"
+                + "    for (int i = 0; i < " + documents + "; i++) {\n"
+                + "      " + FUNCTION_NAME + " credentialsId: '" + credentialsId + "', database: '" + DATABASE_NAME
+                + "', container: '" + CONTAINER_NAME + "', document: [id: env.BUILD_TAG + '-' + branch + '-' + i, "
+                + "payload: '" + payload + "']\n"
+                + "    }\n"
+                + "  }\n"
+                + "}\n"
+                + "parallel branches\n";
+    }
+
+    /** Time from each step starting to the next node in its branch starting, which includes any queueing. */
+    private static List<Long> stepLatencies(WorkflowRun run) {
+        Map<String, Long> started = new HashMap<>();
+        Map<String, Long> ended = new HashMap<>();
+        for (FlowNode node : new DepthFirstScanner().allNodes(run.getExecution())) {
+            if (node instanceof StepAtomNode
+                    && ((StepAtomNode) node).getDescriptor() != null
+                    && FUNCTION_NAME.equals(((StepAtomNode) node).getDescriptor().getFunctionName())) {
+                started.put(node.getId(), TimingAction.getStartTime(node));
+            }
+            for (FlowNode parent : node.getParents()) {
+                ended.merge(parent.getId(), TimingAction.getStartTime(node), Math::min);
+            }
+        }
+        List<Long> latencies = new ArrayList<>();
+        for (Map.Entry<String, Long> step : started.entrySet()) {
+            Long end = ended.get(step.getKey());
+            if (end != null) {
+                latencies.add(end - step.getValue());
+            }
+        }
+        return latencies;
+    }
+
+    private List<String> compare(Properties expected, Properties actual) {
+        List<String> regressions = new ArrayList<>();
+        double throughput = Double.parseDouble(actual.getProperty("throughput"));
+        double expectedThroughput = Double.parseDouble(expected.getProperty("throughput", "0"));
+        if (throughput < expectedThroughput * (1 - tolerance)) {
+            regressions.add("throughput " + format(throughput) + " steps/s, baseline " + format(expectedThroughput));
+        }
+        long p99 = Long.parseLong(actual.getProperty("p99Millis"));
+        long expectedP99 = Long.parseLong(expected.getProperty("p99Millis", String.valueOf(Long.MAX_VALUE)));
+        if (p99 > expectedP99 * (1 + tolerance)) {
+            regressions.add("p99 " + p99 + "ms, baseline " + expectedP99 + "ms");
+        }
+        for (String key : new String[] {"pipelines", "branches", "documents", "documentSize", "latencyMillis"}) {
+            if (!actual.getProperty(key).equals(expected.getProperty(key, actual.getProperty(key)))) {
+                System.out.println("Baseline was measured with " + key + "=" + expected.getProperty(key)
+                        + ", comparison may not be meaningful");
+            }
+        }
+        return regressions;
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+
+    private static Properties read(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static void write(Properties properties, Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (OutputStream out = Files.newOutputStream(path)) {
+            properties.store(out, "azureCosmosDBCreateDocument benchmark");
+        }
+    }
+
+    /** Process CPU and per thread allocation between two points, leaving out the fake gateway's threads. */
+    private static class Measurement {
+
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = processCpuTime() - gatewayCpuTime();
+        private final Map<Long, Long> allocatedStart = allocatedBytes();
+
+        static Measurement start() {
+            return new Measurement();
+        }
+
+        Result stop() {
+            long wallNanos = System.nanoTime() - wallStart;
+            long cpuNanos = processCpuTime() - gatewayCpuTime() - cpuStart;
+            long allocated = 0;
+            for (Map.Entry<Long, Long> thread : allocatedBytes().entrySet()) {
+                allocated += thread.getValue() - allocatedStart.getOrDefault(thread.getKey(), 0L);
+            }
+            return new Result(wallNanos, cpuNanos, allocated);
+        }
+
+        private static long processCpuTime() {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getProcessCpuTime();
+        }
+
+        private static long gatewayCpuTime() {
+            com.sun.management.ThreadMXBean threads = threads();
+            long total = 0;
+            for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+                if (info != null && isGateway(info)) {
+                    total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+                }
+            }
+            return total;
+        }
+
+        private static Map<Long, Long> allocatedBytes() {
+            com.sun.management.ThreadMXBean threads = threads();
+            Map<Long, Long> allocated = new HashMap<>();
+            for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+                if (info != null && !isGateway(info)) {
+                    long bytes = threads.getThreadAllocatedBytes(info.getThreadId());
+                    if (bytes >= 0) {
+                        allocated.put(info.getThreadId(), bytes);
+                    }
+                }
+            }
+            return allocated;
+        }
+
+        private static boolean isGateway(ThreadInfo info) {
+            return info.getThreadName().startsWith(GATEWAY_THREADS)
+                    || info.getThreadName().startsWith("HTTP-Dispatcher");
+        }
+
+        private static com.sun.management.ThreadMXBean threads() {
+            return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+
+        private static class Result {
+
+            private final long wallNanos;
+            private final long cpuNanos;
+            private final long allocatedBytes;
+
+            Result(long wallNanos, long cpuNanos, long allocatedBytes) {
+                this.wallNanos = wallNanos;
+                this.cpuNanos = cpuNanos;
+                this.allocatedBytes = allocatedBytes;
+            }
+        }
+    }
+}
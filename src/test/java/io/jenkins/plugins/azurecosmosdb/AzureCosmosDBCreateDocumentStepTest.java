@@ -176,6 +176,19 @@ class AzureCosmosDBCreateDocumentStepTest {
                 "azureCosmosDBCreateDocument container: 'jenkins', credentialsId: 'cosmos-connection', database: 'jenkins', document: '{ \"id\": \"1234\" }'");
     }
 
+    @Test
+    void configRoundTripWithPartitionKey() throws Exception {
+        AzureCosmosDBCreateDocumentStep step =
+                new AzureCosmosDBCreateDocumentStep("cosmos-connection", "jenkins", "jenkins", "{ \"id\": \"1234\" }");
+        step.setPartitionKey("tenant-a");
+        step.setPartitionKeyPath("/tenant");
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBCreateDocument container: 'jenkins', credentialsId: 'cosmos-connection', database: 'jenkins', document: '{ \"id\": \"1234\" }', partitionKey: 'tenant-a', partitionKeyPath: '/tenant'");
+    }
+
     /**
      * Most people will use a groovy object but snippetizer can't generate that, we allow not
      * providing a document during snippet generation.
@@ -47,7 +47,7 @@ class AzureCosmosDBCredentialsImplIT extends BaseIntegrationTest {
             FormValidation validation = descriptor.doTestConnection("key", "UK South", COSMOS_URL, null);
 
             assertThat(validation, hasKind(FormValidation.Kind.OK));
-            assertThat(validation.getMessage(), containsString("Found "));
+            assertThat(validation.getMessage(), containsString("Connected successfully"));
         }
     }
 
@@ -68,7 +68,7 @@ class AzureCosmosDBCredentialsImplIT extends BaseIntegrationTest {
             FormValidation validation = descriptor.doTestConnection("sp", "UK South", COSMOS_URL, null);
 
             assertThat(validation, hasKind(FormValidation.Kind.OK));
-            assertThat(validation.getMessage(), containsString("Found "));
+            assertThat(validation.getMessage(), containsString("Connected successfully"));
         }
     }
 
@@ -242,6 +242,21 @@ class AzureCosmosDBCredentialsImplTest {
         }
     }
 
+    @Test
+    void doTestConnectionLeavesTheSharedClientsAlone() throws Exception {
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(new AzureCosmosDBKeyCredentialsImpl("fake", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        AzureCosmosDBCache.invalidateCache();
+
+        try (FakeCosmosGateway gateway = FakeCosmosGateway.start()) {
+            FormValidation validation = new AzureCosmosDBCredentialsImpl.DescriptorImpl()
+                    .doTestConnection("fake", "UK South", gateway.getUrl(), null);
+
+            assertThat(validation, hasKind(FormValidation.Kind.OK));
+            assertThat(AzureCosmosDBCache.cacheSize(), equalTo(0L));
+        }
+    }
+
     private void loadCredentials() {
         List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
         credentials.add(new AzureCosmosDBKeyCredentialsImpl("key", null, Secret.fromString("abcd")));
@@ -0,0 +1,68 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.CosmosItemOperationType;
+import com.azure.cosmos.models.PartitionKey;
+import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class AzureCosmosDBDeleteDocumentsStepTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void configRoundTrip() throws Exception {
+        AzureCosmosDBDeleteDocumentsStep step = new AzureCosmosDBDeleteDocumentsStep(
+                "cosmos-connection", "jenkins", "jenkins", "SELECT c.id, c.tenant FROM c");
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBDeleteDocuments container: 'jenkins', credentialsId: 'cosmos-connection', database: 'jenkins', query: 'SELECT c.id, c.tenant FROM c'");
+    }
+
+    @Test
+    void configRoundTripWithOptions() throws Exception {
+        AzureCosmosDBDeleteDocumentsStep step = new AzureCosmosDBDeleteDocumentsStep(
+                "cosmos-connection", "jenkins", "jenkins", "SELECT c.id, c.tenant FROM c");
+        step.setConcurrency(3);
+        step.setDryRun(true);
+        step.setMaxRequestCharge(1000.0);
+        step.setTtl(60);
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBDeleteDocuments concurrency: 3, container: 'jenkins', credentialsId: 'cosmos-connection', database: 'jenkins', dryRun: true, maxRequestCharge: 1000.0, query: 'SELECT c.id, c.tenant FROM c', ttl: 60");
+    }
+
+    @Test
+    void concurrencyIsBounded() {
+        assertThat(AzureCosmosDBDeleteDocumentsStep.microBatchConcurrency(null), equalTo(1));
+        assertThat(AzureCosmosDBDeleteDocumentsStep.microBatchConcurrency(0), equalTo(1));
+        assertThat(AzureCosmosDBDeleteDocumentsStep.microBatchConcurrency(3), equalTo(3));
+        assertThat(AzureCosmosDBDeleteDocumentsStep.microBatchConcurrency(50), equalTo(5));
+    }
+
+    @Test
+    void deletesUnlessTtlIsSet() {
+        CosmosItemOperation delete = AzureCosmosDBDeleteDocumentsStep.toOperation("1", new PartitionKey("a"), null);
+        CosmosItemOperation expire = AzureCosmosDBDeleteDocumentsStep.toOperation("1", new PartitionKey("a"), 60);
+
+        assertThat(delete.getOperationType(), equalTo(CosmosItemOperationType.DELETE));
+        assertThat(expire.getOperationType(), equalTo(CosmosItemOperationType.PATCH));
+        assertThat(expire.getId(), equalTo("1"));
+    }
+}
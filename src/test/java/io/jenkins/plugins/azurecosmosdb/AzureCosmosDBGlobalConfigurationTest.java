@@ -0,0 +1,35 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.List;
+import org.htmlunit.html.DomNode;
+import org.htmlunit.html.HtmlForm;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class AzureCosmosDBGlobalConfigurationTest {
+
+    @Test
+    void deletingEveryFolderRowClearsTheFolders(JenkinsRule j) throws Exception {
+        AzureCosmosDBGlobalConfiguration configuration = AzureCosmosDBGlobalConfiguration.get();
+        configuration.setFolders(List.of(new FolderSettings("team")));
+        configuration.save();
+        j.configRoundtrip();
+        assertThat(configuration.getFolders(), hasSize(1));
+
+        try (JenkinsRule.WebClient webClient = j.createWebClient()) {
+            HtmlForm form = webClient.goTo("configure").getFormByName("config");
+            for (DomNode row : form.querySelectorAll("div.repeated-chunk[name='folders']")) {
+                row.remove();
+            }
+            j.submit(form);
+        }
+
+        assertThat(configuration.getFolders(), empty());
+    }
+}
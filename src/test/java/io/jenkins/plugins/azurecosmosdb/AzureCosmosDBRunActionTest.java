@@ -0,0 +1,52 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.time.Duration;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class AzureCosmosDBRunActionTest {
+
+    @Test
+    void aggregatesOperations() {
+        AzureCosmosDBRunAction action = new AzureCosmosDBRunAction();
+        action.add(result("1", 5.5, 10));
+        action.add(result("2", 4.5, 30));
+
+        assertThat(action.getOperations(), equalTo(2L));
+        assertThat(action.getTotalRequestCharge(), closeTo(10.0, 0.001));
+        assertThat(action.getAverageLatencyMillis(), equalTo(20L));
+        assertThat(action.getSlowest().get(0).getId(), equalTo("2"));
+        assertThat(action.getMostExpensive().get(0).getId(), equalTo("1"));
+    }
+
+    @Test
+    void onlyTracksTheWorstOperations() {
+        AzureCosmosDBRunAction action = new AzureCosmosDBRunAction();
+        for (int i = 0; i < 25; i++) {
+            action.add(result(String.valueOf(i), i, i));
+        }
+
+        assertThat(action.getOperations(), equalTo(25L));
+        assertThat(action.getSlowest(), hasSize(10));
+        assertThat(action.getSlowest().get(0).getId(), equalTo("24"));
+        assertThat(action.getMostExpensive().get(9).getId(), equalTo("15"));
+    }
+
+    private static CosmosOperationResult result(String id, double requestCharge, long latencyMillis) {
+        return new CosmosOperationResult(
+                "create",
+                "jenkins",
+                "jenkins",
+                id,
+                "etag",
+                201,
+                requestCharge,
+                Duration.ofMillis(latencyMillis),
+                Collections.singletonList("UK South"));
+    }
+}
@@ -0,0 +1,125 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.CosmosItemOperationType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class AzureCosmosDBTransactionalBatchStepTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void configRoundTrip() throws Exception {
+        AzureCosmosDBTransactionalBatchStep step = new AzureCosmosDBTransactionalBatchStep(
+                "cosmos-connection", "jenkins", "jenkins", "tenant-a", "[{\"type\": \"delete\", \"id\": \"1234\"}]");
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBTransactionalBatch container: 'jenkins', credentialsId: 'cosmos-connection', database: 'jenkins', operations: '[{\"type\": \"delete\", \"id\": \"1234\"}]', partitionKey: 'tenant-a'");
+    }
+
+    @Test
+    void configRoundTripWithoutFailOnError() throws Exception {
+        AzureCosmosDBTransactionalBatchStep step =
+                new AzureCosmosDBTransactionalBatchStep("cosmos-connection", "jenkins", "jenkins", "tenant-a", "");
+        step.setFailOnError(false);
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBTransactionalBatch container: 'jenkins', credentialsId: 'cosmos-connection', database: 'jenkins', failOnError: false, partitionKey: 'tenant-a'");
+    }
+
+    @Test
+    void buildsBatchFromOperations() throws Exception {
+        List<Map<String, Object>> operations = Arrays.asList(
+                Map.of("type", "create", "document", Map.of("id", "header", "tenant", "a")),
+                Map.of("type", "upsert", "document", "{\"id\": \"child\", \"tenant\": \"a\"}"),
+                Map.of("type", "replace", "document", Map.of("id", "other", "tenant", "a")),
+                Map.of(
+                        "type",
+                        "patch",
+                        "id",
+                        "summary",
+                        "patch",
+                        List.of(Map.of("op", "increment", "path", "/builds", "value", 1))),
+                Map.of("type", "DELETE", "id", "old"),
+                Map.of("type", "read", "id", "header"));
+
+        CosmosBatch batch = AzureCosmosDBTransactionalBatchStep.toBatch("a", operations);
+
+        List<CosmosItemOperation> batchOperations = batch.getOperations();
+        assertThat(batchOperations, hasSize(6));
+        assertThat(batchOperations.get(0).getOperationType(), equalTo(CosmosItemOperationType.CREATE));
+        assertThat(batchOperations.get(0).getId(), equalTo("header"));
+        assertThat(batchOperations.get(1).getOperationType(), equalTo(CosmosItemOperationType.UPSERT));
+        assertThat(batchOperations.get(1).getId(), equalTo("child"));
+        assertThat(batchOperations.get(2).getOperationType(), equalTo(CosmosItemOperationType.REPLACE));
+        assertThat(batchOperations.get(2).getId(), equalTo("other"));
+        assertThat(batchOperations.get(3).getOperationType(), equalTo(CosmosItemOperationType.PATCH));
+        assertThat(batchOperations.get(4).getOperationType(), equalTo(CosmosItemOperationType.DELETE));
+        assertThat(batchOperations.get(5).getOperationType(), equalTo(CosmosItemOperationType.READ));
+    }
+
+    @Test
+    void buildsBatchFromJson() throws Exception {
+        CosmosBatch batch = AzureCosmosDBTransactionalBatchStep.toBatch(
+                "a", "[{\"type\": \"delete\", \"id\": \"1\"}, {\"type\": \"delete\", \"id\": \"2\"}]");
+
+        assertThat(batch.getOperations(), hasSize(2));
+    }
+
+    @Test
+    void rejectsUnknownOperation() {
+        IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class,
+                () -> AzureCosmosDBTransactionalBatchStep.toBatch(
+                        "a", Collections.singletonList(Map.of("type", "merge", "id", "1"))));
+
+        assertThat(e.getMessage(), containsString("unsupported type: merge"));
+    }
+
+    @Test
+    void rejectsOperationWithoutId() {
+        IllegalArgumentException e = assertThrows(
+                IllegalArgumentException.class,
+                () -> AzureCosmosDBTransactionalBatchStep.toBatch(
+                        "a", Collections.singletonList(Map.of("type", "delete"))));
+
+        assertThat(e.getMessage(), equalTo("Operation 0 must have an id"));
+    }
+
+    @Test
+    void rejectsTooManyOperations() {
+        List<Map<String, Object>> operations = new ArrayList<>();
+        for (int i = 0; i <= AzureCosmosDBTransactionalBatchStep.MAX_OPERATIONS; i++) {
+            operations.add(Map.of("type", "delete", "id", String.valueOf(i)));
+        }
+
+        assertThrows(
+                IllegalArgumentException.class, () -> AzureCosmosDBTransactionalBatchStep.toBatch("a", operations));
+    }
+}
@@ -1,29 +1,51 @@
 package io.jenkins.plugins.azurecosmosdb;
 
-import static java.util.Objects.requireNonNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import com.cloudbees.plugins.credentials.Credentials;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.microsoft.azure.util.AzureCredentials;
 import hudson.util.Secret;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
+/**
+ * Runs against the account in the {@code IT_COSMOS_*} environment variables, or against a {@link FakeCosmosGateway}
+ * when they aren't set so the integration tests also run offline.
+ */
 class BaseIntegrationTest {
 
+    private static final FakeCosmosGateway GATEWAY = System.getenv("IT_COSMOS_URL") == null ? startGateway() : null;
+
     protected static final String KEY_CREDENTIALS_ID = "cosmos-key";
-    protected static final String COSMOS_KEY = getEnvVar("IT_COSMOS_KEY");
-    protected static final String COSMOS_URL = getEnvVar("IT_COSMOS_URL");
-    protected static final String CONTAINER_NAME = getEnvVar("IT_COSMOS_CONTAINER_NAME");
-    protected static final String DATABASE_NAME = getEnvVar("IT_COSMOS_DATABASE_NAME");
-
-    protected static final String SP_SUBSCRIPTION_ID = getEnvVar("IT_SP_SUBSCRIPTION_ID");
-    protected static final String SP_CLIENT_ID = getEnvVar("IT_SP_CLIENT_ID");
-    protected static final String SP_CLIENT_SECRET = getEnvVar("IT_SP_CLIENT_SECRET");
-    protected static final String SP_TENANT_ID = getEnvVar("IT_SP_TENANT_ID");
-
-    private static String getEnvVar(String envVar) {
-        return requireNonNull(System.getenv(envVar), "Missing environment variable: " + envVar);
+    protected static final String COSMOS_KEY = getEnvVar("IT_COSMOS_KEY", FakeCosmosGateway.KEY);
+    protected static final String COSMOS_URL = getEnvVar("IT_COSMOS_URL", GATEWAY == null ? null : GATEWAY.getUrl());
+    protected static final String CONTAINER_NAME = getEnvVar("IT_COSMOS_CONTAINER_NAME", "jenkins");
+    protected static final String DATABASE_NAME = getEnvVar("IT_COSMOS_DATABASE_NAME", "jenkins");
+
+    protected static final String SP_SUBSCRIPTION_ID = System.getenv("IT_SP_SUBSCRIPTION_ID");
+    protected static final String SP_CLIENT_ID = System.getenv("IT_SP_CLIENT_ID");
+    protected static final String SP_CLIENT_SECRET = System.getenv("IT_SP_CLIENT_SECRET");
+    protected static final String SP_TENANT_ID = System.getenv("IT_SP_TENANT_ID");
+
+    private static FakeCosmosGateway startGateway() {
+        try {
+            return FakeCosmosGateway.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String getEnvVar(String envVar, String fallback) {
+        String value = System.getenv(envVar);
+        return value == null ? fallback : value;
+    }
+
+    /** The fake gateway the tests run against, or {@code null} when they run against a real account. */
+    protected static FakeCosmosGateway gateway() {
+        return GATEWAY;
     }
 
     protected String loadValidCredentials() {
@@ -37,6 +59,8 @@ class BaseIntegrationTest {
     }
 
     protected String loadServicePrincipalCredentials() {
+        // a service principal needs Entra ID, which the fake gateway can't stand in for
+        assumeTrue(SP_CLIENT_ID != null, "Missing environment variable: IT_SP_CLIENT_ID");
         List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
         AzureCredentials sp = new AzureCredentials(
                 CredentialsScope.GLOBAL,
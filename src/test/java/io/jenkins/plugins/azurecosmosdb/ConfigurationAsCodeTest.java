@@ -64,6 +64,25 @@ class ConfigurationAsCodeTest {
         assertThat(exported, is(expected));
     }
 
+    @Test
+    @ConfiguredWithCode("global-configuration-as-code.yml")
+    void importGlobalConfig(JenkinsConfiguredWithCodeRule r) {
+        AzureCosmosDBGlobalConfiguration config = AzureCosmosDBGlobalConfiguration.get();
+        assertThat(config.getCacheSize(), equalTo(20));
+        assertThat(config.getCacheIdleMinutes(), equalTo(15));
+        assertThat(config.getCacheDurationHours(), equalTo(12));
+        assertThat(config.getMaxConnectionPoolSize(), equalTo(50));
+        assertThat(config.getIdleConnectionTimeoutSeconds(), equalTo(30));
+        assertThat(config.getMaxConcurrency(), equalTo(8));
+        assertThat(config.getMaxConcurrencyPerAccount(), equalTo(4));
+
+        // applied without a restart
+        assertThat(CredentialsHelper.connectionSettings().getMaxConnectionPoolSize(), equalTo(50));
+        assertThat(AzureCosmosDBCache.cacheMaximumWeight(), equalTo(20L * 50));
+        assertThat(CosmosStepExecutor.get().getMaxConcurrency(), equalTo(8));
+        assertThat(CosmosStepExecutor.get().getMaxConcurrencyPerAccount(), equalTo(4));
+    }
+
     private static Mapping getCredentialsRoot(ConfigurationContext context) throws Exception {
         CredentialsRootConfigurator unclassifiedConfigurator = new CredentialsRootConfigurator();
         return Objects.requireNonNull(unclassifiedConfigurator.describe(
@@ -0,0 +1,85 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosClientBuilder;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.PartitionKeyBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ContainerMetadataCacheTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Test
+    void extractsStringPartitionKey() throws Exception {
+        JsonNode document = OBJECT_MAPPER.readTree("{ \"id\": \"1\", \"tenant\": \"a\" }");
+
+        PartitionKey partitionKey =
+                ContainerMetadataCache.extractPartitionKey(document, Collections.singletonList("/tenant"));
+
+        assertThat(partitionKey, equalTo(new PartitionKey("a")));
+    }
+
+    @Test
+    void extractsNestedNumericPartitionKey() throws Exception {
+        JsonNode document = OBJECT_MAPPER.readTree("{ \"id\": \"1\", \"build\": { \"number\": 5 } }");
+
+        PartitionKey partitionKey =
+                ContainerMetadataCache.extractPartitionKey(document, Collections.singletonList("/build/number"));
+
+        assertThat(partitionKey, equalTo(new PartitionKeyBuilder().add(5d).build()));
+    }
+
+    @Test
+    void missingPartitionKeyIsNone() throws Exception {
+        JsonNode document = OBJECT_MAPPER.readTree("{ \"id\": \"1\" }");
+
+        PartitionKey partitionKey =
+                ContainerMetadataCache.extractPartitionKey(document, Collections.singletonList("/tenant"));
+
+        assertThat(partitionKey, equalTo(new PartitionKeyBuilder().addNoneValue().build()));
+    }
+
+    @Test
+    void hierarchicalPartitionKey() throws Exception {
+        JsonNode document = OBJECT_MAPPER.readTree("{ \"id\": \"1\", \"tenant\": \"a\", \"job\": \"b\" }");
+
+        PartitionKey partitionKey =
+                ContainerMetadataCache.extractPartitionKey(document, Arrays.asList("/tenant", "/job"));
+
+        assertThat(partitionKey, equalTo(ContainerMetadataCache.toPartitionKey(Arrays.asList("a", "b"))));
+    }
+
+    @Test
+    void partitionKeyMismatchReadsTheDefinitionAgain() throws Exception {
+        try (FakeCosmosGateway gateway = FakeCosmosGateway.start();
+                CosmosClient client = new CosmosClientBuilder()
+                        .endpoint(gateway.getUrl())
+                        .key(FakeCosmosGateway.KEY)
+                        .gatewayMode()
+                        .buildClient()) {
+            gateway.createContainer("jenkins", "builds", "/id");
+            ContainerMetadataCache.CachedContainer container =
+                    new ContainerMetadataCache(client).get("jenkins", "builds");
+            assertThat(container.getPartitionKeyPaths(), equalTo(Collections.singletonList("/id")));
+
+            // the container is created again under the same name with another partition key
+            gateway.reset();
+            gateway.createContainer("jenkins", "builds", "/tenant");
+            container.onFailure(new CosmosException(404, "Not found", Map.of("x-ms-substatus", "0"), null) {});
+            assertThat(container.getPartitionKeyPaths(), equalTo(Collections.singletonList("/id")));
+            container.onFailure(new CosmosException(400, "Mismatch", Map.of("x-ms-substatus", "1001"), null) {});
+
+            assertThat(container.getPartitionKeyPaths(), equalTo(Collections.singletonList("/tenant")));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.util.Secret;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.WithoutJenkins;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ContentHashCacheTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+        ContentHashCache.invalidateAll();
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+    }
+
+    @Test
+    @WithoutJenkins
+    void hashIgnoresPropertyOrderAndSystemProperties() throws Exception {
+        ObjectNode document = (ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"1\",\"a\":{\"x\":1,\"y\":[2,3]}}");
+        ObjectNode reordered = (ObjectNode) OBJECT_MAPPER.readTree(
+                "{\"a\":{\"y\":[2,3],\"x\":1},\"id\":\"1\",\"_etag\":\"e\",\"_ts\":1,\"jenkinsContentHash\":\"h\"}");
+        ObjectNode changed = (ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"1\",\"a\":{\"x\":1,\"y\":[3,2]}}");
+
+        assertThat(ContentHashCache.hash(reordered), equalTo(ContentHashCache.hash(document)));
+        assertThat(ContentHashCache.hash(changed), not(equalTo(ContentHashCache.hash(document))));
+    }
+
+    @Test
+    void unchangedDocumentIsSkippedWithoutARequest() throws Exception {
+        WorkflowJob job = publishJob("[id: 'inventory', hosts: ['a', 'b']]");
+        j.assertLogContains("written=1 skipped=0", j.buildAndAssertSuccess(job));
+
+        long requests = gateway.getRequestCount();
+        j.assertLogContains("written=0 skipped=1", j.buildAndAssertSuccess(job));
+
+        assertThat(gateway.getRequestCount(), equalTo(requests));
+    }
+
+    @Test
+    void storedHashIsCheckedWhenTheControllerDoesNotKnowIt() throws Exception {
+        WorkflowJob job = publishJob("[id: 'inventory', hosts: ['a', 'b']]");
+        j.buildAndAssertSuccess(job);
+        ContentHashCache.invalidateAll();
+
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+
+        j.assertLogContains("written=0 skipped=1 statusCode=304", run);
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+    }
+
+    @Test
+    void changedDocumentIsWritten() throws Exception {
+        j.buildAndAssertSuccess(publishJob("[id: 'inventory', hosts: ['a', 'b']]"));
+
+        WorkflowJob changed = publishJob("[id: 'inventory', hosts: ['a', 'c']]");
+        j.assertLogContains("written=1 skipped=0", j.buildAndAssertSuccess(changed));
+
+        assertThat(gateway.documents("jenkins", "builds").get(0).path("hosts").get(1).asText(), equalTo("c"));
+    }
+
+    @Test
+    void documentDeletedThroughTheStepIsWrittenAgain() throws Exception {
+        WorkflowJob job = publishJob("[id: 'inventory', hosts: ['a', 'b']]");
+        j.buildAndAssertSuccess(job);
+        WorkflowJob delete = j.createProject(WorkflowJob.class);
+        delete.setDefinition(new CpsFlowDefinition(
+                "azureCosmosDBDeleteDocuments credentialsId: 'cosmos-connection', database: 'jenkins', "
+                        + "container: 'builds', query: 'SELECT * FROM c'",
+                true));
+        j.buildAndAssertSuccess(delete);
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(0));
+
+        j.assertLogContains("written=1 skipped=0", j.buildAndAssertSuccess(job));
+
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+    }
+
+    private WorkflowJob publishJob(String document) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(
+                "def result = azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+                        + "container: 'builds', skipIfUnchanged: true, document: " + document + "\n"
+                        + "echo \"written=${result.written} skipped=${result.skipped} statusCode=${result.statusCode}\"",
+                true));
+        return job;
+    }
+}
@@ -0,0 +1,206 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.azure.cosmos.CosmosClient;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.model.Result;
+import hudson.util.Secret;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.WithoutJenkins;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class CosmosAccountKeysTest {
+
+    // signs requests fine, but isn't the key the gateway accepts
+    private static final String OTHER_KEY =
+            Base64.getEncoder().encodeToString("not the account key".getBytes(StandardCharsets.UTF_8));
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+    }
+
+    @Test
+    @WithoutJenkins
+    void failoverSwitchesKeysOnce() {
+        CosmosAccountKeys keys = new CosmosAccountKeys(keyCredentials("primary", "secondary"));
+
+        assertThat(keys.failover("primary"), is(true));
+        assertThat(keys.getActive(), equalTo("secondary"));
+        assertThat(keys.getCredential().getKey(), equalTo("secondary"));
+        // a request that was signed before the switch just retries
+        assertThat(keys.failover("primary"), is(true));
+        assertThat(keys.getActive(), equalTo("secondary"));
+    }
+
+    @Test
+    @WithoutJenkins
+    void failoverNeedsASecondaryKey() {
+        CosmosAccountKeys keys = new CosmosAccountKeys(keyCredentials("primary", null));
+
+        assertThat(keys.failover("primary"), is(false));
+        assertThat(keys.getActive(), equalTo("primary"));
+    }
+
+    @Test
+    @WithoutJenkins
+    void rotatedPrimaryKeyIsUsedAgain() {
+        CosmosAccountKeys keys = new CosmosAccountKeys(keyCredentials("primary", "secondary"));
+        keys.failover("primary");
+
+        keys.update(keyCredentials("primary", "secondary"));
+        assertThat(keys.getActive(), equalTo("secondary"));
+
+        keys.update(keyCredentials("regenerated", "secondary"));
+        assertThat(keys.getActive(), equalTo("regenerated"));
+        assertThat(keys.getCredential().getKey(), equalTo("regenerated"));
+    }
+
+    @Test
+    @WithoutJenkins
+    void keyIsNotPartOfTheCacheKeyOfTheSameCredentials() {
+        String url = "https://your-account-name.documents.azure.com:443/";
+        String origin = SystemCredentialsProvider.StoreImpl.class.getName() + ":Jenkins";
+
+        assertThat(
+                new AzureCosmosDBCache.CacheKey(keyCredentials("primary", null), url, origin),
+                equalTo(new AzureCosmosDBCache.CacheKey(keyCredentials("regenerated", null), url, origin)));
+    }
+
+    @Test
+    @WithoutJenkins
+    void sameIdFromAnotherStoreIsAnotherCacheKey() {
+        String url = "https://your-account-name.documents.azure.com:443/";
+        AzureCosmosDBKeyCredentialsImpl credentials = keyCredentials("primary", null);
+
+        assertThat(
+                new AzureCosmosDBCache.CacheKey(credentials, url, "system"),
+                not(equalTo(new AzureCosmosDBCache.CacheKey(credentials, url, "team folder"))));
+    }
+
+    @Test
+    @WithoutJenkins
+    void sameIdWithOtherKeysOutsideAStoreIsAnotherCacheKey() {
+        String url = "https://your-account-name.documents.azure.com:443/";
+
+        assertThat(
+                new AzureCosmosDBCache.CacheKey(keyCredentials("primary", null), url),
+                not(equalTo(new AzureCosmosDBCache.CacheKey(keyCredentials("other", null), url))));
+        assertThat(
+                new AzureCosmosDBCache.CacheKey(keyCredentials("primary", null), url),
+                equalTo(new AzureCosmosDBCache.CacheKey(keyCredentials("primary", null), url)));
+    }
+
+    @Test
+    void sameIdWithOtherKeysDoesNotShareAClient() throws Exception {
+        storeCredentials(keyCredentials(FakeCosmosGateway.KEY, null));
+        CosmosClient client = AzureCosmosDBCache.get("cosmos-connection", null);
+
+        // credentials with the same id and other keys that aren't in a store, e.g. from another credentials provider
+        AzureCosmosDBKeyCredentialsImpl other = keyCredentials(FakeCosmosGateway.KEY, OTHER_KEY);
+        CosmosConnection connection = AzureCosmosDBCache.getConnection(other, gateway.getUrl(), null, null);
+
+        assertThat(connection.getClient(), not(sameInstance(client)));
+        assertThat(AzureCosmosDBCache.get("cosmos-connection", null), sameInstance(client));
+    }
+
+    @Test
+    void rotatedKeyIsAppliedToTheLiveClient() throws Exception {
+        storeCredentials(keyCredentials(FakeCosmosGateway.KEY, null));
+        WorkflowJob job = createDocumentJob();
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        CosmosClient client = AzureCosmosDBCache.get("cosmos-connection", job);
+
+        storeCredentials(keyCredentials(OTHER_KEY, null));
+        j.buildAndAssertStatus(Result.FAILURE, job);
+        assertThat(AzureCosmosDBCache.get("cosmos-connection", job), sameInstance(client));
+
+        storeCredentials(keyCredentials(FakeCosmosGateway.KEY, null));
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        assertThat(AzureCosmosDBCache.get("cosmos-connection", job), sameInstance(client));
+    }
+
+    @Test
+    void rejectedKeyFailsOverToTheSecondaryKey() throws Exception {
+        storeCredentials(keyCredentials(FakeCosmosGateway.KEY, null));
+        WorkflowJob job = createDocumentJob();
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        CosmosClient client = AzureCosmosDBCache.get("cosmos-connection", job);
+
+        storeCredentials(keyCredentials(OTHER_KEY, FakeCosmosGateway.KEY));
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        CosmosConnection connection = AzureCosmosDBCache.getConnection("cosmos-connection", job);
+        assertThat(connection.getClient(), sameInstance(client));
+        assertThat(connection.getKeys().getActive(), equalTo(FakeCosmosGateway.KEY));
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(2));
+    }
+
+    @Test
+    void newClientFailsOverToTheSecondaryKey() throws Exception {
+        storeCredentials(keyCredentials(OTHER_KEY, FakeCosmosGateway.KEY));
+
+        j.assertBuildStatusSuccess(createDocumentJob().scheduleBuild2(0));
+
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+    }
+
+    private WorkflowJob createDocumentJob() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "create-document");
+        job.setDefinition(new CpsFlowDefinition(
+                "azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+                        + "container: 'builds', document: [id: env.BUILD_TAG]",
+                true));
+        return job;
+    }
+
+    private static AzureCosmosDBKeyCredentialsImpl keyCredentials(String key, String secondaryKey) {
+        AzureCosmosDBKeyCredentialsImpl credentials =
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(key));
+        if (secondaryKey != null) {
+            credentials.setSecondaryKey(Secret.fromString(secondaryKey));
+        }
+        return credentials;
+    }
+
+    /** Saves the key credentials, replacing earlier ones as an administrator updating them would. */
+    private static void storeCredentials(AzureCosmosDBKeyCredentialsImpl keyCredentials) {
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.clear();
+        credentials.add(keyCredentials);
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+    }
+}
@@ -0,0 +1,140 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.azure.cosmos.implementation.NotFoundException;
+import com.azure.cosmos.implementation.RequestRateTooLargeException;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBGlobalConfiguration.CircuitBreakerAction;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CosmosCircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private CosmosCircuitBreaker breaker;
+
+    @BeforeEach
+    void setUp() {
+        CosmosCircuitBreaker.configure(null, 50, 30);
+        breaker = new CosmosCircuitBreaker("account", now::get, registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        CosmosCircuitBreaker.configure(null, null, null);
+    }
+
+    @Test
+    void isOffUnlessAnActionIsConfigured() {
+        CosmosCircuitBreaker.configure(null, null, null);
+
+        assertThat(CosmosCircuitBreaker.getAction(), equalTo(CircuitBreakerAction.DISABLED));
+    }
+
+    @Test
+    void opensOnceTheFailureRateIsReached() {
+        for (int i = 0; i < CosmosCircuitBreaker.MIN_REQUESTS / 2; i++) {
+            assertThat(breaker.onSuccess(), nullValue());
+        }
+        for (int i = 1; i < CosmosCircuitBreaker.MIN_REQUESTS / 2; i++) {
+            assertThat(breaker.onFailure(), nullValue());
+        }
+
+        assertThat(breaker.onFailure(), equalTo(CosmosCircuitBreaker.State.OPEN));
+        assertThat(breaker.tryAcquire(), is(false));
+        assertThat(breaker.getRemainingOpenTime(), equalTo(Duration.ofSeconds(30)));
+        assertThat(registry.get("azure-cosmosdb.circuit.rejected").counter().count(), equalTo(1.0));
+        assertThat(registry.get("azure-cosmosdb.circuit.state").gauge().value(), equalTo(2.0));
+    }
+
+    @Test
+    void staysClosedBelowTheMinimumRequests() {
+        for (int i = 1; i < CosmosCircuitBreaker.MIN_REQUESTS; i++) {
+            breaker.onFailure();
+        }
+
+        assertThat(breaker.getState(), equalTo(CosmosCircuitBreaker.State.CLOSED));
+        assertThat(breaker.tryAcquire(), is(true));
+    }
+
+    @Test
+    void failuresOutsideTheWindowAreForgotten() {
+        for (int i = 1; i < CosmosCircuitBreaker.MIN_REQUESTS; i++) {
+            breaker.onFailure();
+        }
+        now.addAndGet(Duration.ofSeconds(CosmosCircuitBreaker.WINDOW_SECONDS).toNanos());
+
+        assertThat(breaker.onFailure(), nullValue());
+        assertThat(breaker.getState(), equalTo(CosmosCircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    void halfOpenLetsOneProbeThroughAndClosesOnSuccess() {
+        open();
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+
+        assertThat(breaker.getState(), equalTo(CosmosCircuitBreaker.State.HALF_OPEN));
+        assertThat(breaker.tryAcquire(), is(true));
+        assertThat(breaker.tryAcquire(), is(false));
+
+        assertThat(breaker.onSuccess(), equalTo(CosmosCircuitBreaker.State.CLOSED));
+        assertThat(breaker.tryAcquire(), is(true));
+        assertThat(registry.get("azure-cosmosdb.circuit.state").gauge().value(), equalTo(0.0));
+    }
+
+    @Test
+    void failedProbeOpensAgain() {
+        open();
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        assertThat(breaker.tryAcquire(), is(true));
+
+        assertThat(breaker.onFailure(), equalTo(CosmosCircuitBreaker.State.OPEN));
+        assertThat(breaker.tryAcquire(), is(false));
+        assertThat(breaker.getRemainingOpenTime(), equalTo(Duration.ofSeconds(30)));
+    }
+
+    @Test
+    void releasedProbeLetsTheNextOneThrough() {
+        open();
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        assertThat(breaker.tryAcquire(), is(true));
+
+        breaker.onError(new InterruptedException());
+
+        assertThat(breaker.tryAcquire(), is(true));
+    }
+
+    @Test
+    void requestErrorsShowTheAccountIsAnswering() {
+        open();
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        assertThat(breaker.tryAcquire(), is(true));
+
+        assertThat(
+                breaker.onError(new RuntimeException(new NotFoundException())),
+                equalTo(CosmosCircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    void failuresAreOutagesAndThrottling() {
+        assertThat(CosmosCircuitBreaker.isFailure(new RequestRateTooLargeException()), is(true));
+        assertThat(CosmosCircuitBreaker.isFailure(new RuntimeException(new RequestRateTooLargeException())), is(true));
+        assertThat(CosmosCircuitBreaker.isFailure(new NotFoundException()), is(false));
+        assertThat(CosmosCircuitBreaker.isFailure(new IllegalStateException()), is(false));
+    }
+
+    private void open() {
+        for (int i = 0; i < CosmosCircuitBreaker.MIN_REQUESTS; i++) {
+            breaker.onFailure();
+        }
+        assertThat(breaker.getState(), equalTo(CosmosCircuitBreaker.State.OPEN));
+    }
+}
@@ -0,0 +1,212 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosClientBuilder;
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.model.Result;
+import hudson.util.Secret;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.WithoutJenkins;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class CosmosLockStepTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final long LEASE = 60_000L;
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        gateway.conflictNext(0);
+        AzureCosmosDBCache.invalidateCache();
+    }
+
+    @Test
+    @WithoutJenkins
+    void waitersAcquireInTheOrderTheyQueued() {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode();
+
+        assertThat(CosmosLock.acquire(document, "a", "build a", 1, 0, LEASE), is(true));
+        assertThat(CosmosLock.acquire(document, "b", "build b", 1, 1, LEASE), is(false));
+        assertThat(CosmosLock.acquire(document, "c", "build c", 1, 2, LEASE), is(false));
+        CosmosLock.release(document, "a", 3);
+
+        assertThat(CosmosLock.acquire(document, "c", "build c", 1, 4, LEASE), is(false));
+        assertThat(CosmosLock.acquire(document, "b", "build b", 1, 5, LEASE), is(true));
+        assertThat(document.path("queue").size(), equalTo(1));
+    }
+
+    @Test
+    @WithoutJenkins
+    void permitsAreSharedUpToTheLimit() {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode();
+
+        assertThat(CosmosLock.acquire(document, "a", "build a", 2, 0, LEASE), is(true));
+        assertThat(CosmosLock.acquire(document, "b", "build b", 2, 0, LEASE), is(true));
+        assertThat(CosmosLock.acquire(document, "c", "build c", 2, 0, LEASE), is(false));
+    }
+
+    @Test
+    @WithoutJenkins
+    void expiredHolderLosesTheLock() {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode();
+        CosmosLock.acquire(document, "a", "build a", 1, 0, LEASE);
+        CosmosLock.stamp(document, 0);
+
+        assertThat(CosmosLock.acquire(document, "b", "build b", 1, LEASE + 1, LEASE), is(true));
+        assertThat(CosmosLock.renew(document, "a", LEASE + 2, LEASE), is(false));
+    }
+
+    @Test
+    @WithoutJenkins
+    void leaseRunsFromTheServerTimeOfTheRenewal() {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode();
+        // the controller that acquired had a clock far behind the account's
+        CosmosLock.acquire(document, "a", "build a", 1, 0, LEASE);
+        assertThat(CosmosLock.acquire(document, "b", "build b", 1, 10 * LEASE, LEASE), is(false));
+        CosmosLock.stamp(document, 10 * LEASE);
+
+        assertThat(CosmosLock.acquire(document, "b", "build b", 1, 11 * LEASE - 1, LEASE), is(false));
+        assertThat(CosmosLock.acquire(document, "b", "build b", 1, 11 * LEASE + 1, LEASE), is(true));
+    }
+
+    @Test
+    @WithoutJenkins
+    void waitersRacingForTheLockBothGetAnAnswer() throws Exception {
+        gateway.createContainer("jenkins", "locks", "/id");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (CosmosClient client = client()) {
+            CosmosLock lock = lock(client);
+            List<Future<Boolean>> attempts = executor.invokeAll(
+                    List.of(() -> lock.tryAcquire("b", "build b"), () -> lock.tryAcquire("c", "build c")));
+
+            int acquired = 0;
+            for (Future<Boolean> attempt : attempts) {
+                acquired += attempt.get() ? 1 : 0;
+            }
+            assertThat(acquired, equalTo(1));
+            JsonNode document = gateway.documents("jenkins", "locks").get(0);
+            assertThat(document.path("holders").size(), equalTo(1));
+            assertThat(document.path("queue").size(), equalTo(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @WithoutJenkins
+    void waiterStillContendedAfterRetriesTriesAgainLater() {
+        gateway.createContainer("jenkins", "locks", "/id");
+        try (CosmosClient client = client()) {
+            CosmosLock lock = lock(client);
+            assertThat(lock.tryAcquire("a", "build a"), is(true));
+
+            gateway.conflictNext(CosmosLock.MAX_CONFLICTS + 1);
+            assertThat(lock.tryAcquire("b", "build b"), is(false));
+            lock.release("a");
+
+            assertThat(lock.tryAcquire("b", "build b"), is(true));
+        }
+    }
+
+    @Test
+    void secondBuildWaitsForTheFirst() throws Exception {
+        storeCredentials();
+        WorkflowJob first = lockJob("first");
+        WorkflowJob second = lockJob("second");
+
+        WorkflowRun firstRun = first.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("holding the lock", firstRun);
+        WorkflowRun secondRun = second.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("Waiting for lock on staging", secondRun);
+
+        j.assertBuildStatusSuccess(j.waitForCompletion(firstRun));
+        j.assertBuildStatusSuccess(j.waitForCompletion(secondRun));
+        j.assertLogContains("Acquired lock on staging", secondRun);
+        JsonNode lock = gateway.documents("jenkins", "locks").get(0);
+        assertThat(lock.path("holders").size(), equalTo(0));
+        assertThat(lock.path("queue").size(), equalTo(0));
+    }
+
+    @Test
+    void missingContainerFailsTheStep() throws Exception {
+        storeCredentials();
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(
+                new CpsFlowDefinition("cosmosLock(resource: 'staging', credentialsId: 'cosmos-connection') {}", true));
+
+        WorkflowRun run = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+
+        j.assertLogContains("cosmosLock needs credentialsId, database and container", run);
+    }
+
+    private static void storeCredentials() {
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+    }
+
+    private static CosmosClient client() {
+        return new CosmosClientBuilder()
+                .endpoint(gateway.getUrl())
+                .key(FakeCosmosGateway.KEY)
+                .gatewayMode()
+                .buildClient();
+    }
+
+    private static CosmosLock lock(CosmosClient client) {
+        CosmosConnection connection = new CosmosConnection(gateway.getUrl(), client, null, List.of());
+        return new CosmosLock(connection, "jenkins", "locks", "staging", 1, 60);
+    }
+
+    private WorkflowJob lockJob(String name) throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, name);
+        job.setDefinition(new CpsFlowDefinition(
+                "withCosmosDB(credentialsId: 'cosmos-connection', database: 'jenkins', container: 'locks') {\n"
+                        + "  cosmosLock(resource: 'staging') {\n"
+                        + "    echo 'holding the lock'\n"
+                        + "    sleep 5\n"
+                        + "  }\n"
+                        + "}",
+                true));
+        return job;
+    }
+}
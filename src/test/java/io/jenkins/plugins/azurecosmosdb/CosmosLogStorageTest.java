@@ -0,0 +1,147 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.graphanalysis.NodeStepTypePredicate;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.log.LogStorage;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class CosmosLogStorageTest {
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        gateway.createContainer("jenkins", "logs", "/run");
+        AzureCosmosDBCache.invalidateCache();
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+        AzureCosmosDBGlobalConfiguration configuration = AzureCosmosDBGlobalConfiguration.get();
+        configuration.setLogStorageCredentialsId("cosmos-connection");
+        configuration.setLogStorageDatabase("jenkins");
+        configuration.setLogStorageContainer("logs");
+    }
+
+    @Test
+    void logIsStoredInChunksOfTheRun() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("echo 'hello from the pipeline'", true));
+
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+
+        j.assertLogContains("hello from the pipeline", run);
+        assertThat(new File(run.getRootDir(), "log").exists(), equalTo(false));
+        List<JsonNode> chunks = gateway.documents("jenkins", "logs");
+        assertThat(chunks, not(hasSize(0)));
+        for (JsonNode chunk : chunks) {
+            assertThat(chunk.path("run").asText(), equalTo(run.getExternalizableId()));
+        }
+    }
+
+    @Test
+    void stepLogOnlyHasTheStepsOutput() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("echo 'first'\necho 'second'", true));
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+
+        List<FlowNode> echoes =
+                new DepthFirstScanner().filteredNodes(run.getExecution(), new NodeStepTypePredicate("echo"));
+        LogStorage storage = new CosmosLogStorageFactory().forBuild(run.asFlowExecutionOwner());
+        // the scanner walks from the end of the build
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        storage.stepLog(echoes.get(0), true).writeRawLogTo(0, second);
+
+        assertThat(second.toString(StandardCharsets.UTF_8), equalTo("second\n"));
+    }
+
+    @Test
+    void stepLogOnlyReadsTheChunksOfTheStep() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        // lines of 128 KiB, written in several chunks before the last step
+        job.setDefinition(new CpsFlowDefinition(
+                "def x = 'x'\n"
+                        + "for (int i = 0; i < 17; i++) { x = x + x }\n"
+                        + "for (int i = 0; i < 4; i++) { echo \"line ${i} \" + x }\n"
+                        + "echo 'last line'",
+                true));
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+        int chunks = gateway.documentCount("jenkins", "logs");
+        assertThat(chunks, greaterThan(3));
+
+        List<FlowNode> echoes =
+                new DepthFirstScanner().filteredNodes(run.getExecution(), new NodeStepTypePredicate("echo"));
+        LogStorage storage = new CosmosLogStorageFactory().forBuild(run.asFlowExecutionOwner());
+        long requests = gateway.getRequestCount();
+        ByteArrayOutputStream last = new ByteArrayOutputStream();
+        storage.stepLog(echoes.get(0), true).writeRawLogTo(0, last);
+
+        assertThat(last.toString(StandardCharsets.UTF_8), equalTo("last line\n"));
+        assertThat(gateway.getRequestCount() - requests, lessThan((long) chunks));
+    }
+
+    @Test
+    void logIsReadFromAnOffsetAcrossChunks() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class);
+        // lines of 128 KiB, written in several chunks
+        job.setDefinition(new CpsFlowDefinition(
+                "def x = 'x'\n"
+                        + "for (int i = 0; i < 17; i++) { x = x + x }\n"
+                        + "for (int i = 0; i < 4; i++) { echo \"line ${i} \" + x }\n"
+                        + "echo 'last line'",
+                true));
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+        assertThat(gateway.documentCount("jenkins", "logs"), greaterThan(1));
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        run.getLogText().writeRawLogTo(0, all);
+        String log = all.toString(StandardCharsets.UTF_8);
+        int offset = log.indexOf("line 3 ");
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        run.getLogText().writeRawLogTo(offset, page);
+
+        assertThat(page.toString(StandardCharsets.UTF_8), equalTo(log.substring(offset)));
+        assertThat(page.toString(StandardCharsets.UTF_8), containsString("last line"));
+    }
+}
@@ -0,0 +1,47 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.time.Duration;
+import java.util.Collections;
+import jenkins.metrics.api.Metrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class CosmosMetricsTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void operationsArePublishedToJenkinsMetrics() {
+        CosmosOperationResult result = new CosmosOperationResult(
+                "create",
+                "jenkins",
+                "builds",
+                "1",
+                "etag",
+                201,
+                5.5,
+                Duration.ofMillis(20),
+                Collections.singletonList("UK South"));
+
+        CosmosMetrics.recordSuccess(result, null);
+
+        assertThat(
+                Metrics.metricRegistry().getTimers().keySet(),
+                hasItem(startsWith("azure-cosmosdb.operation.latency")));
+        assertThat(
+                Metrics.metricRegistry().getCounters().keySet(),
+                hasItem(startsWith("azure-cosmosdb.operation.status")));
+    }
+}
@@ -0,0 +1,128 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.util.Secret;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+import org.jvnet.hudson.test.WithoutJenkins;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class CosmosRequestPriorityTest {
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+    private AzureCosmosDBCredentialsImpl connectionCredentials;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+        connectionCredentials =
+                new AzureCosmosDBCredentialsImpl(null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl());
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(connectionCredentials);
+    }
+
+    @Test
+    @WithoutJenkins
+    void parseIgnoresCase() {
+        assertThat(CosmosRequestPriority.parse("low"), equalTo(CosmosRequestPriority.LOW));
+        assertThat(CosmosRequestPriority.parse("HIGH"), equalTo(CosmosRequestPriority.HIGH));
+        assertThat(CosmosRequestPriority.parse(""), is(nullValue()));
+        assertThat(CosmosRequestPriority.parse(null), is(nullValue()));
+        assertThrows(IllegalArgumentException.class, () -> CosmosRequestPriority.parse("urgent"));
+    }
+
+    @Test
+    void credentialsPriorityIsTheDefault() throws Exception {
+        connectionCredentials.setPriority("low");
+        WorkflowJob job = j.createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(new CpsFlowDefinition(createDocument(""), true));
+
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertThat(gateway.getPriorityCount("Low"), greaterThan(0L));
+        assertThat(gateway.getPriorityCount("High"), equalTo(0L));
+    }
+
+    @Test
+    void nearestFolderPriorityOverridesCredentials() throws Exception {
+        connectionCredentials.setPriority("high");
+        MockFolder team = j.createFolder("team");
+        MockFolder services = team.createProject(MockFolder.class, "services");
+        WorkflowJob job = services.createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(new CpsFlowDefinition(createDocument(""), true));
+        FolderSettings settings = new FolderSettings("team");
+        settings.setPriority("LOW");
+        AzureCosmosDBGlobalConfiguration.get().setFolders(Collections.singletonList(settings));
+
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertThat(gateway.getPriorityCount("Low"), greaterThan(0L));
+        assertThat(gateway.getPriorityCount("High"), equalTo(0L));
+    }
+
+    @Test
+    void stepPriorityOverridesFolder() throws Exception {
+        MockFolder team = j.createFolder("team");
+        WorkflowJob job = team.createProject(WorkflowJob.class, "pipeline");
+        job.setDefinition(new CpsFlowDefinition(createDocument(", priority: 'high'"), true));
+        FolderSettings settings = new FolderSettings("team");
+        settings.setPriority("LOW");
+        AzureCosmosDBGlobalConfiguration.get().setFolders(Collections.singletonList(settings));
+
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertThat(gateway.getPriorityCount("High"), greaterThan(0L));
+        assertThat(gateway.getPriorityCount("Low"), equalTo(0L));
+    }
+
+    @Test
+    void configRoundTrip() throws Exception {
+        AzureCosmosDBCreateDocumentStep step =
+                new AzureCosmosDBCreateDocumentStep("cosmos-connection", "jenkins", "builds", "{}");
+        step.setPriority("low");
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBCreateDocument container: 'builds', credentialsId: 'cosmos-connection', database: 'jenkins', document: '{}', priority: 'LOW'");
+    }
+
+    private static String createDocument(String arguments) {
+        return "azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+                + "container: 'builds', document: [id: env.BUILD_TAG]" + arguments;
+    }
+}
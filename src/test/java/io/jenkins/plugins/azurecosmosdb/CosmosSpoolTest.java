@@ -0,0 +1,119 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.AbortException;
+import hudson.util.Secret;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class CosmosSpoolTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static FakeCosmosGateway gateway;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+        ContentHashCache.invalidateAll();
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+        CosmosSpool.configure(1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        CosmosSpool.configure(null);
+    }
+
+    @Test
+    void fullSpoolFailsInsteadOfGrowing() throws Exception {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode().put("id", "1").put("data", "x".repeat(600 * 1024));
+
+        spool(document, false);
+        AbortException exception = assertThrows(AbortException.class, () -> spool(document, false));
+
+        assertThat(exception.getMessage(), containsString("full at 1 MB"));
+        assertThat(CosmosSpool.pending(), hasSize(1));
+    }
+
+    @Test
+    void replayedUnchangedDocumentIsNotWrittenAgain() throws Exception {
+        ObjectNode document = OBJECT_MAPPER.createObjectNode().put("id", "1").put("count", 1);
+        spool(document, true);
+        CosmosSpool.replay();
+        JsonNode stored = gateway.documents("jenkins", "builds").get(0);
+        assertThat(stored.path(ContentHashCache.PROPERTY).asText(), not(equalTo("")));
+
+        // the hash is read back from the stored document
+        ContentHashCache.invalidateAll();
+        spool(document, true);
+        CosmosSpool.replay();
+
+        assertThat(CosmosSpool.pending(), hasSize(0));
+        assertThat(gateway.documents("jenkins", "builds").get(0).path("_etag"), equalTo(stored.path("_etag")));
+    }
+
+    @Test
+    void unreadableWriteIsMovedAsideWithoutHoldingUpLaterOnes() throws Exception {
+        Path directory = CosmosSpool.getDirectory().toPath();
+        Files.createDirectories(directory);
+        // sorts before the spooled write, as one cut short by a crash would
+        Files.writeString(directory.resolve("0-truncated.json"), "{\"account\": \"", StandardCharsets.UTF_8);
+        spool(OBJECT_MAPPER.createObjectNode().put("id", "1"), false);
+
+        CosmosSpool.replay();
+
+        assertThat(CosmosSpool.pending(), hasSize(0));
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+        assertThat(Files.exists(directory.resolve("failed").resolve("0-truncated.json")), equalTo(true));
+    }
+
+    private static void spool(ObjectNode document, boolean skipIfUnchanged) throws Exception {
+        CosmosSpool.spool(
+                gateway.getUrl(),
+                "cosmos-connection",
+                null,
+                "jenkins",
+                "builds",
+                document.deepCopy(),
+                null,
+                null,
+                skipIfUnchanged);
+    }
+}
@@ -0,0 +1,162 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.model.Result;
+import hudson.util.Secret;
+import io.jenkins.plugins.azurecosmosdb.AzureCosmosDBGlobalConfiguration.CircuitBreakerAction;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/** Runs steps against a gateway that stops answering, to check the requests are let go of. */
+@WithJenkins
+class CosmosStepExecutionTest {
+
+    private static final Duration NEVER = Duration.ofMinutes(10);
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) throws Exception {
+        j = rule;
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+
+        // the client and container are looked up while the gateway still answers
+        WorkflowJob warmUp = j.createProject(WorkflowJob.class, "warm-up");
+        warmUp.setDefinition(new CpsFlowDefinition(createDocument("warm-up", ""), true));
+        j.assertBuildStatusSuccess(warmUp.scheduleBuild2(0));
+    }
+
+    @AfterEach
+    void tearDown() {
+        gateway.setLatency(Duration.ZERO);
+    }
+
+    @Test
+    void timeoutFailsTheStepAndFreesTheThread() throws Exception {
+        gateway.setLatency(NEVER);
+        WorkflowJob job = j.createProject(WorkflowJob.class, "timeout");
+        job.setDefinition(new CpsFlowDefinition(createDocument("slow", ", timeout: 2"), true));
+
+        long started = System.nanoTime();
+        j.buildAndAssertStatus(Result.FAILURE, job);
+
+        assertThat(Duration.ofNanos(System.nanoTime() - started), lessThan(Duration.ofSeconds(30)));
+        awaitNoRunningSteps();
+    }
+
+    @Test
+    void timedOutStepsOpenTheCircuitBreaker() throws Exception {
+        CosmosCircuitBreaker.configure(CircuitBreakerAction.FAIL, null, null);
+        try {
+            gateway.setLatency(NEVER);
+            StringBuilder branches = new StringBuilder("parallel(");
+            for (int i = 0; i < CosmosCircuitBreaker.MIN_REQUESTS; i++) {
+                branches.append("slow")
+                        .append(i)
+                        .append(": { ")
+                        .append(createDocument("slow" + i, ", timeout: 1"))
+                        .append(" }, ");
+            }
+            WorkflowJob job = j.createProject(WorkflowJob.class, "timeouts");
+            job.setDefinition(new CpsFlowDefinition(branches.append("failFast: false)").toString(), true));
+
+            j.buildAndAssertStatus(Result.FAILURE, job);
+
+            assertThat(
+                    CosmosCircuitBreaker.forAccount(gateway.getUrl()).getState(),
+                    equalTo(CosmosCircuitBreaker.State.OPEN));
+            awaitNoRunningSteps();
+        } finally {
+            CosmosCircuitBreaker.configure(null, null, null);
+        }
+    }
+
+    @Test
+    void finishedStepIsNotTimedOutLater() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "fast");
+        job.setDefinition(new CpsFlowDefinition(createDocument("fast", ", timeout: 1") + "\nsleep 3", true));
+
+        WorkflowRun run = j.buildAndAssertSuccess(job);
+
+        j.assertLogNotContains("did not finish within", run);
+    }
+
+    @Test
+    void abortFreesTheThread() throws Exception {
+        gateway.setLatency(NEVER);
+        WorkflowJob job = j.createProject(WorkflowJob.class, "abort");
+        job.setDefinition(new CpsFlowDefinition(createDocument("slow", ""), true));
+
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (CosmosStepExecutor.get().getRunning() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(CosmosStepExecutor.get().getRunning(), equalTo(1));
+
+        run.doStop();
+
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(run));
+        awaitNoRunningSteps();
+    }
+
+    @Test
+    void configRoundTrip() throws Exception {
+        AzureCosmosDBCreateDocumentStep step =
+                new AzureCosmosDBCreateDocumentStep("cosmos-connection", "jenkins", "builds", "{}");
+        step.setTimeout(30);
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "azureCosmosDBCreateDocument container: 'builds', credentialsId: 'cosmos-connection', database: 'jenkins', document: '{}', timeout: 30");
+    }
+
+    private static String createDocument(String id, String arguments) {
+        return "azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+                + "container: 'builds', document: [id: '" + id + "']" + arguments;
+    }
+
+    private static void awaitNoRunningSteps() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (CosmosStepExecutor.get().getRunning() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(CosmosStepExecutor.get().getRunning(), equalTo(0));
+    }
+}
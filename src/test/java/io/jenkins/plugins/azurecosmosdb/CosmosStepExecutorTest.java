@@ -0,0 +1,138 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class CosmosStepExecutorTest {
+
+    private final ExecutorService backend = Executors.newCachedThreadPool();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @AfterEach
+    void tearDown() {
+        backend.shutdownNow();
+    }
+
+    @Test
+    void limitsConcurrencyPerAccount() throws Exception {
+        CosmosStepExecutor executor = new CosmosStepExecutor(10, 2, backend, registry);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+
+        Future<?>[] futures = new Future<?>[6];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = executor.submit("account", "job-" + i, () -> {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                await(release);
+                active.decrementAndGet();
+            });
+        }
+
+        assertThat(executor.getRunning(), equalTo(2));
+        assertThat(executor.getQueued(), equalTo(4));
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(maxActive.get(), equalTo(2));
+    }
+
+    @Test
+    void otherAccountsAreNotHeldUp() throws Exception {
+        CosmosStepExecutor executor = new CosmosStepExecutor(10, 1, backend, registry);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<?> slow = executor.submit("slow", "job", () -> await(release));
+        executor.submit("slow", "job", () -> {});
+        Future<?> other = executor.submit("other", "job", () -> {});
+
+        other.get(10, TimeUnit.SECONDS);
+        release.countDown();
+        slow.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void jobsTakeTurns() throws Exception {
+        CosmosStepExecutor executor = new CosmosStepExecutor(1, 1, backend, registry);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        executor.submit("account", "busy", () -> await(release));
+        for (int i = 0; i < 3; i++) {
+            String name = "busy-" + i;
+            executor.submit("account", "busy", () -> order.add(name));
+        }
+        Future<?> quiet = executor.submit("account", "quiet", () -> order.add("quiet"));
+
+        release.countDown();
+        quiet.get(10, TimeUnit.SECONDS);
+        assertThat(order.get(0), equalTo("busy-0"));
+        assertThat(order.get(1), equalTo("quiet"));
+    }
+
+    @Test
+    void cancellingQueuedTaskRemovesIt() throws Exception {
+        CosmosStepExecutor executor = new CosmosStepExecutor(1, 1, backend, registry);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> ran = new CopyOnWriteArrayList<>();
+
+        Future<?> blocking = executor.submit("account", "job", () -> await(release));
+        Future<?> queued = executor.submit("account", "job", () -> ran.add("cancelled"));
+        Future<?> last = executor.submit("account", "job", () -> ran.add("last"));
+
+        assertThat(queued.cancel(true), is(true));
+        assertThat(executor.getQueued(), equalTo(1));
+        release.countDown();
+        blocking.get(10, TimeUnit.SECONDS);
+        last.get(10, TimeUnit.SECONDS);
+        assertThat(ran, contains("last"));
+    }
+
+    @Test
+    void raisingLimitsStartsWaitingTasks() throws Exception {
+        CosmosStepExecutor executor = new CosmosStepExecutor(1, 1, backend, registry);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.submit("account", "job", () -> await(release));
+        Future<?> waiting = executor.submit("account", "job", () -> {});
+        assertThat(executor.getQueued(), equalTo(1));
+
+        executor.setLimits(2, 2);
+
+        waiting.get(10, TimeUnit.SECONDS);
+        release.countDown();
+    }
+
+    @Test
+    void publishesQueueMetrics() throws Exception {
+        CosmosStepExecutor executor = new CosmosStepExecutor(1, 1, backend, registry);
+
+        executor.submit("account", "job", () -> {}).get(10, TimeUnit.SECONDS);
+
+        assertThat(registry.get("azure-cosmosdb.executor.wait").timer().count(), equalTo(1L));
+        assertThat(registry.get("azure-cosmosdb.executor.queue.depth").gauge().value(), equalTo(0.0));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
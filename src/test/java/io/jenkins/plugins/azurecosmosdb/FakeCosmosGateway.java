@@ -0,0 +1,1056 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * In-process stand-in for the Cosmos DB gateway, implements enough of the REST protocol for the SDK in gateway mode
+ * to read account metadata, create, upsert, read, replace, patch and delete documents, run simple queries and execute
+ * transactional batches and bulk requests.
+ *
+ * <p>Latency, throttling and partition splits can be injected to exercise the SDK's retry paths. Containers are
+ * created on first use, partitioned on {@code /id} unless {@link #createContainer(String, String, String)} says
+ * otherwise.
+ *
+ * <p>It is a test double, not an emulator: queries only support {@code SELECT} lists of properties or {@code *} with
+ * {@code AND}ed comparisons against literals or parameters, and documents are not redistributed by hash after a split,
+ * the first child range serves all of them.
+ */
+class FakeCosmosGateway implements AutoCloseable {
+
+    /** The Cosmos DB emulator's well known key, requests signed with any other key are rejected. */
+    static final String KEY =
+            "C2y6yDjf5/R+ob0N8A7Cgv30VRDJIWEHLM+4QDU5DE2nQ9nDuVTqobD4b8mGGyPMbIZnqyMsEcaGQy67XIw/Jw==";
+
+    static final String REGION = "UK South";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private static final Pattern QUERY = Pattern.compile(
+            "^\\s*SELECT\\s+(.+?)\\s+FROM\\s+(\\w+)(?:\\s+WHERE\\s+(.+?))?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern CONDITION =
+            Pattern.compile("^\\s*(\\w+)((?:\\.\\w+)+)\\s*(=|!=|<>|<=|>=|<|>)\\s*(.+?)\\s*$", Pattern.DOTALL);
+    private static final Pattern AND = Pattern.compile("\\s+AND\\s+", Pattern.CASE_INSENSITIVE);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String url;
+
+    private final Map<String, FakeDatabase> databases = new ConcurrentHashMap<>();
+    private final AtomicInteger ridSequence = new AtomicInteger();
+    private final AtomicLong documentSequence = new AtomicLong();
+
+    private volatile Duration latency = Duration.ZERO;
+    private volatile Duration retryAfter = Duration.ofMillis(10);
+    private final AtomicInteger throttleNext = new AtomicInteger();
+    private final AtomicInteger conflictNext = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final Map<String, Long> priorities = new ConcurrentHashMap<>();
+
+    private FakeCosmosGateway(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+        this.url = "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    static FakeCosmosGateway start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "Fake Cosmos DB gateway"));
+        server.setExecutor(executor);
+        FakeCosmosGateway gateway = new FakeCosmosGateway(server, executor);
+        server.createContext("/", gateway::handle);
+        server.start();
+        return gateway;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    /** Delay added to every response. */
+    void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /** Answers the next {@code count} document requests with 429 and the given retry after. */
+    void throttleNext(int count, Duration retryAfter) {
+        this.retryAfter = retryAfter;
+        throttleNext.set(count);
+    }
+
+    /** Answers the next {@code count} conditional writes with 412, as if another writer got there first. */
+    void conflictNext(int count) {
+        conflictNext.set(count);
+    }
+
+    /**
+     * Splits every partition key range of the container in two, requests the SDK still routes to the old ranges get
+     * 410 with sub status 1002 until it refreshes its routing map.
+     */
+    void split(String database, String container) {
+        containerByName(database, container).split();
+    }
+
+    void createContainer(String database, String container, String partitionKeyPath) {
+        FakeDatabase db = databases.computeIfAbsent(database, FakeDatabase::new);
+        db.containers.computeIfAbsent(container, name -> new FakeContainer(db, name, partitionKeyPath));
+    }
+
+    int documentCount(String database, String container) {
+        return containerByName(database, container).documents.size();
+    }
+
+    /** The stored documents of a container, system properties included. */
+    List<JsonNode> documents(String database, String container) {
+        List<JsonNode> result = new ArrayList<>();
+        FakeContainer fake = containerByName(database, container);
+        synchronized (fake) {
+            fake.documents.values().forEach(stored -> result.add(stored.document));
+        }
+        return result;
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /** Requests sent with the priority level header, e.g. {@code Low}. */
+    long getPriorityCount(String priorityLevel) {
+        return priorities.getOrDefault(priorityLevel, 0L);
+    }
+
+    /** Drops every database, keeping injected latency and throttling. */
+    void reset() {
+        databases.clear();
+        priorities.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private FakeContainer containerByName(String database, String container) {
+        createContainer(database, container, "/id");
+        return databases.get(database).containers.get(container);
+    }
+
+    private String nextRid(byte[] prefix, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length).put(prefix);
+        if (prefix.length > 0) {
+            // collections are told apart from users by the high bit
+            buffer.putInt(0x80000000 | ridSequence.incrementAndGet());
+        } else {
+            buffer.putInt(ridSequence.incrementAndGet());
+        }
+        return encodeRid(buffer.array());
+    }
+
+    private static String encodeRid(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes).replace('/', '-');
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String priorityLevel = exchange.getRequestHeaders().getFirst("x-ms-cosmos-priority-level");
+        if (priorityLevel != null) {
+            priorities.merge(priorityLevel, 1L, Long::sum);
+        }
+        try {
+            sleep(latency);
+            route(exchange);
+        } catch (RuntimeException e) {
+            error(exchange, 500, "InternalServerError", e.toString(), 0);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+
+        if (!authorized(exchange, method, segments)) {
+            error(exchange, 401, "Unauthorized", "The input authorization token can't serve the request", 0);
+            return;
+        }
+        if (segments.isEmpty() && "GET".equals(method)) {
+            respond(exchange, 200, databaseAccount(), Collections.emptyMap());
+            return;
+        }
+        if (segments.size() < 2 || !"dbs".equals(segments.get(0))) {
+            error(exchange, 404, "NotFound", "Unknown resource " + path, 0);
+            return;
+        }
+        FakeDatabase database = database(segments.get(1));
+        if (segments.size() == 2) {
+            respond(exchange, 200, database.toJson(), Collections.emptyMap());
+            return;
+        }
+        if (segments.size() < 4 || !"colls".equals(segments.get(2))) {
+            error(exchange, 404, "NotFound", "Unknown resource " + path, 0);
+            return;
+        }
+        FakeContainer container = database.container(segments.get(3));
+        if (segments.size() == 4) {
+            respond(exchange, 200, container.toJson(), container.contentHeaders());
+            return;
+        }
+        String feed = segments.get(4);
+        if ("pkranges".equals(feed)) {
+            container.readRanges(exchange);
+            return;
+        }
+        if (!"docs".equals(feed)) {
+            error(exchange, 404, "NotFound", "Unknown resource " + path, 0);
+            return;
+        }
+        if (throttle(exchange)) {
+            return;
+        }
+        if (segments.size() == 5 && "POST".equals(method)) {
+            container.post(exchange);
+        } else if (segments.size() == 6) {
+            container.document(exchange, method, segments.get(5));
+        } else {
+            error(exchange, 405, "MethodNotAllowed", method + " " + path, 0);
+        }
+    }
+
+    private FakeDatabase database(String nameOrRid) {
+        for (FakeDatabase database : databases.values()) {
+            if (database.rid.equals(nameOrRid)) {
+                return database;
+            }
+        }
+        return databases.computeIfAbsent(nameOrRid, FakeDatabase::new);
+    }
+
+    private boolean throttle(HttpExchange exchange) throws IOException {
+        if (throttleNext.getAndUpdate(n -> Math.max(0, n - 1)) <= 0) {
+            return false;
+        }
+        throttled.incrementAndGet();
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-retry-after-ms", String.valueOf(retryAfter.toMillis()));
+        headers.put("x-ms-substatus", "3200");
+        ObjectNode body = NODES.objectNode().put("code", "TooManyRequests").put("message", "Request rate is large");
+        respond(exchange, 429, body, headers);
+        return true;
+    }
+
+    /**
+     * Checks the master key signature of a request. Paths with an even number of segments address a resource, which
+     * is signed with its own link, the others a feed, which is signed with the link of its parent.
+     */
+    private static boolean authorized(HttpExchange exchange, String method, List<String> segments) {
+        String authorization = exchange.getRequestHeaders().getFirst("authorization");
+        if (authorization == null) {
+            return false;
+        }
+        Map<String, String> parts = new LinkedHashMap<>();
+        for (String part : URLDecoder.decode(authorization, StandardCharsets.UTF_8).split("&")) {
+            int index = part.indexOf('=');
+            if (index > 0) {
+                parts.put(part.substring(0, index), part.substring(index + 1));
+            }
+        }
+        if (!"master".equals(parts.get("type"))) {
+            // AAD tokens aren't validated
+            return true;
+        }
+        String resourceType = "";
+        String resourceLink = "";
+        if (!segments.isEmpty()) {
+            boolean feed = segments.size() % 2 == 1;
+            resourceType = segments.get(segments.size() - (feed ? 1 : 2));
+            resourceLink = String.join("/", feed ? segments.subList(0, segments.size() - 1) : segments);
+        }
+        String date = exchange.getRequestHeaders().getFirst("x-ms-date");
+        String stringToSign = method.toLowerCase(Locale.ROOT) + "\n" + resourceType.toLowerCase(Locale.ROOT) + "\n"
+                + resourceLink + "\n" + (date == null ? "" : date.toLowerCase(Locale.ROOT)) + "\n\n";
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(Base64.getDecoder().decode(KEY), "HmacSHA256"));
+            String expected = Base64.getEncoder()
+                    .encodeToString(mac.doFinal(stringToSign.getBytes(StandardCharsets.UTF_8)));
+            return expected.equals(parts.get("sig"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ObjectNode databaseAccount() {
+        ObjectNode account = NODES.objectNode()
+                .put("_self", "")
+                .put("id", "fake")
+                .put("_rid", "fake.documents.azure.com")
+                .put("media", "//media/")
+                .put("addresses", "//addresses/")
+                .put("_dbs", "//dbs/")
+                .put("enableMultipleWriteLocations", false);
+        ObjectNode location = NODES.objectNode().put("name", REGION).put("databaseAccountEndpoint", url);
+        account.putArray("writableLocations").add(location);
+        account.putArray("readableLocations").add(location.deepCopy());
+        account.putObject("userReplicationPolicy")
+                .put("asyncReplication", false)
+                .put("minReplicaSetSize", 1)
+                .put("maxReplicasetSize", 4);
+        account.putObject("userConsistencyPolicy").put("defaultConsistencyLevel", "Session");
+        account.putObject("systemReplicationPolicy")
+                .put("minReplicaSetSize", 1)
+                .put("maxReplicasetSize", 4);
+        account.putObject("readPolicy").put("primaryReadCoefficient", 1).put("secondaryReadCoefficient", 1);
+        account.put(
+                "queryEngineConfiguration",
+                "{\"maxSqlQueryInputLength\":262144,\"maxJoinsPerSqlQuery\":5,\"maxLogicalAndPerSqlQuery\":500,"
+                        + "\"maxLogicalOrPerSqlQuery\":500,\"maxUdfRefPerSqlQuery\":10,"
+                        + "\"maxInExpressionItemsCount\":16000,"
+                        + "\"queryMaxInMemorySortDocumentCount\":500,\"maxQueryRequestTimeoutFraction\":0.9,"
+                        + "\"sqlAllowNonFiniteNumbers\":false,\"sqlAllowAggregateFunctions\":true,"
+                        + "\"sqlAllowSubQuery\":true,\"sqlAllowScalarSubQuery\":true,\"allowNewKeywords\":true,"
+                        + "\"sqlAllowLike\":true,\"sqlAllowGroupByClause\":true,\"maxSpatialQueryCells\":12,"
+                        + "\"spatialMaxGeometryPointCount\":256,\"sqlDisableOptimizationFlags\":0,"
+                        + "\"sqlAllowTop\":true,\"enableSpatialIndexing\":true}");
+        return account;
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonNode body, Map<String, String> headers)
+            throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("Content-Type", "application/json");
+        responseHeaders.set("x-ms-request-charge", headers.getOrDefault("x-ms-request-charge", "1.0"));
+        String activityId = exchange.getRequestHeaders().getFirst("x-ms-activity-id");
+        responseHeaders.set("x-ms-activity-id", activityId == null ? UUID.randomUUID().toString() : activityId);
+        responseHeaders.set("x-ms-gatewayversion", "version=2.14.0");
+        responseHeaders.set("x-ms-serviceversion", "version=2.14.0.0");
+        responseHeaders.set("x-ms-schemaversion", "1.16");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            responseHeaders.set(header.getKey(), header.getValue());
+        }
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = MAPPER.writeValueAsBytes(body);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void error(HttpExchange exchange, int status, String code, String message, int subStatus)
+            throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("x-ms-substatus", String.valueOf(subStatus));
+        respond(exchange, status, NODES.objectNode().put("code", code).put("message", message), headers);
+    }
+
+    private static JsonNode readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] bytes = in.readAllBytes();
+            return bytes.length == 0 ? NODES.objectNode() : MAPPER.readTree(bytes);
+        }
+    }
+
+    private static boolean header(HttpExchange exchange, String name) {
+        return "true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst(name));
+    }
+
+    /** Partition key values as JSON, re-serialised so that equal keys compare equal whatever their formatting. */
+    private static String normalizePartitionKey(String partitionKey) throws IOException {
+        if (partitionKey == null) {
+            return null;
+        }
+        return MAPPER.writeValueAsString(MAPPER.readTree(partitionKey));
+    }
+
+    private static void sleep(Duration duration) {
+        if (duration.isZero()) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class FakeDatabase {
+
+        private final String id;
+        private final String rid;
+        private final byte[] ridBytes;
+        private final Map<String, FakeContainer> containers = new ConcurrentHashMap<>();
+
+        FakeDatabase(String id) {
+            this.id = id;
+            this.rid = nextRid(new byte[0], 4);
+            this.ridBytes = Base64.getDecoder().decode(rid.replace('-', '/'));
+        }
+
+        FakeContainer container(String nameOrRid) {
+            for (FakeContainer container : containers.values()) {
+                if (container.rid.equals(nameOrRid)) {
+                    return container;
+                }
+            }
+            return containers.computeIfAbsent(nameOrRid, name -> new FakeContainer(this, name, "/id"));
+        }
+
+        ObjectNode toJson() {
+            return NODES.objectNode()
+                    .put("id", id)
+                    .put("_rid", rid)
+                    .put("_self", "dbs/" + rid + "/")
+                    .put("_etag", "\"" + rid + "\"")
+                    .put("_colls", "colls/")
+                    .put("_users", "users/")
+                    .put("_ts", Instant.now().getEpochSecond());
+        }
+    }
+
+    private static class StoredDocument {
+
+        private final String partitionKey;
+        private final ObjectNode document;
+
+        StoredDocument(String partitionKey, ObjectNode document) {
+            this.partitionKey = partitionKey;
+            this.document = document;
+        }
+    }
+
+    /** Outcome of a single document operation, shared by the REST handlers and batches. */
+    private static class Outcome {
+
+        private final int status;
+        private final ObjectNode document;
+        private final String message;
+
+        Outcome(int status, ObjectNode document, String message) {
+            this.status = status;
+            this.document = document;
+            this.message = message;
+        }
+
+        static Outcome of(int status, ObjectNode document) {
+            return new Outcome(status, document, null);
+        }
+
+        static Outcome failure(int status, String message) {
+            return new Outcome(status, null, message);
+        }
+
+        boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    private class FakeContainer {
+
+        private final FakeDatabase database;
+        private final String id;
+        private final String rid;
+        private final String partitionKeyPath;
+        // keyed by partition key then id, iteration follows insertion order like a single partition would
+        private final Map<String, StoredDocument> documents = Collections.synchronizedMap(new LinkedHashMap<>());
+        private volatile List<ObjectNode> ranges;
+        private final AtomicInteger rangeSequence = new AtomicInteger();
+        private volatile String rangesEtag;
+
+        FakeContainer(FakeDatabase database, String id, String partitionKeyPath) {
+            this.database = database;
+            this.id = id;
+            this.partitionKeyPath = partitionKeyPath;
+            this.rid = nextRid(database.ridBytes, 8);
+            this.ranges = Collections.singletonList(range("", "FF", Collections.emptyList()));
+            this.rangesEtag = String.valueOf(rangeSequence.get());
+        }
+
+        private ObjectNode range(String min, String max, List<String> parents) {
+            String rangeId = String.valueOf(rangeSequence.getAndIncrement());
+            ObjectNode range = NODES.objectNode()
+                    .put("id", rangeId)
+                    .put("_rid", rid)
+                    .put("_etag", "\"" + rangeId + "\"")
+                    .put("minInclusive", min)
+                    .put("maxExclusive", max)
+                    .put("ridPrefix", Integer.parseInt(rangeId))
+                    .put("throughputFraction", 1.0)
+                    .put("status", "online")
+                    .put("_ts", Instant.now().getEpochSecond());
+            ArrayNode parentIds = range.putArray("parents");
+            parents.forEach(parentIds::add);
+            return range;
+        }
+
+        synchronized void split() {
+            List<ObjectNode> children = new ArrayList<>();
+            for (ObjectNode range : ranges) {
+                String min = range.path("minInclusive").asText();
+                String max = range.path("maxExclusive").asText();
+                int low = min.isEmpty() ? 0 : Integer.parseInt(min, 16);
+                int high = Integer.parseInt(max, 16);
+                String middle = String.format("%02X", (low + high) / 2);
+                List<String> parents = new ArrayList<>();
+                range.path("parents").forEach(parent -> parents.add(parent.asText()));
+                parents.add(range.path("id").asText());
+                children.add(range(min, middle, parents));
+                children.add(range(middle, max, parents));
+            }
+            ranges = children;
+            rangesEtag = String.valueOf(rangeSequence.get());
+        }
+
+        Map<String, String> contentHeaders() {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("x-ms-alt-content-path", "dbs/" + database.id);
+            headers.put("x-ms-content-path", database.rid);
+            return headers;
+        }
+
+        ObjectNode toJson() {
+            ObjectNode collection = NODES.objectNode()
+                    .put("id", id)
+                    .put("_rid", rid)
+                    .put("_self", "dbs/" + database.rid + "/colls/" + rid + "/")
+                    .put("_etag", "\"" + rid + "\"")
+                    .put("_docs", "docs/")
+                    .put("_sprocs", "sprocs/")
+                    .put("_triggers", "triggers/")
+                    .put("_udfs", "udfs/")
+                    .put("_conflicts", "conflicts/")
+                    .put("_ts", Instant.now().getEpochSecond());
+            ObjectNode partitionKey = collection.putObject("partitionKey");
+            partitionKey.putArray("paths").add(partitionKeyPath);
+            partitionKey.put("kind", "Hash").put("version", 2);
+            collection.putObject("indexingPolicy").put("indexingMode", "consistent").put("automatic", true);
+            collection.putObject("conflictResolutionPolicy")
+                    .put("mode", "LastWriterWins")
+                    .put("conflictResolutionPath", "/_ts");
+            return collection;
+        }
+
+        void readRanges(HttpExchange exchange) throws IOException {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String etag = rangesEtag;
+            List<ObjectNode> current = ranges;
+            ObjectNode body = NODES.objectNode().put("_rid", rid);
+            ArrayNode results = body.putArray("PartitionKeyRanges");
+            // the SDK reads ranges as a change feed, an unchanged feed has nothing new to return
+            if (!etag.equals(ifNoneMatch)) {
+                current.forEach(results::add);
+            }
+            body.put("_count", results.size());
+            Map<String, String> headers = new LinkedHashMap<>(contentHeaders());
+            headers.put("etag", etag);
+            headers.put("x-ms-item-count", String.valueOf(results.size()));
+            respond(exchange, 200, body, headers);
+        }
+
+        /** A request the SDK routed to a range that has since been split. */
+        private boolean rangeGone(HttpExchange exchange) throws IOException {
+            String rangeId = targetRange(exchange);
+            if (rangeId == null) {
+                return false;
+            }
+            for (ObjectNode range : ranges) {
+                if (range.path("id").asText().equals(rangeId)) {
+                    return false;
+                }
+            }
+            error(exchange, 410, "Gone", "Partition key range " + rangeId + " is gone", 1002);
+            return true;
+        }
+
+        private String targetRange(HttpExchange exchange) {
+            String header = exchange.getRequestHeaders().getFirst("x-ms-documentdb-partitionkeyrangeid");
+            if (header == null) {
+                return null;
+            }
+            // may be prefixed with the collection rid
+            return header.substring(header.lastIndexOf(',') + 1);
+        }
+
+        void post(HttpExchange exchange) throws IOException {
+            if (header(exchange, "x-ms-cosmos-is-query-plan-request")) {
+                respond(exchange, 200, queryPlan(), Collections.emptyMap());
+            } else if (header(exchange, "x-ms-documentdb-isquery")
+                    || "application/query+json"
+                            .equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                if (!rangeGone(exchange)) {
+                    query(exchange);
+                }
+            } else if (header(exchange, "x-ms-cosmos-is-batch-request")) {
+                if (!rangeGone(exchange)) {
+                    batch(exchange);
+                }
+            } else {
+                String partitionKey = normalizePartitionKey(
+                        exchange.getRequestHeaders().getFirst("x-ms-documentdb-partitionkey"));
+                ObjectNode document = (ObjectNode) readBody(exchange);
+                boolean upsert = header(exchange, "x-ms-documentdb-is-upsert");
+                respond(exchange, upsert ? upsert(partitionKey, document) : create(partitionKey, document));
+            }
+        }
+
+        void document(HttpExchange exchange, String method, String documentId) throws IOException {
+            String partitionKey =
+                    normalizePartitionKey(exchange.getRequestHeaders().getFirst("x-ms-documentdb-partitionkey"));
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            switch (method) {
+                case "GET":
+                    respond(exchange, read(partitionKey, documentId));
+                    break;
+                case "PUT":
+                    respond(exchange, replace(partitionKey, documentId, (ObjectNode) readBody(exchange), ifMatch));
+                    break;
+                case "PATCH":
+                    respond(exchange, patch(partitionKey, documentId, readBody(exchange), ifMatch));
+                    break;
+                case "DELETE":
+                    respond(exchange, delete(partitionKey, documentId, ifMatch));
+                    break;
+                default:
+                    error(exchange, 405, "MethodNotAllowed", method, 0);
+            }
+        }
+
+        private void respond(HttpExchange exchange, Outcome outcome) throws IOException {
+            if (!outcome.isSuccess()) {
+                error(exchange, outcome.status, "Error", outcome.message, 0);
+                return;
+            }
+            Map<String, String> headers = new LinkedHashMap<>(contentHeaders());
+            if (outcome.document != null) {
+                headers.put("etag", outcome.document.path("_etag").asText());
+            }
+            FakeCosmosGateway.this.respond(exchange, outcome.status, outcome.document, headers);
+        }
+
+        private String key(String partitionKey, String documentId) {
+            return partitionKey + "|" + documentId;
+        }
+
+        private ObjectNode stamp(ObjectNode document) {
+            ObjectNode stored = document.deepCopy();
+            ByteBuffer buffer = ByteBuffer.allocate(16)
+                    .put(Base64.getDecoder().decode(rid.replace('-', '/')))
+                    .putLong(documentSequence.incrementAndGet() << 8);
+            String documentRid = encodeRid(buffer.array());
+            stored.put("_rid", documentRid);
+            stored.put("_self", "dbs/" + database.rid + "/colls/" + rid + "/docs/" + documentRid + "/");
+            stored.put("_etag", "\"" + UUID.randomUUID() + "\"");
+            stored.put("_attachments", "attachments/");
+            stored.put("_ts", Instant.now().getEpochSecond());
+            return stored;
+        }
+
+        private String partitionKeyOf(String partitionKey, ObjectNode document) throws IOException {
+            if (partitionKey != null) {
+                return partitionKey;
+            }
+            JsonNode value = document.at(partitionKeyPath);
+            return MAPPER.writeValueAsString(NODES.arrayNode().add(value.isMissingNode() ? NODES.objectNode() : value));
+        }
+
+        synchronized Outcome create(String partitionKey, ObjectNode document) throws IOException {
+            String documentId = document.path("id").asText(null);
+            if (documentId == null) {
+                return Outcome.failure(400, "The required property, id, is missing");
+            }
+            String key = key(partitionKeyOf(partitionKey, document), documentId);
+            if (documents.containsKey(key)) {
+                return Outcome.failure(409, "Entity with the specified id already exists in the system");
+            }
+            ObjectNode stored = stamp(document);
+            documents.put(key, new StoredDocument(partitionKeyOf(partitionKey, document), stored));
+            return Outcome.of(201, stored);
+        }
+
+        synchronized Outcome upsert(String partitionKey, ObjectNode document) throws IOException {
+            String documentId = document.path("id").asText(null);
+            if (documentId == null) {
+                return Outcome.failure(400, "The required property, id, is missing");
+            }
+            String resolved = partitionKeyOf(partitionKey, document);
+            ObjectNode stored = stamp(document);
+            StoredDocument previous = documents.put(key(resolved, documentId), new StoredDocument(resolved, stored));
+            return Outcome.of(previous == null ? 201 : 200, stored);
+        }
+
+        synchronized Outcome read(String partitionKey, String documentId) {
+            StoredDocument stored = documents.get(key(partitionKey, documentId));
+            if (stored == null) {
+                return Outcome.failure(404, "Entity with the specified id does not exist in the system");
+            }
+            return Outcome.of(200, stored.document);
+        }
+
+        synchronized Outcome replace(String partitionKey, String documentId, ObjectNode document, String ifMatch)
+                throws IOException {
+            String resolved = partitionKeyOf(partitionKey, document);
+            Outcome check = precondition(resolved, documentId, ifMatch);
+            if (check != null) {
+                return check;
+            }
+            ObjectNode stored = stamp(document);
+            documents.put(key(resolved, documentId), new StoredDocument(resolved, stored));
+            return Outcome.of(200, stored);
+        }
+
+        synchronized Outcome patch(String partitionKey, String documentId, JsonNode body, String ifMatch) {
+            Outcome check = precondition(partitionKey, documentId, ifMatch);
+            if (check != null) {
+                return check;
+            }
+            ObjectNode document = documents.get(key(partitionKey, documentId)).document.deepCopy();
+            for (JsonNode operation : body.path("operations")) {
+                String path = operation.path("path").asText();
+                int index = path.lastIndexOf('/');
+                JsonNode parent = index <= 0 ? document : document.at(path.substring(0, index));
+                if (!(parent instanceof ObjectNode)) {
+                    return Outcome.failure(400, "Patch path " + path + " has no parent object");
+                }
+                ObjectNode target = (ObjectNode) parent;
+                String field = path.substring(index + 1);
+                switch (operation.path("op").asText()) {
+                    case "add":
+                    case "set":
+                        target.set(field, operation.path("value"));
+                        break;
+                    case "replace":
+                        if (!target.has(field)) {
+                            return Outcome.failure(400, "Patch path " + path + " doesn't exist");
+                        }
+                        target.set(field, operation.path("value"));
+                        break;
+                    case "remove":
+                        target.remove(field);
+                        break;
+                    case "incr":
+                        JsonNode by = operation.path("value");
+                        if (by.isIntegralNumber() && target.path(field).isIntegralNumber()) {
+                            target.put(field, target.path(field).asLong() + by.asLong());
+                        } else {
+                            target.put(field, target.path(field).asDouble() + by.asDouble());
+                        }
+                        break;
+                    default:
+                        return Outcome.failure(400, "Unsupported patch operation " + operation.path("op"));
+                }
+            }
+            ObjectNode stored = stamp(document);
+            documents.put(key(partitionKey, documentId), new StoredDocument(partitionKey, stored));
+            return Outcome.of(200, stored);
+        }
+
+        synchronized Outcome delete(String partitionKey, String documentId, String ifMatch) {
+            Outcome check = precondition(partitionKey, documentId, ifMatch);
+            if (check != null) {
+                return check;
+            }
+            documents.remove(key(partitionKey, documentId));
+            return Outcome.of(204, null);
+        }
+
+        private Outcome precondition(String partitionKey, String documentId, String ifMatch) {
+            StoredDocument stored = documents.get(key(partitionKey, documentId));
+            if (stored == null) {
+                return Outcome.failure(404, "Entity with the specified id does not exist in the system");
+            }
+            boolean conflict = ifMatch != null && conflictNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+            if (conflict || ifMatch != null && !ifMatch.equals(stored.document.path("_etag").asText())) {
+                return Outcome.failure(412, "One of the specified preconditions is not met");
+            }
+            return null;
+        }
+
+        private ObjectNode queryPlan() {
+            ObjectNode plan = NODES.objectNode().put("partitionedQueryExecutionInfoVersion", 2);
+            ObjectNode queryInfo = plan.putObject("queryInfo");
+            queryInfo.put("distinctType", "None");
+            queryInfo.putNull("top");
+            queryInfo.putNull("offset");
+            queryInfo.putNull("limit");
+            queryInfo.putArray("orderBy");
+            queryInfo.putArray("orderByExpressions");
+            queryInfo.putArray("groupByExpressions");
+            queryInfo.putArray("groupByAliases");
+            queryInfo.putArray("aggregates");
+            queryInfo.putObject("groupByAliasToAggregateType");
+            queryInfo.put("rewrittenQuery", "");
+            queryInfo.put("hasSelectValue", false);
+            queryInfo.putNull("dCountInfo");
+            queryInfo.put("hasNonStreamingOrderBy", false);
+            plan.putArray("queryRanges")
+                    .addObject()
+                    .put("min", "")
+                    .put("max", "FF")
+                    .put("isMinInclusive", true)
+                    .put("isMaxInclusive", false);
+            return plan;
+        }
+
+        private void query(HttpExchange exchange) throws IOException {
+            JsonNode body = readBody(exchange);
+            Matcher matcher = QUERY.matcher(body.path("query").asText());
+            if (!matcher.matches()) {
+                error(exchange, 400, "BadRequest", "The fake gateway can't run: " + body.path("query"), 0);
+                return;
+            }
+            String projection = matcher.group(1).trim();
+            String alias = matcher.group(2);
+            List<String[]> conditions = new ArrayList<>();
+            if (matcher.group(3) != null) {
+                for (String condition : AND.split(matcher.group(3))) {
+                    Matcher conditionMatcher = CONDITION.matcher(condition);
+                    if (!conditionMatcher.matches() || !conditionMatcher.group(1).equals(alias)) {
+                        error(exchange, 400, "BadRequest", "The fake gateway can't evaluate: " + condition, 0);
+                        return;
+                    }
+                    String path = conditionMatcher.group(2).replace('.', '/');
+                    conditions.add(new String[] {path, conditionMatcher.group(3), conditionMatcher.group(4)});
+                }
+            }
+            Map<String, JsonNode> parameters = new LinkedHashMap<>();
+            for (JsonNode parameter : body.path("parameters")) {
+                parameters.put(parameter.path("name").asText(), parameter.path("value"));
+            }
+
+            // documents all live in the first range, other ranges return nothing
+            String rangeId = targetRange(exchange);
+            boolean servesDocuments =
+                    rangeId == null || ranges.get(0).path("id").asText().equals(rangeId);
+            String partitionKey =
+                    normalizePartitionKey(exchange.getRequestHeaders().getFirst("x-ms-documentdb-partitionkey"));
+
+            List<JsonNode> matches = new ArrayList<>();
+            if (servesDocuments) {
+                List<StoredDocument> snapshot;
+                synchronized (this) {
+                    snapshot = new ArrayList<>(documents.values());
+                }
+                for (StoredDocument stored : snapshot) {
+                    if (partitionKey != null && !partitionKey.equals(stored.partitionKey)) {
+                        continue;
+                    }
+                    Boolean matched = matches(stored.document, conditions, parameters);
+                    if (matched == null) {
+                        error(exchange, 400, "BadRequest", "Unknown parameter in: " + body.path("query"), 0);
+                        return;
+                    }
+                    if (matched) {
+                        matches.add(project(stored.document, projection, alias));
+                    }
+                }
+            }
+
+            String continuation = exchange.getRequestHeaders().getFirst("x-ms-continuation");
+            int offset = continuation == null ? 0 : Integer.parseInt(continuation);
+            String maxItemCountHeader = exchange.getRequestHeaders().getFirst("x-ms-max-item-count");
+            int maxItemCount = maxItemCountHeader == null ? -1 : Integer.parseInt(maxItemCountHeader);
+            int end = maxItemCount <= 0 ? matches.size() : Math.min(matches.size(), offset + maxItemCount);
+
+            ObjectNode response = NODES.objectNode().put("_rid", rid);
+            ArrayNode results = response.putArray("Documents");
+            matches.subList(Math.min(offset, end), end).forEach(results::add);
+            response.put("_count", results.size());
+            Map<String, String> headers = new LinkedHashMap<>(contentHeaders());
+            headers.put("x-ms-item-count", String.valueOf(results.size()));
+            if (end < matches.size()) {
+                headers.put("x-ms-continuation", String.valueOf(end));
+            }
+            FakeCosmosGateway.this.respond(exchange, 200, response, headers);
+        }
+
+        private Boolean matches(ObjectNode document, List<String[]> conditions, Map<String, JsonNode> parameters)
+                throws IOException {
+            for (String[] condition : conditions) {
+                JsonNode actual = document.at(condition[0]);
+                JsonNode expected;
+                if (condition[2].startsWith("@")) {
+                    expected = parameters.get(condition[2]);
+                    if (expected == null) {
+                        return null;
+                    }
+                } else {
+                    expected = MAPPER.readTree(condition[2].replaceAll("^'(.*)'$", "\"$1\""));
+                }
+                if (actual.isMissingNode() || !compare(actual, condition[1], expected)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean compare(JsonNode actual, String operator, JsonNode expected) {
+            int comparison;
+            if (actual.isNumber() && expected.isNumber()) {
+                comparison = Double.compare(actual.asDouble(), expected.asDouble());
+            } else if (actual.isTextual() && expected.isTextual()) {
+                comparison = actual.asText().compareTo(expected.asText());
+            } else {
+                boolean equal = actual.equals(expected);
+                return "=".equals(operator) ? equal : ("!=".equals(operator) || "<>".equals(operator)) && !equal;
+            }
+            switch (operator) {
+                case "=":
+                    return comparison == 0;
+                case "!=":
+                case "<>":
+                    return comparison != 0;
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+
+        private JsonNode project(ObjectNode document, String projection, String alias) {
+            if ("*".equals(projection) || alias.equals(projection)) {
+                return document;
+            }
+            ObjectNode result = NODES.objectNode();
+            for (String item : projection.split(",")) {
+                String[] parts = item.trim().split("(?i)\\s+AS\\s+");
+                String path = parts[0].trim();
+                if (path.startsWith(alias + ".")) {
+                    path = path.substring(alias.length() + 1);
+                }
+                String name = parts.length > 1 ? parts[1].trim() : path.substring(path.lastIndexOf('.') + 1);
+                JsonNode value = document.at("/" + path.replace('.', '/'));
+                if (!value.isMissingNode()) {
+                    result.set(name, value);
+                }
+            }
+            return result;
+        }
+
+        private void batch(HttpExchange exchange) throws IOException {
+            boolean atomic = header(exchange, "x-ms-cosmos-batch-atomic");
+            String batchPartitionKey =
+                    normalizePartitionKey(exchange.getRequestHeaders().getFirst("x-ms-documentdb-partitionkey"));
+            JsonNode operations = readBody(exchange);
+
+            List<Outcome> outcomes = new ArrayList<>();
+            synchronized (this) {
+                Map<String, StoredDocument> before = atomic ? new LinkedHashMap<>(documents) : null;
+                for (JsonNode operation : operations) {
+                    String partitionKey = operation.hasNonNull("partitionKey")
+                            ? normalizePartitionKey(operation.path("partitionKey").asText())
+                            : batchPartitionKey;
+                    Outcome outcome = apply(partitionKey, operation);
+                    outcomes.add(outcome);
+                    if (atomic && !outcome.isSuccess()) {
+                        documents.clear();
+                        documents.putAll(before);
+                        break;
+                    }
+                }
+            }
+
+            boolean rolledBack = atomic && outcomes.stream().anyMatch(outcome -> !outcome.isSuccess());
+            boolean failed = false;
+            ArrayNode results = NODES.arrayNode();
+            for (int i = 0; i < operations.size(); i++) {
+                Outcome outcome = i < outcomes.size() ? outcomes.get(i) : Outcome.failure(424, "Failed dependency");
+                if (rolledBack && outcome.isSuccess()) {
+                    // rolled back along with the rest of the batch
+                    outcome = Outcome.failure(424, "Failed dependency");
+                }
+                failed |= !outcome.isSuccess();
+                ObjectNode result = results.addObject()
+                        .put("statusCode", outcome.status)
+                        .put("subStatusCode", 0)
+                        .put("requestCharge", 1.0);
+                if (outcome.document != null && outcome.isSuccess()) {
+                    result.put("eTag", outcome.document.path("_etag").asText());
+                    result.set("resourceBody", outcome.document);
+                }
+            }
+            Map<String, String> headers = new LinkedHashMap<>(contentHeaders());
+            headers.put("x-ms-request-charge", String.valueOf((double) operations.size()));
+            FakeCosmosGateway.this.respond(exchange, failed ? 207 : 200, results, headers);
+        }
+
+        private Outcome apply(String partitionKey, JsonNode operation) throws IOException {
+            String documentId = operation.path("id").asText(null);
+            String ifMatch = operation.path("ifMatch").asText(null);
+            JsonNode body = operation.path("resourceBody");
+            switch (operation.path("operationType").asText()) {
+                case "Create":
+                    return create(partitionKey, (ObjectNode) body);
+                case "Upsert":
+                    return upsert(partitionKey, (ObjectNode) body);
+                case "Replace":
+                    return replace(partitionKey, documentId, (ObjectNode) body, ifMatch);
+                case "Patch":
+                    return patch(partitionKey, documentId, body, ifMatch);
+                case "Delete":
+                    return delete(partitionKey, documentId, ifMatch);
+                case "Read":
+                    return read(partitionKey, documentId);
+                default:
+                    return Outcome.failure(400, "Unsupported operation " + operation.path("operationType"));
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.azure.cosmos.CosmosClient;
+import com.azure.cosmos.CosmosClientBuilder;
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosBatchResponse;
+import com.azure.cosmos.models.CosmosBulkOperationResponse;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosItemOperation;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FakeCosmosGatewayTest {
+
+    private FakeCosmosGateway gateway;
+    private CosmosClient client;
+    private CosmosContainer container;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        gateway = FakeCosmosGateway.start();
+        gateway.createContainer("jenkins", "builds", "/tenant");
+        client = new CosmosClientBuilder()
+                .endpoint(gateway.getUrl())
+                .key(FakeCosmosGateway.KEY)
+                .gatewayMode()
+                .buildClient();
+        container = client.getDatabase("jenkins").getContainer("builds");
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        gateway.close();
+    }
+
+    @Test
+    void createsAndReadsDocuments() {
+        container.createItem(document("1", "a", 1));
+
+        ObjectNode read =
+                container.readItem("1", new PartitionKey("a"), ObjectNode.class).getItem();
+
+        assertThat(read.path("count").asInt(), equalTo(1));
+        CosmosException conflict =
+                assertThrows(CosmosException.class, () -> container.createItem(document("1", "a", 2)));
+        assertThat(conflict.getStatusCode(), equalTo(409));
+    }
+
+    @Test
+    void upsertsDocuments() {
+        assertThat(container.upsertItem(document("1", "a", 1)).getStatusCode(), equalTo(201));
+        assertThat(container.upsertItem(document("1", "a", 2)).getStatusCode(), equalTo(200));
+
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+    }
+
+    @Test
+    void rejectsWrongKey() {
+        CosmosClientBuilder builder = new CosmosClientBuilder()
+                .endpoint(gateway.getUrl())
+                .key("dGhpc2lzbm90YXBhc3N3b3JkCg==")
+                .gatewayMode();
+
+        assertThrows(RuntimeException.class, builder::buildClient);
+    }
+
+    @Test
+    void queriesDocuments() {
+        for (int i = 0; i < 5; i++) {
+            container.createItem(document(String.valueOf(i), i % 2 == 0 ? "even" : "odd", i));
+        }
+
+        SqlQuerySpec query = new SqlQuerySpec(
+                "SELECT c.id FROM c WHERE c.tenant = @tenant AND c.count > 0",
+                new SqlParameter("@tenant", "even"));
+        List<String> ids = container.queryItems(query, new CosmosQueryRequestOptions(), ObjectNode.class).stream()
+                .map(item -> item.path("id").asText())
+                .collect(Collectors.toList());
+
+        assertThat(ids, contains("2", "4"));
+    }
+
+    @Test
+    void pagesQueryResults() {
+        for (int i = 0; i < 5; i++) {
+            container.createItem(document(String.valueOf(i), "a", i));
+        }
+
+        List<Integer> pages = new ArrayList<>();
+        container.queryItems("SELECT * FROM c", new CosmosQueryRequestOptions(), ObjectNode.class)
+                .iterableByPage(2)
+                .forEach(page -> pages.add(page.getResults().size()));
+
+        assertThat(pages, contains(2, 2, 1));
+    }
+
+    @Test
+    void rollsBackFailedBatches() {
+        container.createItem(document("1", "a", 1));
+        CosmosBatch batch = CosmosBatch.createCosmosBatch(new PartitionKey("a"));
+        batch.createItemOperation(document("2", "a", 2));
+        batch.createItemOperation(document("1", "a", 1));
+
+        CosmosBatchResponse response = container.executeCosmosBatch(batch);
+
+        assertThat(response.isSuccessStatusCode(), equalTo(false));
+        assertThat(response.getResults().get(0).getStatusCode(), equalTo(424));
+        assertThat(response.getResults().get(1).getStatusCode(), equalTo(409));
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+    }
+
+    @Test
+    void executesBulkOperations() {
+        List<CosmosItemOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            operations.add(CosmosBulkOperations.getCreateItemOperation(
+                    document(String.valueOf(i), "t" + i % 3, i), new PartitionKey("t" + i % 3)));
+        }
+
+        List<Integer> statuses = new ArrayList<>();
+        for (CosmosBulkOperationResponse<Object> response : container.executeBulkOperations(operations)) {
+            statuses.add(response.getResponse().getStatusCode());
+        }
+
+        assertThat(statuses, hasSize(20));
+        assertThat(statuses.stream().distinct().collect(Collectors.toList()), contains(201));
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(20));
+    }
+
+    @Test
+    void retriesThrottledRequests() {
+        gateway.throttleNext(2, Duration.ofMillis(5));
+
+        container.createItem(document("1", "a", 1));
+
+        assertThat(gateway.getThrottledCount(), equalTo(2L));
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(1));
+    }
+
+    @Test
+    void followsPartitionSplits() {
+        container.createItem(document("1", "a", 1));
+        container.readItem("1", new PartitionKey("a"), ObjectNode.class);
+
+        gateway.split("jenkins", "builds");
+        container.createItem(document("2", "b", 2));
+
+        List<String> ids = container.queryItems("SELECT c.id FROM c", new CosmosQueryRequestOptions(), Map.class)
+                .stream()
+                .map(item -> String.valueOf(item.get("id")))
+                .collect(Collectors.toList());
+        assertThat(ids, containsInAnyOrder("1", "2"));
+    }
+
+    @Test
+    void addsLatency() {
+        gateway.setLatency(Duration.ofMillis(200));
+
+        long start = System.nanoTime();
+        container.createItem(document("1", "a", 1));
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start).toMillis(), greaterThan(150L));
+    }
+
+    private static ObjectNode document(String id, String tenant, int count) {
+        return JsonNodeFactory.instance.objectNode().put("id", id).put("tenant", tenant).put("count", count);
+    }
+}
@@ -0,0 +1,112 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hudson.AbortException;
+import hudson.XmlFile;
+import java.io.File;
+import java.util.Collections;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class RequestChargeLedgerTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        RequestChargeLedger.get().reset();
+    }
+
+    @Test
+    void recordsChargeAgainstJobAndFolders() throws Exception {
+        MockFolder team = j.createFolder("team");
+        MockFolder services = team.createProject(MockFolder.class, "services");
+        WorkflowJob job = services.createProject(WorkflowJob.class, "pipeline");
+
+        RequestChargeLedger ledger = RequestChargeLedger.get();
+        ledger.record(job, 5.5);
+        ledger.record(job, 4.5);
+
+        assertThat(ledger.getUsage("team/services/pipeline").getTotal(), closeTo(10, 0.001));
+        assertThat(ledger.getUsage("team/services").getTotal(), closeTo(10, 0.001));
+        assertThat(ledger.getUsage("team").getTotal(), closeTo(10, 0.001));
+        assertThat(ledger.getUsage("other"), is(nullValue()));
+    }
+
+    @Test
+    void exceededQuotaFailsSteps() throws Exception {
+        MockFolder team = j.createFolder("team");
+        WorkflowJob job = team.createProject(WorkflowJob.class, "pipeline");
+        FolderSettings settings = new FolderSettings("team");
+        settings.setRequestChargeQuota(10.0);
+        AzureCosmosDBGlobalConfiguration.get().setFolders(Collections.singletonList(settings));
+
+        RequestChargeLedger ledger = RequestChargeLedger.get();
+        ledger.record(job, 9);
+        assertThat(ledger.checkQuota(job, null), is(0L));
+
+        ledger.record(job, 2);
+        AbortException exception = assertThrows(AbortException.class, () -> ledger.checkQuota(job, null));
+        assertThat(exception.getMessage(), is("Folder team has used its quota of 10 RU per 60 minutes"));
+    }
+
+    @Test
+    void exceededQuotaDelaysStepsUntilTheNextPeriod() throws Exception {
+        MockFolder team = j.createFolder("team");
+        WorkflowJob job = team.createProject(WorkflowJob.class, "pipeline");
+        FolderSettings settings = new FolderSettings("team");
+        settings.setRequestChargeQuota(10.0);
+        settings.setQuotaAction(FolderSettings.QuotaAction.DELAY);
+        AzureCosmosDBGlobalConfiguration.get().setFolders(Collections.singletonList(settings));
+
+        RequestChargeLedger ledger = RequestChargeLedger.get();
+        ledger.record(job, 11);
+
+        assertThat(ledger.checkQuota(job, null), greaterThanOrEqualTo(1000L));
+    }
+
+    @Test
+    void entriesFollowRenamedAndDeletedItems() throws Exception {
+        MockFolder team = j.createFolder("team");
+        WorkflowJob job = team.createProject(WorkflowJob.class, "pipeline");
+        RequestChargeLedger ledger = RequestChargeLedger.get();
+        ledger.record(job, 2);
+
+        job.renameTo("renamed");
+
+        assertThat(ledger.getUsage("team/pipeline"), is(nullValue()));
+        assertThat(ledger.getUsage("team/renamed").getTotal(), closeTo(2, 0.001));
+        assertThat(ledger.getUsage("team").getTotal(), closeTo(2, 0.001));
+
+        team.delete();
+
+        assertThat(ledger.getUsage("team"), is(nullValue()));
+        assertThat(ledger.getUsage("team/renamed"), is(nullValue()));
+    }
+
+    @Test
+    void snapshotIsReloaded() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "pipeline");
+        RequestChargeLedger.get().record(job, 3);
+        RequestChargeLedger.get().save();
+
+        File file = new File(j.jenkins.getRootDir(), RequestChargeLedger.class.getName() + ".xml");
+        XmlFile snapshot = new XmlFile(Jenkins.XSTREAM2, file);
+        RequestChargeLedger reloaded = (RequestChargeLedger) snapshot.read();
+
+        assertThat(reloaded.getUsage("pipeline").getTotal(), closeTo(3, 0.001));
+    }
+}
@@ -0,0 +1,106 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.microsoft.azure.util.AzureCredentials;
+import hudson.util.Secret;
+import io.jenkins.plugins.azurecosmosdb.SharedTokenCache.CachingTokenCredential;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+class SharedTokenCacheTest {
+
+    private static final TokenRequestContext REQUEST =
+            new TokenRequestContext().addScopes("https://account.documents.azure.com/.default");
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void tokensAreCached() {
+        StubTokenCredential stub = new StubTokenCredential(Duration.ofHours(1), Duration.ZERO);
+        CachingTokenCredential credential = new CachingTokenCredential(stub, () -> scheduler, Duration.ofMinutes(5));
+
+        AccessToken first = credential.getToken(REQUEST).block();
+        AccessToken second = credential.getToken(REQUEST).block();
+
+        assertThat(second, equalTo(first));
+        assertThat(stub.calls.get(), equalTo(1));
+    }
+
+    @Test
+    void concurrentAcquisitionsAreCollapsed() {
+        StubTokenCredential stub = new StubTokenCredential(Duration.ofHours(1), Duration.ofMillis(200));
+        CachingTokenCredential credential = new CachingTokenCredential(stub, () -> scheduler, Duration.ofMinutes(5));
+
+        List<Mono<AccessToken>> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(credential.getToken(REQUEST));
+        }
+        Mono.when(requests).block();
+
+        assertThat(stub.calls.get(), equalTo(1));
+    }
+
+    @Test
+    void tokensAreRefreshedBeforeExpiry() throws Exception {
+        StubTokenCredential stub = new StubTokenCredential(Duration.ofSeconds(2), Duration.ZERO);
+        CachingTokenCredential credential = new CachingTokenCredential(stub, () -> scheduler, Duration.ofSeconds(1));
+
+        AccessToken first = credential.getToken(REQUEST).block();
+        scheduler.schedule(() -> {}, 1500, TimeUnit.MILLISECONDS).get();
+        AccessToken refreshed = credential.getToken(REQUEST).block();
+
+        assertThat(stub.calls.get(), equalTo(2));
+        assertThat(refreshed, not(equalTo(first)));
+    }
+
+    @Test
+    void fingerprintChangesWhenSecretRotates() {
+        AzureCredentials sp =
+                new AzureCredentials(CredentialsScope.GLOBAL, "sp", null, "1234", "12345", Secret.fromString("1234"));
+        AzureCredentials rotated =
+                new AzureCredentials(CredentialsScope.GLOBAL, "sp", null, "1234", "12345", Secret.fromString("5678"));
+
+        assertThat(SharedTokenCache.fingerprint(sp), equalTo(SharedTokenCache.fingerprint(sp)));
+        assertThat(SharedTokenCache.fingerprint(sp), not(equalTo(SharedTokenCache.fingerprint(rotated))));
+    }
+
+    private static class StubTokenCredential implements TokenCredential {
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private final Duration lifetime;
+        private final Duration delay;
+
+        StubTokenCredential(Duration lifetime, Duration delay) {
+            this.lifetime = lifetime;
+            this.delay = delay;
+        }
+
+        @Override
+        public Mono<AccessToken> getToken(TokenRequestContext request) {
+            return Mono.fromCallable(() -> new AccessToken(
+                            "token-" + calls.incrementAndGet(), OffsetDateTime.now().plus(lifetime)))
+                    .delaySubscription(delay);
+        }
+    }
+}
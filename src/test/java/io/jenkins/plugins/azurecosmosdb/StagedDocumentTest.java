@@ -0,0 +1,145 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.model.Result;
+import hudson.util.Secret;
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.jvnet.hudson.test.junit.jupiter.WithoutJenkins;
+
+@WithJenkins
+class StagedDocumentTest {
+
+    // a document of 128 KiB, over the default staging threshold
+    private static final String LARGE_DOCUMENT = "def payload = 'x'\n"
+            + "for (int i = 0; i < 17; i++) { payload = payload + payload }\n"
+            + "azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+            + "container: 'builds', document: [id: 'large', payload: payload]";
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        gateway.setLatency(Duration.ZERO);
+    }
+
+    @Test
+    void largeDocumentIsWrittenAndTheStagedFileDeleted() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "large-document");
+        job.setDefinition(new CpsFlowDefinition(LARGE_DOCUMENT, true));
+
+        WorkflowRun run = j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        JsonNode stored = gateway.documents("jenkins", "builds").get(0);
+        assertThat(stored.path("payload").asText().length(), equalTo(1 << 17));
+        assertThat(stagedFiles(run), emptyArray());
+    }
+
+    @Test
+    void stagedFileIsDeletedWhenTheBuildIsAborted() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "aborted");
+        job.setDefinition(new CpsFlowDefinition(LARGE_DOCUMENT, true));
+        // the client and container are looked up while the gateway still answers
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+        gateway.setLatency(Duration.ofMinutes(10));
+
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (stagedFiles(run) == null && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(stagedFiles(run).length, equalTo(1));
+
+        run.doStop();
+
+        j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(run));
+        assertThat(stagedFiles(run), emptyArray());
+    }
+
+    @Test
+    void smallDocumentIsNotStaged() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "small-document");
+        job.setDefinition(new CpsFlowDefinition(
+                "azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+                        + "container: 'builds', document: [id: 'small']",
+                true));
+
+        WorkflowRun run = j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertThat(StagedDocument.getDirectory(run).exists(), is(false));
+    }
+
+    @Test
+    @WithoutJenkins
+    void documentPastTheThresholdIsWrittenAsSerialized(@TempDir File directory) throws Exception {
+        Map<String, Object> document = Map.of("id", "large", "payload", "x".repeat(100));
+
+        StagedDocument staged = StagedDocument.stage(directory, document, 64);
+
+        assertThat(staged.read(), equalTo(new ObjectMapper().valueToTree(document)));
+        assertThat(StagedDocument.stage(directory, document, 1024), nullValue());
+        assertThat(directory.listFiles().length, equalTo(1));
+    }
+
+    @Test
+    @WithoutJenkins
+    void stringIsMeasuredInEncodedBytes(@TempDir File directory) throws Exception {
+        // 30 chars that take 70 bytes in UTF-8, too many to rule out staging from the length alone
+        String document = "{\"id\": \"" + "\u20ac".repeat(20) + "\"}";
+
+        assertThat(StagedDocument.stage(directory, document, 60), notNullValue());
+        assertThat(StagedDocument.stage(directory, document, 80), nullValue());
+    }
+
+    private static File[] stagedFiles(WorkflowRun run) {
+        return StagedDocument.getDirectory(run).listFiles();
+    }
+}
@@ -0,0 +1,108 @@
+package io.jenkins.plugins.azurecosmosdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.model.Result;
+import hudson.util.Secret;
+import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.SnippetizerTester;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class WithCosmosDBStepTest {
+
+    private static FakeCosmosGateway gateway;
+
+    private JenkinsRule j;
+
+    @BeforeAll
+    static void startGateway() throws Exception {
+        gateway = FakeCosmosGateway.start();
+    }
+
+    @AfterAll
+    static void stopGateway() {
+        gateway.close();
+    }
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+        gateway.reset();
+        AzureCosmosDBCache.invalidateCache();
+        List<Credentials> credentials = SystemCredentialsProvider.getInstance().getCredentials();
+        credentials.add(
+                new AzureCosmosDBKeyCredentialsImpl("cosmos-key", null, Secret.fromString(FakeCosmosGateway.KEY)));
+        credentials.add(new AzureCosmosDBCredentialsImpl(
+                null, "cosmos-connection", null, "cosmos-key", null, gateway.getUrl()));
+    }
+
+    @Test
+    void configRoundTrip() throws Exception {
+        WithCosmosDBStep step = new WithCosmosDBStep("cosmos-connection", "jenkins", "builds");
+
+        SnippetizerTester st = new SnippetizerTester(j);
+        st.assertRoundTrip(
+                step,
+                "withCosmosDB(container: 'builds', credentialsId: 'cosmos-connection', database: 'jenkins') {\n    // some block\n}");
+    }
+
+    @Test
+    void nestedStepsUseTheBlockConnection() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "with-cosmos");
+        job.setDefinition(new CpsFlowDefinition(
+                "withCosmosDB(credentialsId: 'cosmos-connection', database: 'jenkins', container: 'builds') {\n"
+                        + "  for (int i = 0; i < 3; i++) {\n"
+                        + "    azureCosmosDBCreateDocument document: [id: 'doc-' + i]\n"
+                        + "  }\n"
+                        + "}",
+                true));
+
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(3));
+    }
+
+    @Test
+    void stepArgumentsOverrideTheBlock() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "with-cosmos");
+        job.setDefinition(new CpsFlowDefinition(
+                "withCosmosDB(credentialsId: 'cosmos-connection', database: 'jenkins', container: 'builds') {\n"
+                        + "  azureCosmosDBCreateDocument container: 'tests', document: [id: 'one']\n"
+                        + "  withCosmosDB(container: 'logs') {\n"
+                        + "    azureCosmosDBCreateDocument document: [id: 'two']\n"
+                        + "  }\n"
+                        + "}",
+                true));
+
+        j.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        assertThat(gateway.documentCount("jenkins", "tests"), equalTo(1));
+        assertThat(gateway.documentCount("jenkins", "logs"), equalTo(1));
+        assertThat(gateway.documentCount("jenkins", "builds"), equalTo(0));
+    }
+
+    @Test
+    void missingContainerFailsWithoutABlock() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "without-cosmos");
+        job.setDefinition(new CpsFlowDefinition(
+                "azureCosmosDBCreateDocument credentialsId: 'cosmos-connection', database: 'jenkins', "
+                        + "document: [id: 'one']",
+                true));
+
+        WorkflowRun run = j.buildAndAssertStatus(Result.FAILURE, job);
+
+        j.assertLogContains("Container must be set", run);
+    }
+}